@@ -29,6 +29,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
@@ -89,7 +90,12 @@ public class ZooKeeper implements ZookeeperInterface {
 
 	@Override
 	public void close(long session) {
-		nodeService.close(session);
+		close(session, defaultWatcher);
+	}
+
+	@Override
+	public void close(long session, Watcher watcher) {
+		nodeService.close(session, watcher);
 
 		if (brokerMonitorService != null) {
 			try {
@@ -185,6 +191,42 @@ public class ZooKeeper implements ZookeeperInterface {
 		return nodeService.setData(path, data, version);
 	}
 
+	/**
+	 * Zookeper driver method
+	 * <p>
+	 * Executes multiple ZooKeeper operations or none of them. If any operation fails, KeeperException of the first
+	 * failure is thrown, results of all the operations are available through KeeperException.getResults().
+	 */
+	public List<OpResult> multi(Iterable<Op> ops) throws KeeperException {
+		List<Op> opList = new ArrayList<>();
+		for (Op op : ops) {
+			if (op.getType() == ZooDefs.OpCode.create) {
+				checkIsBrokerInfo(op.getPath());
+			}
+			opList.add(op);
+		}
+
+		List<OpResult> results = multi(session, opList);
+
+		for (OpResult result : results) {
+			if (result instanceof OpResult.ErrorResult) {
+				int err = ((OpResult.ErrorResult) result).getErr();
+				if (err != KeeperException.Code.OK.intValue()) {
+					KeeperException e = KeeperException.create(KeeperException.Code.get(err));
+					e.setMultiResults(results);
+					throw e;
+				}
+			}
+		}
+
+		return results;
+	}
+
+	@Override
+	public List<OpResult> multi(long session, List<Op> ops) {
+		return nodeService.multi(session, ops);
+	}
+
 	public Stat exists(String path, boolean watch) {
 		return exists(path, watch ? defaultWatcher : null);
 	}
@@ -236,6 +278,18 @@ public class ZooKeeper implements ZookeeperInterface {
 		nodeService.registerWatch(watcher, dataWatches, childWatches, existWatches);
 	}
 
+	@Override
+	public void addWatch(String basePath, Watcher watcher, AddWatchMode mode) {
+		nodeService.addWatch(basePath, watcher, mode);
+	}
+
+	/**
+	 * Add a persistent watch of the default watcher, see {@link #addWatch(String, Watcher, AddWatchMode)}
+	 */
+	public void addWatch(String basePath, AddWatchMode mode) {
+		addWatch(basePath, defaultWatcher, mode);
+	}
+
 	private void checkIsBrokerInfo(String path) {
 		// BrokerMonitorService can be initialized only when broker id is known
 		if (!brokerMonitorService.isStarted()) {
@@ -0,0 +1,191 @@
+package com.pega.charlatan.benchmarks;
+
+import com.pega.charlatan.io.Deserializable;
+import com.pega.charlatan.io.ZookeeperWriter;
+import com.pega.charlatan.server.io.AddWatchRequest;
+import com.pega.charlatan.server.io.CheckVersionRequest;
+import com.pega.charlatan.server.io.CreateRequest;
+import com.pega.charlatan.server.io.DeleteRequest;
+import com.pega.charlatan.server.io.ExistRequest;
+import com.pega.charlatan.server.io.GetChildrenRequest;
+import com.pega.charlatan.server.io.GetDataRequest;
+import com.pega.charlatan.server.io.MultiRequest;
+import com.pega.charlatan.server.io.SetDataRequest;
+import com.pega.charlatan.server.io.SetWatchesRequest;
+import org.apache.zookeeper.ZooDefs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes requests the way ZooKeeper client does, so the benchmarks feed the server with real frames.
+ */
+final class ClientRequests {
+
+	private static final int PROTOCOL_VERSION = 0;
+	private static final int ANYONE_ALL_PERMS = 31;
+
+	private ClientRequests() {
+	}
+
+	/**
+	 * Request frame as received by the server: length, transaction id, operation code and the request.
+	 */
+	static byte[] frame(int xid, String type, String path, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		write(new ZookeeperWriter(out), xid, type, path, data);
+		return withLength(bytes.toByteArray());
+	}
+
+	static byte[] connectFrame(int timeout) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+
+		ZookeeperWriter writer = new ZookeeperWriter(out);
+		writer.writeInt(PROTOCOL_VERSION);
+		writer.writeLong(0);
+		writer.writeInt(timeout);
+		writer.writeLong(0);
+		writer.writeBuffer(new byte[16]);
+		writer.writeBoolean(false);
+		return withLength(bytes.toByteArray());
+	}
+
+	/**
+	 * Writes transaction id, operation code and the request.
+	 */
+	static void write(ZookeeperWriter writer, int xid, String type, String path, byte[] data) throws IOException {
+		writer.writeInt(xid);
+		writer.writeInt(opCode(type));
+		writeBody(writer, type, path, data);
+	}
+
+	/**
+	 * Server side request of the type, to decode the frame into.
+	 */
+	static Deserializable newRequest(String type) {
+		switch (type) {
+			case "create":
+				return new CreateRequest();
+			case "delete":
+				return new DeleteRequest();
+			case "exists":
+				return new ExistRequest();
+			case "getData":
+				return new GetDataRequest();
+			case "setData":
+				return new SetDataRequest();
+			case "getChildren":
+				return new GetChildrenRequest();
+			case "check":
+				return new CheckVersionRequest();
+			case "multi":
+				return new MultiRequest();
+			case "setWatches":
+				return new SetWatchesRequest();
+			case "addWatch":
+				return new AddWatchRequest();
+			default:
+				throw new IllegalArgumentException("Unknown request type " + type);
+		}
+	}
+
+	private static int opCode(String type) {
+		switch (type) {
+			case "create":
+				return ZooDefs.OpCode.create;
+			case "delete":
+				return ZooDefs.OpCode.delete;
+			case "exists":
+				return ZooDefs.OpCode.exists;
+			case "getData":
+				return ZooDefs.OpCode.getData;
+			case "setData":
+				return ZooDefs.OpCode.setData;
+			case "getChildren":
+				return ZooDefs.OpCode.getChildren;
+			case "check":
+				return ZooDefs.OpCode.check;
+			case "multi":
+				return ZooDefs.OpCode.multi;
+			case "setWatches":
+				return ZooDefs.OpCode.setWatches;
+			case "addWatch":
+				return ZooDefs.OpCode.addWatch;
+			default:
+				throw new IllegalArgumentException("Unknown request type " + type);
+		}
+	}
+
+	private static void writeBody(ZookeeperWriter writer, String type, String path, byte[] data) throws IOException {
+		switch (type) {
+			case "create":
+				writer.writeString(path);
+				writer.writeBuffer(data);
+				// world:anyone ACL
+				writer.writeInt(1);
+				writer.writeInt(ANYONE_ALL_PERMS);
+				writer.writeString("world");
+				writer.writeString("anyone");
+				writer.writeInt(0);
+				break;
+			case "delete":
+			case "check":
+				writer.writeString(path);
+				writer.writeInt(-1);
+				break;
+			case "exists":
+			case "getData":
+			case "getChildren":
+				writer.writeString(path);
+				writer.writeBoolean(false);
+				break;
+			case "setData":
+				writer.writeString(path);
+				writer.writeBuffer(data);
+				writer.writeInt(-1);
+				break;
+			case "multi":
+				writeMultiHeader(writer, ZooDefs.OpCode.check, false);
+				writeBody(writer, "check", path, data);
+				writeMultiHeader(writer, ZooDefs.OpCode.setData, false);
+				writeBody(writer, "setData", path, data);
+				writeMultiHeader(writer, -1, true);
+				break;
+			case "setWatches":
+				List<String> paths = Arrays.asList(path, path + "/a", path + "/b");
+				writer.writeLong(0);
+				writer.writeVector(paths);
+				writer.writeVector(paths);
+				writer.writeVector(paths);
+				break;
+			case "addWatch":
+				writer.writeString(path);
+				writer.writeInt(ZooDefs.AddWatchModes.persistentRecursive);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown request type " + type);
+		}
+	}
+
+	private static void writeMultiHeader(ZookeeperWriter writer, int type, boolean done) throws IOException {
+		writer.writeInt(type);
+		writer.writeBoolean(done);
+		writer.writeInt(-1);
+	}
+
+	private static byte[] withLength(byte[] frame) {
+		int length = frame.length - 4;
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		return frame;
+	}
+}
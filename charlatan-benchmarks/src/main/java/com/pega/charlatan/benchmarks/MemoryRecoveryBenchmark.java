@@ -0,0 +1,96 @@
+package com.pega.charlatan.benchmarks;
+
+import com.pega.charlatan.memory.MemoryDatabase;
+import com.pega.charlatan.memory.NodeDaoMemory;
+import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import com.pega.charlatan.node.dao.RecordNotFoundException;
+import org.apache.zookeeper.CreateMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start of the in-memory database from a snapshot, the time a restarted server takes before it serves the tree.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemoryRecoveryBenchmark {
+
+	private static final int BATCH_SIZE = 1000;
+
+	@Param({"200000"})
+	public int nodes;
+
+	@Param({"1024"})
+	public int dataSize;
+
+	private File directory;
+	private MemoryDatabase database;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("charlatan-benchmark").toFile();
+
+		try (MemoryDatabase populated = new MemoryDatabase(directory, false, Long.MAX_VALUE)) {
+			NodeDaoMemory nodeDao = new NodeDaoMemory(populated);
+			nodeDao.executeBatch(0, Collections.singletonList(NodeOperation.create(new Node("/benchmark"))));
+
+			List<NodeOperation> batch = new ArrayList<>();
+			for (int i = 0; i < nodes; i++) {
+				batch.add(NodeOperation.create(new Node("/benchmark/node-" + i, new byte[dataSize], CreateMode.PERSISTENT)));
+				if (batch.size() == BATCH_SIZE || i == nodes - 1) {
+					nodeDao.executeBatch(0, batch);
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public Node open() throws RecordNotFoundException {
+		database = new MemoryDatabase(directory, true, MemoryDatabase.DEFAULT_SNAPSHOT_LOG_SIZE);
+		return new NodeDaoMemory(database).get("/benchmark/node-0");
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() throws IOException {
+		if (database != null) {
+			database.close();
+			database = null;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Files.delete(file.toPath());
+			}
+		}
+		Files.delete(directory.toPath());
+	}
+}
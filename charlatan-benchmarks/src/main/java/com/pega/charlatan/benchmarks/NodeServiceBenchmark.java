@@ -0,0 +1,108 @@
+package com.pega.charlatan.benchmarks;
+
+import com.pega.charlatan.node.service.NodeService;
+import com.pega.charlatan.node.service.NodeServiceImpl;
+import com.pega.charlatan.utils.NamedThreadFactory;
+import com.pega.charlatan.watches.service.WatchServiceImpl;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NodeServiceImpl operations against the node dao, without the network and protocol overhead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NodeServiceBenchmark {
+
+	private static final String ROOT = "/benchmark";
+	private static final String CREATE_PARENT = ROOT + "/create";
+	private static final String DATA_PATH = ROOT + "/data";
+	private static final String CHILDREN_PATH = ROOT + "/children";
+
+	@Param({Storage.SQLITE, Storage.SQLITE_MEMORY, Storage.MEMORY})
+	public String storage;
+
+	@Param({"100"})
+	public int dataSize;
+
+	@Param({"100"})
+	public int children;
+
+	private Storage storageDaos;
+	private WatchServiceImpl watchService;
+	private NodeService nodeService;
+	private byte[] data;
+	private final AtomicLong createdNodes = new AtomicLong();
+
+	@Setup
+	public void setup() throws Exception {
+		storageDaos = Storage.use(storage);
+
+		watchService = new WatchServiceImpl(storageDaos.createNodeUpdateDao(), new NamedThreadFactory("benchmark-watch-service"));
+		nodeService = new NodeServiceImpl(storageDaos.createNodeDao(), watchService);
+
+		data = new byte[dataSize];
+
+		// The root node is created by the dao
+		create(ROOT);
+		create(CREATE_PARENT);
+		create(CHILDREN_PATH);
+		nodeService.create(0, DATA_PATH, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		for (int i = 0; i < children; i++) {
+			create(CHILDREN_PATH + "/child-" + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		watchService.stop();
+		storageDaos.close();
+	}
+
+	@Benchmark
+	public String create() throws KeeperException {
+		String path = CREATE_PARENT + "/node-" + createdNodes.incrementAndGet();
+		return nodeService.create(0, path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+	}
+
+	@Benchmark
+	public byte[] getData() throws KeeperException {
+		return nodeService.getData(DATA_PATH, null, new Stat());
+	}
+
+	@Benchmark
+	public List<String> getChildren() throws KeeperException {
+		return nodeService.getChildren(CHILDREN_PATH, null);
+	}
+
+	private void create(String path) throws KeeperException {
+		try {
+			nodeService.create(0, path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		} catch (KeeperException.NodeExistsException ignore) {
+			// Left by an earlier trial on the same database
+		}
+	}
+}
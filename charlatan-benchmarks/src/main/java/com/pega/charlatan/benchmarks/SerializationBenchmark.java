@@ -0,0 +1,158 @@
+package com.pega.charlatan.benchmarks;
+
+import com.pega.charlatan.io.Deserializable;
+import com.pega.charlatan.io.ZookeeperReader;
+import com.pega.charlatan.io.ZookeeperWriter;
+import com.pega.charlatan.server.io.ChannelBufferReader;
+import com.pega.charlatan.server.io.ChannelBufferWriter;
+import com.pega.charlatan.server.io.CreateResponse;
+import com.pega.charlatan.server.io.ExistResponse;
+import com.pega.charlatan.server.io.GetChildrenResponse;
+import com.pega.charlatan.server.io.GetDataResponse;
+import com.pega.charlatan.server.io.Response;
+import com.pega.charlatan.server.io.SetDataResponse;
+import com.pega.charlatan.server.io.WatcherEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the protocol messages, by the stream based ZookeeperReader/ZookeeperWriter and by their
+ * netty buffer subclasses used by the server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+	private static final String PATH = "/brokers/topics/benchmark/partitions/0/state";
+	private static final int DATA_SIZE = 100;
+
+	@State(Scope.Thread)
+	public static class RequestState {
+		@Param({"create", "delete", "exists", "getData", "setData", "getChildren", "check", "multi", "setWatches", "addWatch"})
+		public String requestType;
+
+		private byte[] data = new byte[DATA_SIZE];
+		private byte[] request;
+		private ChannelBuffer requestBuffer;
+
+		@Setup
+		public void setup() throws IOException {
+			byte[] frame = ClientRequests.frame(1, requestType, PATH, data);
+			// Decoding starts after the frame length, like in the server
+			request = new byte[frame.length - 4];
+			System.arraycopy(frame, 4, request, 0, request.length);
+			requestBuffer = ChannelBuffers.wrappedBuffer(request);
+		}
+
+		private Deserializable decode(ZookeeperReader reader) throws IOException {
+			reader.readInt();
+			reader.readInt();
+
+			Deserializable deserializable = ClientRequests.newRequest(requestType);
+			deserializable.deserialize(reader);
+			return deserializable;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ResponseState {
+		@Param({"create", "exists", "getData", "setData", "getChildren", "watchEvent"})
+		public String responseType;
+
+		private Response response;
+		private ChannelBuffer responseBuffer;
+		private ByteArrayOutputStream responseBytes;
+
+		@Setup
+		public void setup() {
+			response = newResponse(responseType);
+			responseBuffer = ChannelBuffers.buffer(response.estimateSize());
+			responseBytes = new ByteArrayOutputStream(response.estimateSize());
+		}
+	}
+
+	@Benchmark
+	public Deserializable decodeRequestFromStream(RequestState state) throws IOException {
+		return state.decode(new ZookeeperReader(new DataInputStream(new ByteArrayInputStream(state.request))));
+	}
+
+	@Benchmark
+	public Deserializable decodeRequestFromChannelBuffer(RequestState state) throws IOException {
+		state.requestBuffer.readerIndex(0);
+		return state.decode(new ChannelBufferReader(state.requestBuffer));
+	}
+
+	@Benchmark
+	public int encodeRequestToStream(RequestState state) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(state.request.length);
+		ClientRequests.write(new ZookeeperWriter(new DataOutputStream(bytes)), 1, state.requestType, PATH, state.data);
+		return bytes.size();
+	}
+
+	@Benchmark
+	public int encodeResponseToStream(ResponseState state) throws IOException {
+		state.responseBytes.reset();
+		state.response.serialize(new ZookeeperWriter(new DataOutputStream(state.responseBytes)));
+		return state.responseBytes.size();
+	}
+
+	@Benchmark
+	public int encodeResponseToChannelBuffer(ResponseState state) throws IOException {
+		state.responseBuffer.clear();
+		state.response.serialize(new ChannelBufferWriter(state.responseBuffer));
+		return state.responseBuffer.writerIndex();
+	}
+
+	private static Response newResponse(String type) {
+		Stat stat = new Stat(1, 2, 3, 4, 5, 6, 7, 0, DATA_SIZE, 10, 8);
+		switch (type) {
+			case "create":
+				return new CreateResponse(PATH);
+			case "exists":
+				return new ExistResponse(stat);
+			case "getData":
+				GetDataResponse getData = new GetDataResponse();
+				getData.setData(new byte[DATA_SIZE]);
+				getData.setStat(stat);
+				return getData;
+			case "setData":
+				return new SetDataResponse(stat);
+			case "getChildren":
+				List<String> children = new ArrayList<>();
+				for (int i = 0; i < 100; i++) {
+					children.add("partition-" + i);
+				}
+				return new GetChildrenResponse(children);
+			case "watchEvent":
+				return new WatcherEvent(Watcher.Event.EventType.NodeDataChanged.getIntValue(),
+						Watcher.Event.KeeperState.SyncConnected.getIntValue(), PATH);
+			default:
+				throw new IllegalArgumentException("Unknown response type " + type);
+		}
+	}
+}
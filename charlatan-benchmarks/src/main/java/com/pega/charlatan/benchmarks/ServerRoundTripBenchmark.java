@@ -0,0 +1,168 @@
+package com.pega.charlatan.benchmarks;
+
+import com.pega.charlatan.server.CharlatanNettyServer;
+import com.pega.charlatan.server.CharlatanServerBuilder;
+import com.pega.charlatan.server.session.service.SessionServiceImpl;
+import com.pega.charlatan.utils.NamedThreadFactory;
+import com.pega.charlatan.watches.service.WatchServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request round trip through a CharlatanNettyServer over loopback: encoding by the client, netty, request threads,
+ * node service, dao and the response back to the client. Every benchmark thread is a separate client connection
+ * with one outstanding request, like a ZooKeeper client.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerRoundTripBenchmark {
+
+	private static final String HOST = "127.0.0.1";
+	private static final String PATH = "/benchmark";
+	private static final int SESSION_TIMEOUT = 30000;
+
+	@State(Scope.Benchmark)
+	public static class Server {
+		@Param({Storage.SQLITE, Storage.SQLITE_MEMORY, Storage.MEMORY})
+		public String storage;
+
+		@Param({"100"})
+		public int dataSize;
+
+		private Storage storageDaos;
+		private CharlatanNettyServer server;
+		private int port;
+
+		@Setup
+		public void setup() throws Exception {
+			storageDaos = Storage.use(storage);
+
+			try (ServerSocket socket = new ServerSocket(0)) {
+				port = socket.getLocalPort();
+			}
+
+			server = new CharlatanServerBuilder()
+					.setHost(HOST)
+					.setPort(port)
+					.setId("benchmark" + port)
+					.setWorkerCount(Runtime.getRuntime().availableProcessors())
+					.setNodeDao(storageDaos.createNodeDao())
+					.setWatchService(new WatchServiceImpl(storageDaos.createNodeUpdateDao(), new NamedThreadFactory("benchmark-watch-service")))
+					.setSessionService(new SessionServiceImpl(storageDaos.createSessionDao()))
+					.setThreadFactory(new NamedThreadFactory("benchmark-server"))
+					.build();
+			server.start();
+
+			Client client = new Client();
+			client.connect(this);
+			client.call("create", new byte[dataSize]);
+			client.close();
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			server.stop();
+			storageDaos.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		private Socket socket;
+		private OutputStream out;
+		private DataInputStream in;
+		private int xid;
+		private byte[] data;
+
+		@Setup
+		public void connect(Server server) throws IOException {
+			data = new byte[server.dataSize];
+
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(HOST, server.port));
+			out = socket.getOutputStream();
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			out.write(ClientRequests.connectFrame(SESSION_TIMEOUT));
+			readFrame();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			socket.close();
+		}
+
+		/**
+		 * Sends the request and waits for its response.
+		 *
+		 * @return error code of the response
+		 */
+		int call(String type, byte[] data) throws IOException {
+			int requestXid = ++xid;
+			out.write(ClientRequests.frame(requestXid, type, PATH, data));
+
+			while (true) {
+				byte[] frame = readFrame();
+				int responseXid = readInt(frame, 0);
+				// Skip notifications and pings
+				if (responseXid == requestXid) {
+					return readInt(frame, 12);
+				}
+			}
+		}
+
+		private byte[] readFrame() throws IOException {
+			byte[] frame = new byte[in.readInt()];
+			in.readFully(frame);
+			return frame;
+		}
+
+		private static int readInt(byte[] b, int offset) {
+			return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+		}
+	}
+
+	@Benchmark
+	public int getData(Client client) throws IOException {
+		return client.call("getData", null);
+	}
+
+	@Benchmark
+	public int exists(Client client) throws IOException {
+		return client.call("exists", null);
+	}
+
+	@Benchmark
+	public int getChildren(Client client) throws IOException {
+		return client.call("getChildren", null);
+	}
+
+	@Benchmark
+	public int setData(Client client) throws IOException {
+		return client.call("setData", client.data);
+	}
+}
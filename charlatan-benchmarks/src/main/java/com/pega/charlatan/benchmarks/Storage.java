@@ -0,0 +1,98 @@
+package com.pega.charlatan.benchmarks;
+
+import com.pega.charlatan.memory.MemoryDatabase;
+import com.pega.charlatan.memory.NodeDaoMemory;
+import com.pega.charlatan.memory.NodeUpdateDaoMemory;
+import com.pega.charlatan.memory.SessionDaoMemory;
+import com.pega.charlatan.node.dao.NodeDao;
+import com.pega.charlatan.server.session.dao.SessionDao;
+import com.pega.charlatan.sqlite.DatabaseConnection;
+import com.pega.charlatan.sqlite.NodeDaoSqlite;
+import com.pega.charlatan.sqlite.NodeUpdateDaoSqlite;
+import com.pega.charlatan.sqlite.SessionDaoSqlite;
+import com.pega.charlatan.watches.dao.NodeUpdateDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Storage the benchmarked daos run against.
+ * <p>
+ * SQLite daos share a static connection pool, so the database must be chosen before the first dao is created.
+ * Every benchmark runs in its own forked JVM, which gives every storage its own pool.
+ */
+final class Storage {
+
+	/**
+	 * SQLite database file in the temporary directory.
+	 */
+	static final String SQLITE = "sqlite";
+
+	/**
+	 * SQLite database kept in memory, shared by all the connections of the pool.
+	 */
+	static final String SQLITE_MEMORY = "sqlite-memory";
+
+	/**
+	 * In-memory daos with the log and snapshots in the temporary directory.
+	 */
+	static final String MEMORY = "memory";
+
+	private final String storage;
+	private File memoryDirectory;
+	private MemoryDatabase memoryDatabase;
+
+	private Storage(String storage) {
+		this.storage = storage;
+	}
+
+	static Storage use(String storage) throws IOException {
+		Storage result = new Storage(storage);
+		switch (storage) {
+			case SQLITE:
+				File file = File.createTempFile("charlatan-benchmark", ".db");
+				file.deleteOnExit();
+				new File(file.getAbsolutePath() + "-wal").deleteOnExit();
+				new File(file.getAbsolutePath() + "-shm").deleteOnExit();
+				System.setProperty(DatabaseConnection.DATABASE_PROPERTY, file.getAbsolutePath());
+				break;
+			case SQLITE_MEMORY:
+				System.setProperty(DatabaseConnection.DATABASE_PROPERTY, "file:charlatan-benchmark?mode=memory&cache=shared");
+				break;
+			case MEMORY:
+				result.memoryDirectory = Files.createTempDirectory("charlatan-benchmark").toFile();
+				result.memoryDatabase = new MemoryDatabase(result.memoryDirectory, true, MemoryDatabase.DEFAULT_SNAPSHOT_LOG_SIZE);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown storage " + storage);
+		}
+		return result;
+	}
+
+	NodeDao createNodeDao() {
+		return storage.equals(MEMORY) ? new NodeDaoMemory(memoryDatabase) : new NodeDaoSqlite();
+	}
+
+	NodeUpdateDao createNodeUpdateDao() {
+		return storage.equals(MEMORY) ? new NodeUpdateDaoMemory(memoryDatabase) : new NodeUpdateDaoSqlite();
+	}
+
+	SessionDao createSessionDao() {
+		return storage.equals(MEMORY) ? new SessionDaoMemory(memoryDatabase) : new SessionDaoSqlite();
+	}
+
+	void close() throws IOException {
+		if (memoryDatabase != null) {
+			memoryDatabase.close();
+
+			File[] files = memoryDirectory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					Files.delete(file.toPath());
+				}
+			}
+			Files.delete(memoryDirectory.toPath());
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.pega.charlatan.benchmarks;
+
+import com.pega.charlatan.watches.service.WatchCache;
+import com.pega.charlatan.watches.service.WatchCacheImpl;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch registration and triggering of WatchCacheImpl while both happen concurrently, the way request threads
+ * register watches while the watch service triggers them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class WatchCacheBenchmark {
+
+	private static final Watcher.Event.KeeperState STATE = Watcher.Event.KeeperState.SyncConnected;
+
+	/**
+	 * Number of distinct watched paths, fewer paths means more contention on the same watch sets.
+	 */
+	@Param({"16", "1024"})
+	public int paths;
+
+	/**
+	 * Number of distinct watchers, a watcher is a client connection.
+	 */
+	@Param({"64"})
+	public int watchers;
+
+	private WatchCache watchCache;
+	private String[] pathNames;
+	private Watcher[] watcherInstances;
+
+	@Setup
+	public void setup() {
+		watchCache = new WatchCacheImpl();
+
+		pathNames = new String[paths];
+		for (int i = 0; i < paths; i++) {
+			pathNames[i] = "/brokers/topics/topic-" + i;
+		}
+
+		watcherInstances = new Watcher[watchers];
+		for (int i = 0; i < watchers; i++) {
+			watcherInstances[i] = new NoopWatcher();
+		}
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public void register() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Watcher watcher = watcherInstances[random.nextInt(watchers)];
+		String path = pathNames[random.nextInt(paths)];
+
+		switch (random.nextInt(3)) {
+			case 0:
+				watchCache.registerDataWatch(watcher, path);
+				break;
+			case 1:
+				watchCache.registerExistWatch(watcher, path);
+				break;
+			default:
+				watchCache.registerChildWatch(watcher, path);
+		}
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public Set<Watcher> materialize() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String path = pathNames[random.nextInt(paths)];
+		Watcher.Event.EventType type = random.nextBoolean() ? Watcher.Event.EventType.NodeDataChanged : Watcher.Event.EventType.NodeChildrenChanged;
+
+		return watchCache.materialize(STATE, type, path);
+	}
+
+	private static class NoopWatcher implements Watcher {
+		@Override
+		public void process(WatchedEvent event) {
+		}
+	}
+}
@@ -1,25 +1,33 @@
 package com.pega.charlatan.io;
 
 import java.io.DataInput;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Reads Zookeeper protocol primitives.
+ * Subclasses may read directly from their own buffer type by overriding readInt, readLong, readBoolean and readFully.
+ * Lengths are read from the request, so arrays and lists are sized only after {@link #ensureReadable} accepted them.
+ */
 public class ZookeeperReader {
 
 	private DataInput di;
 
-	public ZookeeperReader(DataInputStream dataInput) {
+	public ZookeeperReader(DataInput dataInput) {
 		this.di = dataInput;
 	}
 
+	protected ZookeeperReader() {
+	}
+
 	public String readString() throws IOException {
-		int length = di.readInt();
+		int length = readInt();
 
 		if (length > -1) {
+			ensureReadable(length);
 			byte b[] = new byte[length];
-			di.readFully(b);
+			readFully(b);
 			return new String(b, "UTF-8");
 		}
 
@@ -38,6 +46,8 @@ public class ZookeeperReader {
 		int vectorLength = readInt();
 
 		if (vectorLength > -1) {
+			// Every string takes at least its length, a bigger count is rejected before reading
+			ensureReadable(4L * vectorLength);
 			List<String> vector = new ArrayList<String>();
 
 			for (int i = 0; i < vectorLength; i++) {
@@ -58,9 +68,20 @@ public class ZookeeperReader {
 		return di.readBoolean();
 	}
 
+	/**
+	 * Fails if less than length bytes are left. The DataInput doesn't know its remaining length, so this reader
+	 * accepts any length.
+	 */
+	protected void ensureReadable(long length) throws IOException {
+		if (length < 0) {
+			throw new IOException("Negative length " + length);
+		}
+	}
+
 	public byte[] readBuffer() throws IOException {
 		int len = readInt();
 		if (len == -1) return null;
+		ensureReadable(len);
 		byte[] arr = new byte[len];
 		readFully(arr);
 		return arr;
@@ -2,8 +2,13 @@ package com.pega.charlatan.io;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+/**
+ * Writes Zookeeper protocol primitives.
+ * Subclasses may write directly to their own buffer type by overriding writeInt, writeLong, write and writeBoolean.
+ */
 public class ZookeeperWriter {
 
 	private DataOutput output;
@@ -12,6 +17,9 @@ public class ZookeeperWriter {
 		this.output = out;
 	}
 
+	protected ZookeeperWriter() {
+	}
+
 	public <T> void startVector(List<T> v) throws IOException {
 		if (v == null) {
 			writeInt(-1);
@@ -46,8 +54,10 @@ public class ZookeeperWriter {
 			return;
 		}
 
-		writeInt(s.length());
-		write(s.getBytes("UTF8"));
+		// Length is the number of encoded bytes, not the number of characters
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeInt(b.length);
+		write(b);
 	}
 
 	public void writeBuffer(byte[] b) throws IOException {
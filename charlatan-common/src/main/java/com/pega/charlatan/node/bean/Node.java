@@ -63,6 +63,26 @@ public class Node {
 		this.stat = new Stat();
 	}
 
+	/**
+	 * Creates a copy of the node. Data and children are shared, stat is copied.
+	 *
+	 * @param node
+	 */
+	public Node(Node node) {
+		this.path = node.path;
+		this.data = node.data;
+		this.mode = node.mode;
+		this.children = node.children;
+		this.stat = new Stat(node.stat);
+	}
+
+	/**
+	 * Path of a sequential node: the path prefix followed by the sequence number padded to 10 digits, as in ZooKeeper.
+	 */
+	public static String getSequentialPath(String prefix, int sequence) {
+		return prefix + String.format("%010d", sequence);
+	}
+
 	public String getPath() {
 		return path;
 	}
@@ -80,17 +100,28 @@ public class Node {
 	}
 
 	public String getParentPath() {
-		if (isRoot()) {
+		return parentOf(path);
+	}
+
+	/**
+	 * Parent of the path string.
+	 *
+	 * @return null for the root
+	 */
+	public static String parentOf(String path) {
+		if (path.length() == 1) {
 			return null;
 		}
 
 		int lastCh = path.lastIndexOf(SEP);
+		return lastCh == 0 ? String.valueOf(SEP) : path.substring(0, lastCh);
+	}
 
-		if (lastCh == 0) {
-			return String.valueOf(SEP);
-		} else {
-			return path.substring(0, lastCh);
-		}
+	/**
+	 * Last segment of the path string.
+	 */
+	public static String nameOf(String path) {
+		return path.substring(path.lastIndexOf(SEP) + 1);
 	}
 
 	public boolean isRoot() {
@@ -0,0 +1,139 @@
+package com.pega.charlatan.node.bean;
+
+/**
+ * Single write of a node batch, see {@link com.pega.charlatan.node.dao.NodeDao#executeBatch}.
+ * <p>
+ * Every operation has a precondition: the batch fails if the node doesn't exist (create: if it already exists)
+ * or if the node version doesn't match the expected version. Expected version -1 matches any version.
+ * Cversion increment is relative, its precondition is the expected cversion, so a sequence number taken by another
+ * write fails the batch instead of being allocated twice. Update increments the node version the same way.
+ */
+public class NodeOperation {
+
+	public enum Type {
+		CREATE,
+		DELETE,
+		UPDATE,
+		INCREMENT_CVERSION,
+		CHECK
+	}
+
+	private Type type;
+	private String path;
+	// Node to create
+	private Node node;
+	private byte[] data;
+	private int version = -1;
+	private int cversion = -1;
+	private long modificationTime;
+
+	public NodeOperation() {
+	}
+
+	private NodeOperation(Type type, String path) {
+		this.type = type;
+		this.path = path;
+	}
+
+	public static NodeOperation create(Node node) {
+		NodeOperation op = new NodeOperation(Type.CREATE, node.getPath());
+		op.node = node;
+		return op;
+	}
+
+	public static NodeOperation delete(String path, int version) {
+		NodeOperation op = new NodeOperation(Type.DELETE, path);
+		op.version = version;
+		return op;
+	}
+
+	public static NodeOperation update(String path, byte[] data, int version, long modificationTime) {
+		NodeOperation op = new NodeOperation(Type.UPDATE, path);
+		op.data = data;
+		op.version = version;
+		op.modificationTime = modificationTime;
+		return op;
+	}
+
+	/**
+	 * @param cversion expected cversion before the increment, -1 if any cversion matches
+	 */
+	public static NodeOperation incrementCVersion(String path, int cversion) {
+		NodeOperation op = new NodeOperation(Type.INCREMENT_CVERSION, path);
+		op.cversion = cversion;
+		return op;
+	}
+
+	public static NodeOperation check(String path, int version) {
+		NodeOperation op = new NodeOperation(Type.CHECK, path);
+		op.version = version;
+		return op;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public Node getNode() {
+		return node;
+	}
+
+	public void setNode(Node node) {
+		this.node = node;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public void setData(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * Expected node version, -1 if any version matches.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	/**
+	 * Expected cversion of the cversion increment, -1 if any cversion matches.
+	 */
+	public int getCversion() {
+		return cversion;
+	}
+
+	public void setCversion(int cversion) {
+		this.cversion = cversion;
+	}
+
+	public long getModificationTime() {
+		return modificationTime;
+	}
+
+	public void setModificationTime(long modificationTime) {
+		this.modificationTime = modificationTime;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + path;
+	}
+}
@@ -8,6 +8,8 @@ import java.util.Objects;
  * Created by natalia on 7/17/17.
  */
 public class NodeUpdate {
+	// Sequence number assigned by NodeUpdateDao, increases with every stored update
+	private long id;
 	private EventType eventType;
 	private String path;
 	private long timestamp;
@@ -24,6 +26,14 @@ public class NodeUpdate {
 		this.emitterId = emitterId;
 	}
 
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
 	public EventType getEventType() {
 		return eventType;
 	}
@@ -65,7 +75,7 @@ public class NodeUpdate {
 	public boolean equals(Object obj) {
 		if (obj instanceof NodeUpdate) {
 			NodeUpdate other = (NodeUpdate) obj;
-			return Objects.equals(eventType, other.getEventType()) && Objects.equals(path, other.getPath()) && Objects.equals(timestamp, other.getTimestamp())
+			return id == other.getId() && Objects.equals(eventType, other.getEventType()) && Objects.equals(path, other.getPath()) && Objects.equals(timestamp, other.getTimestamp())
 					&& Objects.equals(emitterId, other.getEmitterId());
 		}
 		return false;
@@ -73,6 +83,6 @@ public class NodeUpdate {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(eventType, emitterId, path, timestamp);
+		return Objects.hash(id, eventType, emitterId, path, timestamp);
 	}
 }
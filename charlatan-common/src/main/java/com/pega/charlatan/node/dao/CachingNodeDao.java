@@ -0,0 +1,305 @@
+package com.pega.charlatan.node.dao;
+
+import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import com.pega.charlatan.watches.service.WatchedEventListener;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NodeDao decorator that keeps recently read nodes in memory.
+ * <p>
+ * The cache is bounded by the number of nodes and by the approximate size of their data and children, least
+ * recently used nodes are evicted first.
+ * Nodes are invalidated by the writes done through this dao and by remote WatchedEvents, so the cache must be
+ * registered as node update listener of the WatchService (see {@link com.pega.charlatan.watches.service.WatchService#addNodeUpdateListener}).
+ * Changes done by other servers become visible when their node updates are pulled.
+ * <p>
+ * Nodes are keyed by the path string of the cached node itself, so a cached path is not copied.
+ */
+public class CachingNodeDao implements NodeDao, WatchedEventListener {
+
+	// Approximate memory used by a cached node besides its path, data and children
+	private static final int NODE_OVERHEAD = 200;
+
+	private final NodeDao nodeDao;
+	private final int maxNodes;
+	private final long maxBytes;
+
+	// Access ordered: iteration starts from the least recently used node
+	private final LinkedHashMap<String, CachedNode> nodes;
+	private long cachedBytes;
+
+	// Reads in progress by path, removed by the invalidation of the path so a node read before it is not cached
+	private final Map<String, PendingRead> reads;
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+
+	/**
+	 * @param nodeDao  dao that stores the nodes
+	 * @param maxNodes maximum number of cached nodes
+	 * @param maxBytes maximum approximate size of cached nodes in bytes
+	 */
+	public CachingNodeDao(NodeDao nodeDao, int maxNodes, long maxBytes) {
+		if (maxNodes <= 0) {
+			throw new IllegalArgumentException("Max nodes must be > 0");
+		}
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Max bytes must be > 0");
+		}
+
+		this.nodeDao = nodeDao;
+		this.maxNodes = maxNodes;
+		this.maxBytes = maxBytes;
+		this.nodes = new LinkedHashMap<>(16, 0.75f, true);
+		this.reads = new HashMap<>();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	@Override
+	public boolean create(long session, Node node) throws RecordNotFoundException {
+		try {
+			return nodeDao.create(session, node);
+		} finally {
+			invalidate(node.getPath());
+			invalidate(node.getParentPath());
+		}
+	}
+
+	@Override
+	public String createSequential(long session, Node node) throws RecordNotFoundException {
+		String path = null;
+		try {
+			path = nodeDao.createSequential(session, node);
+			return path;
+		} finally {
+			if (path != null) {
+				invalidate(path);
+			}
+			invalidate(node.getParentPath());
+		}
+	}
+
+	@Override
+	public boolean delete(Node node) {
+		try {
+			return nodeDao.delete(node);
+		} finally {
+			invalidate(node.getPath());
+			invalidate(node.getParentPath());
+		}
+	}
+
+	@Override
+	public Node get(String path) throws RecordNotFoundException {
+		PendingRead read;
+		synchronized (nodes) {
+			CachedNode cached = nodes.get(path);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return new Node(cached.node);
+			}
+
+			read = reads.get(path);
+			if (read == null) {
+				read = new PendingRead();
+				reads.put(path, read);
+			}
+			read.readers++;
+		}
+
+		misses.incrementAndGet();
+
+		Node node = null;
+		try {
+			node = nodeDao.get(path);
+			return node;
+		} finally {
+			put(path, node, read);
+		}
+	}
+
+	@Override
+	public void update(String path, byte[] data, int newVersion, long modificationTime) {
+		try {
+			nodeDao.update(path, data, newVersion, modificationTime);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public Stat compareAndSet(String path, int expectedVersion, byte[] data, long modificationTime) throws RecordNotFoundException {
+		try {
+			return nodeDao.compareAndSet(path, expectedVersion, data, modificationTime);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public void incrementCVersion(String path) {
+		try {
+			nodeDao.incrementCVersion(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public List<String> getEphemeralPaths(long session) {
+		return nodeDao.getEphemeralPaths(session);
+	}
+
+	@Override
+	public int executeBatch(long session, List<NodeOperation> operations) {
+		try {
+			return nodeDao.executeBatch(session, operations);
+		} finally {
+			for (NodeOperation operation : operations) {
+				if (operation.getType() != NodeOperation.Type.CHECK) {
+					invalidate(operation.getPath());
+					invalidate(Node.parentOf(operation.getPath()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidates nodes changed by remote servers.
+	 *
+	 * @param event
+	 * @param blocking
+	 */
+	@Override
+	public void processWatchedEvent(WatchedEvent event, boolean blocking) {
+		String path = event.getPath();
+		if (path == null) {
+			return;
+		}
+
+		// Create and delete change the parent children, data change doesn't but is rare enough to not care
+		invalidate(path);
+		invalidate(Node.parentOf(path));
+	}
+
+	/**
+	 * Removes the node from the cache.
+	 *
+	 * @param path
+	 */
+	public void invalidate(String path) {
+		if (path == null) {
+			return;
+		}
+
+		synchronized (nodes) {
+			reads.remove(path);
+
+			CachedNode removed = nodes.remove(path);
+			if (removed != null) {
+				cachedBytes -= removed.size;
+			}
+		}
+	}
+
+	/**
+	 * Removes all the nodes from the cache.
+	 */
+	public void invalidateAll() {
+		synchronized (nodes) {
+			reads.clear();
+			nodes.clear();
+			cachedBytes = 0;
+		}
+	}
+
+	public int size() {
+		synchronized (nodes) {
+			return nodes.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Caches the node read by the pending read, unless the path was invalidated since the read started.
+	 *
+	 * @param node null if the read failed
+	 */
+	private void put(String path, Node node, PendingRead read) {
+		CachedNode cached = node != null ? new CachedNode(node) : null;
+
+		synchronized (nodes) {
+			boolean current = reads.get(path) == read;
+			if (--read.readers == 0 && current) {
+				reads.remove(path);
+			}
+
+			// Node was changed while it was read, the read value may be stale
+			if (cached == null || !current || cached.size > maxBytes) {
+				return;
+			}
+
+			CachedNode previous = nodes.put(cached.node.getPath(), cached);
+			if (previous != null) {
+				cachedBytes -= previous.size;
+			}
+			cachedBytes += cached.size;
+
+			Iterator<Map.Entry<String, CachedNode>> it = nodes.entrySet().iterator();
+			while ((nodes.size() > maxNodes || cachedBytes > maxBytes) && it.hasNext()) {
+				CachedNode evicted = it.next().getValue();
+				it.remove();
+				cachedBytes -= evicted.size;
+			}
+		}
+	}
+
+	private static class PendingRead {
+		// Guarded by the nodes lock
+		private int readers;
+	}
+
+	private static class CachedNode {
+		private final Node node;
+		private final long size;
+
+		CachedNode(Node node) {
+			this.node = new Node(node);
+
+			long size = NODE_OVERHEAD + 2L * node.getPath().length();
+			if (node.getData() != null) {
+				size += node.getData().length;
+			}
+
+			List<String> children = node.getChildren();
+			if (children != null) {
+				// Cached children are shared by all the readers
+				this.node.setChildren(Collections.unmodifiableList(new ArrayList<>(children)));
+				for (String child : children) {
+					size += 40 + 2L * child.length();
+				}
+			}
+
+			this.size = size;
+		}
+	}
+}
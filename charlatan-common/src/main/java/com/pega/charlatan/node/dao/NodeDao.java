@@ -2,6 +2,8 @@ package com.pega.charlatan.node.dao;
 
 
 import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import org.apache.zookeeper.data.Stat;
 
 import java.util.List;
 
@@ -19,9 +21,18 @@ public interface NodeDao {
 	boolean create(long session, Node node) throws RecordNotFoundException;
 
 	/**
-	 * Deletes node
+	 * Creates a sequential node: the path of the given node is suffixed with the parent cversion, which is incremented.
+	 * The sequence number is allocated and the node is created atomically.
 	 *
-	 * @return
+	 * @return path of the created node, null if a node with the sequential path already existed
+	 * @throws RecordNotFoundException In case parent node doesn't exist
+	 */
+	String createSequential(long session, Node node) throws RecordNotFoundException;
+
+	/**
+	 * Deletes the node if it has the version of the given node (any version if negative) and has no children.
+	 *
+	 * @return false if the node doesn't exist, has another version or has children
 	 */
 	boolean delete(Node node);
 
@@ -40,7 +51,21 @@ public interface NodeDao {
 	 */
 	void update(String path, byte[] data, int newVersion, long modificationTime);
 
-	void updateCVersion(String path, int cversion);
+	/**
+	 * Replaces the node data if the node has the expected version, incrementing the version.
+	 * The version check and the update are done atomically.
+	 *
+	 * @param expectedVersion  expected node version, any version if negative
+	 * @param modificationTime new node modification time
+	 * @return stat of the updated node, null if the node has another version
+	 * @throws RecordNotFoundException In case node doesn't exist
+	 */
+	Stat compareAndSet(String path, int expectedVersion, byte[] data, long modificationTime) throws RecordNotFoundException;
+
+	/**
+	 * Increments the node cversion atomically. Does nothing if the node doesn't exist.
+	 */
+	void incrementCVersion(String path);
 
 	/**
 	 * Returns list of epephemeral nodes of the requested session
@@ -49,4 +74,13 @@ public interface NodeDao {
 	 * @return
 	 */
 	List<String> getEphemeralPaths(long session);
+
+	/**
+	 * Executes all the operations atomically: either all of them are applied or none.
+	 *
+	 * @param session    session of the created ephemeral nodes
+	 * @param operations operations in execution order
+	 * @return -1 if the batch was applied, otherwise index of the operation which precondition failed
+	 */
+	int executeBatch(long session, List<NodeOperation> operations);
 }
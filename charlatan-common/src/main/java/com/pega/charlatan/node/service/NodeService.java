@@ -1,7 +1,10 @@
 package com.pega.charlatan.node.service;
 
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
@@ -13,8 +16,22 @@ import java.util.List;
  */
 public interface NodeService {
 
+	/**
+	 * Removes ephemeral nodes of the session.
+	 *
+	 * @param session
+	 */
 	void close(long session);
 
+	/**
+	 * Removes ephemeral nodes of the session and all the watches registered by the session watcher.
+	 * The watcher is notified with Disconnected event if it had any watches.
+	 *
+	 * @param session
+	 * @param watcher
+	 */
+	void close(long session, Watcher watcher);
+
 	/**
 	 * Create a node with the given path and data.
 	 * <p>
@@ -154,7 +171,36 @@ public interface NodeService {
 	 */
 	Stat exists(String path, Watcher watcher);
 
+	/**
+	 * Executes multiple ZooKeeper operations or none of them.
+	 * <p>
+	 * If all the operations succeed, the list contains the result of every operation, in the order of the operations.
+	 * Otherwise nothing is applied and the list contains an {@link OpResult.ErrorResult} for every operation:
+	 * operations before the failed one have {@link KeeperException.Code#OK}, the failed one has the error code and
+	 * the following ones have {@link KeeperException.Code#RUNTIMEINCONSISTENCY}.
+	 * <p>
+	 * Watches are triggered as if the operations were executed one by one, but only if all of them succeed.
+	 *
+	 * @param session session of the created ephemeral nodes
+	 * @param ops     operations to execute
+	 * @return results of the operations
+	 */
+	List<OpResult> multi(long session, List<Op> ops);
+
 	void removeEphemeralSessionNodes(long session);
 
 	void registerWatch(Watcher watcher, List<String> dataWatches, List<String> childWatches, List<String> existWatches);
+
+	/**
+	 * Add a watch to the given path that is not removed when triggered. The watch stays until the session
+	 * is closed.
+	 * <p>
+	 * With {@link AddWatchMode#PERSISTENT_RECURSIVE} the watch is triggered also by the changes of all the nodes
+	 * under the path, including the nodes created later, so a single watch covers the whole subtree.
+	 *
+	 * @param basePath the path to watch, the node doesn't need to exist
+	 * @param watcher  the watcher
+	 * @param mode     persistent or persistent recursive
+	 */
+	void addWatch(String basePath, Watcher watcher, AddWatchMode mode);
 }
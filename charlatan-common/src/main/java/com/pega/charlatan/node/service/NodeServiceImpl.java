@@ -1,6 +1,7 @@
 package com.pega.charlatan.node.service;
 
 import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
 import com.pega.charlatan.node.dao.NodeDao;
 import com.pega.charlatan.node.dao.RecordNotFoundException;
 import com.pega.charlatan.watches.service.WatchService;
@@ -10,7 +11,10 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by natalia on 7/19/17.
@@ -24,6 +28,10 @@ public class NodeServiceImpl implements NodeService {
 
 	private Logger logger = LoggerFactory.getLogger(NodeServiceImpl.class.getName());
 
+	// Attempts of a multi which sequence numbers or nodes read without version are changed by concurrent writes
+	private static final int MAX_MULTI_ATTEMPTS = 10;
+	private static final String ROOT_PATH = "/";
+
 	public NodeServiceImpl(NodeDao zkDatabase, WatchService watchService){
 
 		this.zkDatabase = zkDatabase;
@@ -36,7 +44,13 @@ public class NodeServiceImpl implements NodeService {
 	@Override
 	public void close(long session) {
 		removeEphemeralSessionNodes(session);
-		processEvent(new WatchedEvent(Watcher.Event.EventType.None, Watcher.Event.KeeperState.Disconnected, null));
+	}
+
+	@Override
+	public void close(long session, Watcher watcher) {
+		close(session);
+		// Only the closed session is interested in its disconnect, watches of other sessions are not touched
+		watchService.removeWatcher(watcher, new WatchedEvent(Watcher.Event.EventType.None, Watcher.Event.KeeperState.Disconnected, null));
 	}
 
 	@Override
@@ -44,20 +58,16 @@ public class NodeServiceImpl implements NodeService {
 		final Node node = new Node(path, data, createMode);
 
 		try {
-			if (!node.isRoot()) {
-				Node parent = zkDatabase.get(node.getParentPath());
-				int cversion = parent.getStat().getCversion();
-
-				if (createMode.isSequential()) {
-					// The number of changes to the children of this znode.
-					path = path + String.format("%010d", cversion);
-					node.setPath(path);
+			if (!node.isRoot() && createMode.isSequential()) {
+				// The sequence number is the number of changes to the children of the parent, allocated by the dao
+				String sequentialPath = zkDatabase.createSequential(session, node);
+				if (sequentialPath == null) {
+					throw new KeeperException.NodeExistsException();
 				}
 
-				// Small optimization: sequential branches are never created in the root
-				if (!parent.isRoot()) {
-					zkDatabase.updateCVersion(parent.getPath(), cversion + 1);
-				}
+				node.setPath(sequentialPath);
+				sendNewNodeEvents(node);
+				return sequentialPath;
 			}
 
 			long now = System.currentTimeMillis();
@@ -65,6 +75,11 @@ public class NodeServiceImpl implements NodeService {
 			node.getStat().setMtime(now);
 
 			if (zkDatabase.create(session, node)) {
+				// Small optimization: the root cversion is only used to number sequential nodes created in the root
+				String parentPath = node.getParentPath();
+				if (parentPath != null && !ROOT_PATH.equals(parentPath)) {
+					zkDatabase.incrementCVersion(parentPath);
+				}
 				sendNewNodeEvents(node);
 				return node.getPath();
 			}
@@ -184,21 +199,21 @@ public class NodeServiceImpl implements NodeService {
 
 	@Override
 	public Stat setData(String path, byte[] data, int version) throws KeeperException {
+		Stat stat;
+		try {
+			// The version is checked by the dao in the same operation as the update
+			stat = zkDatabase.compareAndSet(path, version, data, System.currentTimeMillis());
+		} catch (RecordNotFoundException e) {
+			throw new KeeperException.NoNodeException(path);
+		}
 
-
-		Node node = getNode(path);
-
-		if (version >= 0 && node.getStat().getVersion() != version) {
+		if (stat == null) {
 			throw new KeeperException.BadVersionException(path);
 		}
 
-		zkDatabase.update(path, data, version + 1, System.currentTimeMillis());
-
-		node = getNode(path);
-
 		processEvent(new WatchedEvent(Watcher.Event.EventType.NodeDataChanged, Watcher.Event.KeeperState.SyncConnected, path));
 
-		return new Stat(node.getStat());
+		return stat;
 	}
 
 	@Override
@@ -222,6 +237,255 @@ public class NodeServiceImpl implements NodeService {
 		return stat;
 	}
 
+	@Override
+	public List<OpResult> multi(long session, List<Op> ops) {
+		for (int attempt = 1; ; attempt++) {
+			List<OpResult> results = tryMulti(session, ops, attempt == MAX_MULTI_ATTEMPTS);
+			if (results != null) {
+				return results;
+			}
+		}
+	}
+
+	/**
+	 * Validates the ops and executes them as a single batch.
+	 *
+	 * @param lastAttempt true to report a sequence number taken by a concurrent write as an error instead of a retry
+	 * @return null if a sequence number allocated by the batch was taken by a concurrent write, or a node updated
+	 * without version was updated by a concurrent write
+	 */
+	private List<OpResult> tryMulti(long session, List<Op> ops, boolean lastAttempt) {
+		// Nodes as they are after the already validated operations, null value means that the node is deleted
+		Map<String, Node> pending = new HashMap<>();
+		List<NodeOperation> operations = new ArrayList<>();
+		// Index of the op every node operation belongs to
+		List<Integer> operationOps = new ArrayList<>();
+		List<OpResult> results = new ArrayList<>(ops.size());
+		List<WatchedEvent> events = new ArrayList<>();
+		long now = System.currentTimeMillis();
+
+		for (int i = 0; i < ops.size(); i++) {
+			try {
+				results.add(prepareOperation(ops.get(i), pending, operations, events, now));
+			} catch (KeeperException e) {
+				return getErrorResults(ops.size(), i, e.code());
+			} catch (IllegalArgumentException e) {
+				return getErrorResults(ops.size(), i, KeeperException.Code.BADARGUMENTS);
+			}
+
+			while (operationOps.size() < operations.size()) {
+				operationOps.add(i);
+			}
+		}
+
+		int failed = operations.isEmpty() ? -1 : zkDatabase.executeBatch(session, operations);
+
+		if (failed >= 0) {
+			// Node was changed by someone else after the batch was validated
+			NodeOperation operation = operations.get(failed);
+			Op op = ops.get(operationOps.get(failed));
+			KeeperException.Code code;
+			if (operation.getType() == NodeOperation.Type.INCREMENT_CVERSION && operation.getCversion() >= 0) {
+				if (!lastAttempt) {
+					// Validate the ops again against the parent with the new cversion
+					return null;
+				}
+				code = KeeperException.Code.NODEEXISTS;
+			} else if (operation.getType() == NodeOperation.Type.UPDATE && ((Op.SetData) op).getVersion() < 0) {
+				if (!lastAttempt) {
+					// Validate the ops again against the node with the new version
+					return null;
+				}
+				code = KeeperException.Code.BADVERSION;
+			} else if (operation.getType() == NodeOperation.Type.CREATE) {
+				code = KeeperException.Code.NODEEXISTS;
+			} else if (operation.getVersion() >= 0) {
+				code = KeeperException.Code.BADVERSION;
+			} else {
+				code = KeeperException.Code.NONODE;
+			}
+			return getErrorResults(ops.size(), operationOps.get(failed), code);
+		}
+
+		for (WatchedEvent event : events) {
+			processEvent(event);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Validates the op against the nodes state after the previous ops and adds its node operations to the batch.
+	 */
+	private OpResult prepareOperation(Op op, Map<String, Node> pending, List<NodeOperation> operations, List<WatchedEvent> events, long now) throws KeeperException {
+		String path = op.getPath();
+
+		switch (op.getType()) {
+			case ZooDefs.OpCode.create: {
+				Op.Create create = (Op.Create) op;
+				Node node = new Node(path, create.getData(), CreateMode.fromFlag(create.getFlags()));
+
+				Node parent = getPendingNode(pending, node.getParentPath());
+				if (parent == null) {
+					throw new KeeperException.NoNodeException(node.getParentPath());
+				}
+				if (parent.getMode() != null && parent.getMode().isEphemeral()) {
+					throw new KeeperException.NoChildrenForEphemeralsException(path);
+				}
+
+				int cversion = parent.getStat().getCversion();
+				if (node.getMode().isSequential()) {
+					node.setPath(Node.getSequentialPath(node.getPath(), cversion));
+				}
+
+				if (getPendingNode(pending, node.getPath()) != null) {
+					throw new KeeperException.NodeExistsException(node.getPath());
+				}
+
+				node.getStat().setCtime(now);
+				node.getStat().setMtime(now);
+
+				// The sequence number is allocated by the batch, which fails if a concurrent write took it.
+				// Same as single create: the root cversion is only incremented by sequential nodes
+				Node updatedParent = withChild(parent, node, true);
+				if (node.getMode().isSequential()) {
+					operations.add(NodeOperation.incrementCVersion(parent.getPath(), cversion));
+					updatedParent.getStat().setCversion(cversion + 1);
+				} else if (!parent.isRoot()) {
+					operations.add(NodeOperation.incrementCVersion(parent.getPath(), -1));
+					updatedParent.getStat().setCversion(cversion + 1);
+				}
+				operations.add(NodeOperation.create(node));
+
+				Node created = new Node(node);
+				created.setChildren(new ArrayList<String>());
+				pending.put(node.getPath(), created);
+				pending.put(parent.getPath(), updatedParent);
+
+				events.add(new WatchedEvent(Watcher.Event.EventType.NodeCreated, Watcher.Event.KeeperState.SyncConnected, node.getPath()));
+				events.add(new WatchedEvent(Watcher.Event.EventType.NodeChildrenChanged, Watcher.Event.KeeperState.SyncConnected, node.getParentPath()));
+
+				return new OpResult.CreateResult(node.getPath());
+			}
+			case ZooDefs.OpCode.delete: {
+				Op.Delete delete = (Op.Delete) op;
+				Node node = getExistingPendingNode(pending, path, delete.getVersion());
+
+				if (node.getChildren() != null && node.getChildren().size() > 0) {
+					throw new KeeperException.NotEmptyException(path);
+				}
+
+				operations.add(NodeOperation.delete(path, delete.getVersion()));
+
+				pending.put(path, null);
+				Node parent = getPendingNode(pending, node.getParentPath());
+				if (parent != null) {
+					pending.put(parent.getPath(), withChild(parent, node, false));
+				}
+
+				events.add(new WatchedEvent(Watcher.Event.EventType.NodeDeleted, Watcher.Event.KeeperState.SyncConnected, path));
+				events.add(new WatchedEvent(Watcher.Event.EventType.NodeChildrenChanged, Watcher.Event.KeeperState.SyncConnected, node.getParentPath()));
+
+				return new OpResult.DeleteResult();
+			}
+			case ZooDefs.OpCode.setData: {
+				Op.SetData setData = (Op.SetData) op;
+				Node node = getExistingPendingNode(pending, path, setData.getVersion());
+
+				// Always expects the read version, even without version: the result has the version of this update
+				int newVersion = node.getStat().getVersion() + 1;
+				operations.add(NodeOperation.update(path, setData.getData(), node.getStat().getVersion(), now));
+
+				Node updated = new Node(node);
+				updated.setData(setData.getData());
+				updated.getStat().setVersion(newVersion);
+				updated.getStat().setMtime(now);
+				updated.getStat().setDataLength(setData.getData() != null ? setData.getData().length : 0);
+				pending.put(path, updated);
+
+				events.add(new WatchedEvent(Watcher.Event.EventType.NodeDataChanged, Watcher.Event.KeeperState.SyncConnected, path));
+
+				return new OpResult.SetDataResult(new Stat(updated.getStat()));
+			}
+			case ZooDefs.OpCode.check: {
+				Op.Check check = (Op.Check) op;
+				getExistingPendingNode(pending, path, check.getVersion());
+
+				operations.add(NodeOperation.check(path, check.getVersion()));
+
+				return new OpResult.CheckResult();
+			}
+			default:
+				throw new KeeperException.BadArgumentsException(path);
+		}
+	}
+
+	private Node getPendingNode(Map<String, Node> pending, String path) {
+		if (pending.containsKey(path)) {
+			return pending.get(path);
+		}
+
+		try {
+			return zkDatabase.get(path);
+		} catch (RecordNotFoundException e) {
+			return null;
+		}
+	}
+
+	private Node getExistingPendingNode(Map<String, Node> pending, String path, int version) throws KeeperException {
+		Node node = getPendingNode(pending, path);
+
+		if (node == null) {
+			throw new KeeperException.NoNodeException(path);
+		}
+		if (version >= 0 && node.getStat().getVersion() != version) {
+			throw new KeeperException.BadVersionException(path);
+		}
+
+		return node;
+	}
+
+	/**
+	 * Returns copy of the parent with the child added or removed. The cversion is not changed, it is incremented
+	 * only together with the cversion increment of the batch.
+	 */
+	private static Node withChild(Node parent, Node child, boolean add) {
+		String name = Node.nameOf(child.getPath());
+
+		List<String> children = parent.getChildren() != null ? new ArrayList<>(parent.getChildren()) : new ArrayList<String>();
+		if (add) {
+			children.add(name);
+		} else {
+			children.remove(name);
+		}
+
+		Node copy = new Node(parent);
+		copy.setChildren(children);
+		copy.getStat().setNumChildren(children.size());
+		return copy;
+	}
+
+	/**
+	 * All ops before the failed one are reported as OK, all ops after it as RUNTIMEINCONSISTENCY.
+	 */
+	private static List<OpResult> getErrorResults(int count, int failed, KeeperException.Code code) {
+		List<OpResult> results = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			KeeperException.Code resultCode;
+			if (i < failed) {
+				resultCode = KeeperException.Code.OK;
+			} else if (i == failed) {
+				resultCode = code;
+			} else {
+				resultCode = KeeperException.Code.RUNTIMEINCONSISTENCY;
+			}
+			results.add(new OpResult.ErrorResult(resultCode.intValue()));
+		}
+
+		return results;
+	}
+
 	@Override
 	public void registerWatch(Watcher watcher, List<String> dataWatches, List<String> childWatches, List<String> existWatches) {
 		if (dataWatches != null) {
@@ -244,6 +508,11 @@ public class NodeServiceImpl implements NodeService {
 
 	}
 
+	@Override
+	public void addWatch(String basePath, Watcher watcher, AddWatchMode mode) {
+		watchService.registerPersistentWatch(watcher, basePath, mode == AddWatchMode.PERSISTENT_RECURSIVE);
+	}
+
 	protected void processEvent(WatchedEvent event) {
 		watchService.processLocalWatchedEvent(event);
 	}
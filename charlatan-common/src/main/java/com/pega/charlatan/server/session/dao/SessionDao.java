@@ -3,6 +3,7 @@ package com.pega.charlatan.server.session.dao;
 import com.pega.charlatan.node.dao.RecordNotFoundException;
 import com.pega.charlatan.server.session.bean.Session;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -22,6 +23,13 @@ public interface SessionDao {
 	 */
 	void updateSession(Session session);
 
+	/**
+	 * Update details of a number of sessions at once.
+	 *
+	 * @param sessions
+	 */
+	void updateSessions(Collection<Session> sessions);
+
 	/**
 	 * Delete session by UUID.
 	 *
@@ -2,6 +2,7 @@ package com.pega.charlatan.server.session.service;
 
 import com.pega.charlatan.server.session.bean.Session;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -10,6 +11,8 @@ public interface SessionService {
 
 	void updateSession(Session session);
 
+	void updateSessions(Collection<Session> sessions);
+
 	void deleteSession(UUID uuid);
 
 	List<Session> getStaleSessions(long maxLastSeen);
@@ -3,6 +3,7 @@ package com.pega.charlatan.server.session.service;
 import com.pega.charlatan.server.session.bean.Session;
 import com.pega.charlatan.server.session.dao.SessionDao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -24,6 +25,11 @@ public class SessionServiceImpl implements SessionService {
 		sessionDao.updateSession(session);
 	}
 
+	@Override
+	public void updateSessions(Collection<Session> sessions) {
+		sessionDao.updateSessions(sessions);
+	}
+
 	@Override
 	public void deleteSession(UUID uuid) {
 		sessionDao.deleteSession(uuid);
@@ -0,0 +1,93 @@
+package com.pega.charlatan.server.session.service;
+
+import com.pega.charlatan.server.session.bean.Session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Session service that keeps session heartbeats in memory and writes them to the delegate in batches.
+ * <p>
+ * A session updated many times between two flushes is written once, with its latest last seen time. Flushes must
+ * happen well within the stale session timeout, otherwise other servers may consider the sessions of this server
+ * stale. Stale sessions are read only after the pending heartbeats are flushed, so this server never sees its own
+ * live sessions as stale.
+ */
+public class WriteBehindSessionService implements SessionService {
+
+	private final SessionService sessionService;
+	private final ConcurrentMap<UUID, Session> pendingSessions = new ConcurrentHashMap<>();
+
+	public WriteBehindSessionService(SessionService sessionService) {
+		this.sessionService = sessionService;
+	}
+
+	@Override
+	public void registerSession(String serverId, Session session) {
+		sessionService.registerSession(serverId, session);
+	}
+
+	/**
+	 * Schedules the session to be written by the next flush.
+	 */
+	@Override
+	public void updateSession(Session session) {
+		pendingSessions.put(session.getUuid(), session);
+	}
+
+	@Override
+	public void updateSessions(Collection<Session> sessions) {
+		for (Session session : sessions) {
+			updateSession(session);
+		}
+	}
+
+	@Override
+	public void deleteSession(UUID uuid) {
+		pendingSessions.remove(uuid);
+		sessionService.deleteSession(uuid);
+	}
+
+	@Override
+	public List<Session> getStaleSessions(long maxLastSeen) {
+		flush();
+		return sessionService.getStaleSessions(maxLastSeen);
+	}
+
+	/**
+	 * Writes the pending sessions. Sessions that failed to be written stay pending, unless they were updated again.
+	 */
+	public synchronized void flush() {
+		List<Session> sessions = new ArrayList<>();
+		for (UUID uuid : pendingSessions.keySet()) {
+			Session session = pendingSessions.remove(uuid);
+			if (session != null) {
+				sessions.add(session);
+			}
+		}
+
+		if (sessions.isEmpty()) {
+			return;
+		}
+
+		try {
+			sessionService.updateSessions(sessions);
+		} catch (RuntimeException e) {
+			for (Session session : sessions) {
+				pendingSessions.putIfAbsent(session.getUuid(), session);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Number of sessions waiting for the next flush.
+	 */
+	public int getPendingSessions() {
+		return pendingSessions.size();
+	}
+}
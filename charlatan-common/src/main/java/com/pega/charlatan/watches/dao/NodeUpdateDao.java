@@ -11,7 +11,36 @@ public interface NodeUpdateDao {
 
 	void insertUpdate(NodeUpdate update);
 
-	List<NodeUpdate> getNodeUpdates(int thisBroker, long fromTimestamp);
+	/**
+	 * Stores the updates at once, ids of the updates increase in the list order.
+	 */
+	void insertUpdates(List<NodeUpdate> updates);
 
-	void clearOldUpdates(long toMs);
+	/**
+	 * Returns id of the latest stored update, 0 if there are no updates.
+	 * Ids of the stored updates always increase.
+	 */
+	long getLastUpdateId();
+
+	/**
+	 * Returns updates with id greater than afterId emitted by other brokers.
+	 *
+	 * @param thisBroker emitter id of the caller, its own updates are skipped
+	 * @param afterId    id of the last update seen by the caller
+	 * @param limit      maximum number of returned updates
+	 * @return updates ordered by id
+	 */
+	List<NodeUpdate> getNodeUpdates(int thisBroker, long afterId, int limit);
+
+	/**
+	 * Deletes the oldest updates that are older than toMs or that have more than keepUpdates newer updates.
+	 * The latest update and the updates after lastReadId are never deleted.
+	 *
+	 * @param toMs        updates older than this time are deleted
+	 * @param keepUpdates maximum number of kept updates, the older ones are deleted even if they are newer than toMs
+	 * @param lastReadId  id of the last update read by the caller, newer updates are kept
+	 * @param limit       maximum number of deleted updates
+	 * @return number of deleted updates, less than limit if there are no more updates to delete
+	 */
+	int clearOldUpdates(long toMs, long keepUpdates, long lastReadId, int limit);
 }
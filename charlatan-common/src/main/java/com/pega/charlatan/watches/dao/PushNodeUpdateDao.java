@@ -0,0 +1,23 @@
+package com.pega.charlatan.watches.dao;
+
+import com.pega.charlatan.node.bean.NodeUpdate;
+
+import java.util.List;
+
+/**
+ * NodeUpdateDao that can deliver new updates as soon as they are stored, instead of being polled.
+ */
+public interface PushNodeUpdateDao extends NodeUpdateDao {
+
+	/**
+	 * Same as {@link #getNodeUpdates(int, long, int)}, but waits until there are updates with id greater than afterId emitted by other brokers.
+	 *
+	 * @param thisBroker emitter id of the caller, its own updates are skipped
+	 * @param afterId    id of the last update seen by the caller
+	 * @param limit      maximum number of returned updates
+	 * @param timeoutMs  maximum time to wait
+	 * @return updates ordered by id, empty list if there were no updates within the timeout
+	 * @throws InterruptedException
+	 */
+	List<NodeUpdate> awaitNodeUpdates(int thisBroker, long afterId, int limit, long timeoutMs) throws InterruptedException;
+}
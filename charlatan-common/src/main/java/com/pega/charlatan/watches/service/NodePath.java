@@ -0,0 +1,217 @@
+package com.pega.charlatan.watches.service;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interned znode path of the watch cache. There is a single instance of every watched path, so a path can be shared
+ * as a key by the watches instead of every one of them keeping its own copy of the string. Being unique, paths are
+ * compared by identity. Nodes, the node cache and the daos keep plain path strings.
+ * <p>
+ * A path only keeps its name and its interned parent, the path string is built by {@link #toString()} when needed.
+ * Children are held weakly by their parent: a path that is no longer referenced by any watch or child path is
+ * garbage collected.
+ */
+final class NodePath {
+
+	private static final char SEP = '/';
+
+	private static final NodePath ROOT = new NodePath(null, "");
+
+	private static final ReferenceQueue<NodePath> collected = new ReferenceQueue<>();
+
+	private final NodePath parent;
+	private final String name;
+	private volatile ConcurrentMap<String, ChildReference> children;
+
+	private NodePath(NodePath parent, String name) {
+		this.parent = parent;
+		this.name = name;
+	}
+
+	public static NodePath root() {
+		return ROOT;
+	}
+
+	/**
+	 * Returns the interned instance of the path, interning it if needed.
+	 *
+	 * @param path absolute path
+	 */
+	public static NodePath of(String path) {
+		checkPath(path);
+
+		NodePath nodePath = ROOT;
+		int start = 1;
+		while (start < path.length()) {
+			int end = segmentEnd(path, start);
+			nodePath = nodePath.getChild(path.substring(start, end));
+			start = end + 1;
+		}
+		return nodePath;
+	}
+
+	/**
+	 * Returns the interned instance of the path without interning it.
+	 *
+	 * @return null if the path is not interned, which means nothing references it
+	 */
+	public static NodePath find(String path) {
+		NodePath closest = findClosest(path);
+		return closest != null && closest.length() == path.length() ? closest : null;
+	}
+
+	/**
+	 * Returns the longest interned prefix of the path without interning anything, the root at worst.
+	 *
+	 * @param path absolute path
+	 */
+	public static NodePath findClosest(String path) {
+		checkPath(path);
+
+		NodePath nodePath = ROOT;
+		int start = 1;
+		while (start < path.length()) {
+			int end = segmentEnd(path, start);
+			NodePath child = nodePath.findChild(path.substring(start, end));
+			if (child == null) {
+				return nodePath;
+			}
+			nodePath = child;
+			start = end + 1;
+		}
+		return nodePath;
+	}
+
+	/**
+	 * Returns the interned path of the child, interning it if needed.
+	 */
+	public NodePath getChild(String name) {
+		NodePath child = findChild(name);
+		if (child != null) {
+			return child;
+		}
+
+		expungeCollected();
+
+		ConcurrentMap<String, ChildReference> children = getChildren();
+		NodePath created = new NodePath(this, name);
+		ChildReference reference = new ChildReference(created, collected);
+		while (true) {
+			ChildReference existing = children.putIfAbsent(name, reference);
+			if (existing == null) {
+				return created;
+			}
+
+			// Interned concurrently
+			NodePath current = existing.get();
+			if (current != null) {
+				return current;
+			}
+
+			if (children.replace(name, existing, reference)) {
+				return created;
+			}
+		}
+	}
+
+	/**
+	 * @return parent path, null for the root
+	 */
+	public NodePath getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return last segment of the path, empty for the root
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public boolean isRoot() {
+		return parent == null;
+	}
+
+	/**
+	 * Builds the path string, it is not kept by the path.
+	 */
+	@Override
+	public String toString() {
+		if (isRoot()) {
+			return String.valueOf(SEP);
+		}
+
+		StringBuilder sb = new StringBuilder(length());
+		append(sb);
+		return sb.toString();
+	}
+
+	private void append(StringBuilder sb) {
+		if (!parent.isRoot()) {
+			parent.append(sb);
+		}
+		sb.append(SEP).append(name);
+	}
+
+	private int length() {
+		return isRoot() ? 1 : parent.isRoot() ? name.length() + 1 : parent.length() + name.length() + 1;
+	}
+
+	private NodePath findChild(String name) {
+		ConcurrentMap<String, ChildReference> children = this.children;
+		if (children == null) {
+			return null;
+		}
+
+		ChildReference reference = children.get(name);
+		return reference != null ? reference.get() : null;
+	}
+
+	private ConcurrentMap<String, ChildReference> getChildren() {
+		ConcurrentMap<String, ChildReference> children = this.children;
+		if (children == null) {
+			synchronized (this) {
+				children = this.children;
+				if (children == null) {
+					children = new ConcurrentHashMap<>();
+					this.children = children;
+				}
+			}
+		}
+		return children;
+	}
+
+	private static void checkPath(String path) {
+		if (path.isEmpty() || path.charAt(0) != SEP) {
+			throw new IllegalArgumentException("Path should start with '/' character: " + path);
+		}
+	}
+
+	private static int segmentEnd(String path, int start) {
+		int end = path.indexOf(SEP, start);
+		return end < 0 ? path.length() : end;
+	}
+
+	private static void expungeCollected() {
+		Reference<? extends NodePath> reference;
+		while ((reference = collected.poll()) != null) {
+			ChildReference childReference = (ChildReference) reference;
+			childReference.parent.children.remove(childReference.name, childReference);
+		}
+	}
+
+	private static class ChildReference extends WeakReference<NodePath> {
+		private final NodePath parent;
+		private final String name;
+
+		ChildReference(NodePath nodePath, ReferenceQueue<NodePath> queue) {
+			super(nodePath, queue);
+			this.parent = nodePath.parent;
+			this.name = nodePath.name;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.pega.charlatan.watches.service;
+
+/**
+ * Defines how long the node updates are kept in the update log.
+ * <p>
+ * An update is removed when it is older than the max age or when there are more than max updates newer updates.
+ * A broker never removes the updates it didn't read yet. Updates are removed in chunks, so a long cleanup doesn't block the writers of new updates.
+ */
+public class NodeUpdatesRetentionPolicy {
+
+	public static final long DEFAULT_MAX_AGE_MS = 5 * 60 * 1000;
+	public static final long DEFAULT_MAX_UPDATES = 100000;
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+	public static final long DEFAULT_CLEANUP_INTERVAL_MS = 60 * 1000;
+
+	private long maxAgeMs = DEFAULT_MAX_AGE_MS;
+	private long maxUpdates = DEFAULT_MAX_UPDATES;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private long cleanupIntervalMs = DEFAULT_CLEANUP_INTERVAL_MS;
+
+	/**
+	 * Updates older than max age are removed. Remote brokers that didn't read an update within this time miss it.
+	 */
+	public long getMaxAgeMs() {
+		return maxAgeMs;
+	}
+
+	public void setMaxAgeMs(long maxAgeMs) {
+		this.maxAgeMs = maxAgeMs;
+	}
+
+	/**
+	 * Maximum number of kept updates, the older ones are removed even if they are younger than max age.
+	 */
+	public long getMaxUpdates() {
+		return maxUpdates;
+	}
+
+	public void setMaxUpdates(long maxUpdates) {
+		this.maxUpdates = maxUpdates;
+	}
+
+	/**
+	 * Maximum number of updates removed by a single delete.
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public long getCleanupIntervalMs() {
+		return cleanupIntervalMs;
+	}
+
+	public void setCleanupIntervalMs(long cleanupIntervalMs) {
+		this.cleanupIntervalMs = cleanupIntervalMs;
+	}
+}
@@ -0,0 +1,121 @@
+package com.pega.charlatan.watches.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Set of values for every znode path, with lookups of the values of a path and of all its ancestors.
+ * <p>
+ * Values are kept in a flat map by interned {@link NodePath}, the tree is formed by the parent references of the
+ * paths themselves. Lookups walk the interned paths and never intern the looked up path, their cost depends on the
+ * path depth, not on the number of stored values. Lookups don't take any lock, modifications are serialized and
+ * replace the value sets, so a lookup always sees a consistent set.
+ *
+ * @param <V> value type
+ */
+public class PathTrie<V> {
+
+	private final ConcurrentMap<NodePath, Set<V>> values = new ConcurrentHashMap<>();
+	private volatile int size;
+
+	/**
+	 * Adds the value to the path.
+	 *
+	 * @return false if the path already had the value
+	 */
+	public synchronized boolean add(String path, V value) {
+		NodePath nodePath = NodePath.of(path);
+
+		Set<V> current = values.get(nodePath);
+		if (current != null && current.contains(value)) {
+			return false;
+		}
+
+		Set<V> updated = current != null ? new HashSet<>(current) : new HashSet<V>();
+		updated.add(value);
+		values.put(nodePath, Collections.unmodifiableSet(updated));
+		size++;
+		return true;
+	}
+
+	/**
+	 * Removes the value from the path.
+	 *
+	 * @return false if the path didn't have the value
+	 */
+	public boolean remove(String path, V value) {
+		NodePath nodePath = NodePath.find(path);
+		return nodePath != null && remove(nodePath, value);
+	}
+
+	/**
+	 * Removes the value from the interned path.
+	 *
+	 * @return false if the path didn't have the value
+	 */
+	synchronized boolean remove(NodePath nodePath, V value) {
+		Set<V> current = values.get(nodePath);
+		if (current == null || !current.contains(value)) {
+			return false;
+		}
+
+		Set<V> updated = new HashSet<>(current);
+		updated.remove(value);
+		if (updated.isEmpty()) {
+			values.remove(nodePath);
+		} else {
+			values.put(nodePath, Collections.unmodifiableSet(updated));
+		}
+		size--;
+		return true;
+	}
+
+	/**
+	 * Adds values of the path to the result.
+	 */
+	public void getValues(String path, Collection<? super V> result) {
+		// A path that is not interned has no values
+		NodePath nodePath = NodePath.find(path);
+		if (nodePath != null) {
+			addValues(nodePath, result);
+		}
+	}
+
+	/**
+	 * Adds values of the path and of all its ancestors to the result.
+	 */
+	public void getPrefixValues(String path, Collection<? super V> result) {
+		// Ancestors that are not interned have no values
+		for (NodePath nodePath = NodePath.findClosest(path); nodePath != null; nodePath = nodePath.getParent()) {
+			addValues(nodePath, result);
+		}
+	}
+
+	/**
+	 * Adds all the values to the result.
+	 */
+	public void getAllValues(Collection<? super V> result) {
+		for (Set<V> pathValues : values.values()) {
+			result.addAll(pathValues);
+		}
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void addValues(NodePath nodePath, Collection<? super V> result) {
+		Set<V> pathValues = values.get(nodePath);
+		if (pathValues != null) {
+			result.addAll(pathValues);
+		}
+	}
+}
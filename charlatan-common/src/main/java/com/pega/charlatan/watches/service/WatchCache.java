@@ -47,4 +47,22 @@ public interface WatchCache {
 	 */
 	void registerChildWatch(Watcher watcher, String path);
 
+	/**
+	 * Register the watch that is not removed when triggered. The watch will be triggered by all the events of the
+	 * path, a recursive watch also by the events of all the path descendants except child changes.
+	 *
+	 * @param watcher
+	 * @param path
+	 * @param recursive
+	 */
+	void registerPersistentWatch(Watcher watcher, String path, boolean recursive);
+
+	/**
+	 * Remove all the watches registered by the watcher, without triggering them.
+	 *
+	 * @param watcher
+	 * @return true if the watcher had any watches
+	 */
+	boolean removeWatches(Watcher watcher);
+
 }
\ No newline at end of file
@@ -4,42 +4,93 @@ import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manages watches subscriptions. Subscriptions are divided by three categories: data, child, exist.
+ * <p>
+ * Registrations and triggers don't take any global lock. Watchers of a path are kept in a {@link WatchSet}, that is
+ * removed from the map and closed when the watches are triggered: a watcher added to the set before it is closed
+ * is triggered exactly once, a registration that finds a closed set retries with a new set.
+ * <p>
+ * Persistent watches are not removed when triggered. Recursive persistent watches are kept in a {@link PathTrie},
+ * so matching an event costs as much as the depth of its path.
+ * <p>
+ * Paths watched by every watcher are indexed, so the watches of a closed session are removed without scanning
+ * all the watches.
+ * <p>
+ * Watches are keyed by the interned {@link NodePath}, a path that is not interned has no watches, so events of
+ * unwatched paths are matched without interning their paths.
  */
 public class WatchCacheImpl implements WatchCache {
 
-	private final Map<String, Set<Watcher>> dataWatches;
-	private final Map<String, Set<Watcher>> existWatches;
-	private final Map<String, Set<Watcher>> childWatches;
+	private final ConcurrentMap<NodePath, WatchSet> dataWatches;
+	private final ConcurrentMap<NodePath, WatchSet> existWatches;
+	private final ConcurrentMap<NodePath, WatchSet> childWatches;
+	private final PathTrie<Watcher> persistentWatches;
+	private final PathTrie<Watcher> recursiveWatches;
+	// Watches registered by each watcher
+	private final ConcurrentMap<Watcher, WatcherWatches> watcherWatches;
 	private Logger logger = LoggerFactory.getLogger(WatchCacheImpl.class.getName());
 
 	public WatchCacheImpl() {
-		this.dataWatches = new HashMap<String, Set<Watcher>>();
-		this.existWatches =
-				new HashMap<String, Set<Watcher>>();
-		this.childWatches =
-				new HashMap<String, Set<Watcher>>();
+		this.dataWatches = new ConcurrentHashMap<>();
+		this.existWatches = new ConcurrentHashMap<>();
+		this.childWatches = new ConcurrentHashMap<>();
+		this.persistentWatches = new PathTrie<>();
+		this.recursiveWatches = new PathTrie<>();
+		this.watcherWatches = new ConcurrentHashMap<>();
 	}
 
 	@Override
 	public void registerExistWatch(Watcher watcher, String path) {
-		addWatch(watcher, path, getExistWatches());
+		addWatch(watcher, NodePath.of(path), existWatches);
 	}
 
 	@Override
 	public void registerDataWatch(Watcher watcher, String path) {
-		addWatch(watcher, path, getDataWatches());
+		addWatch(watcher, NodePath.of(path), dataWatches);
 	}
 
 	@Override
 	public void registerChildWatch(Watcher watcher, String path) {
-		addWatch(watcher, path, getChildWatches());
+		addWatch(watcher, NodePath.of(path), childWatches);
+	}
+
+	@Override
+	public void registerPersistentWatch(Watcher watcher, String path, boolean recursive) {
+		PathTrie<Watcher> watches = recursive ? recursiveWatches : persistentWatches;
+		indexWatch(watcher, new WatchKey(watches, NodePath.of(path)));
+		watches.add(path, watcher);
+	}
+
+	@Override
+	public boolean removeWatches(Watcher watcher) {
+		WatcherWatches ww = watcherWatches.remove(watcher);
+		if (ww == null) {
+			return false;
+		}
+
+		boolean removed = false;
+		for (WatchKey key : ww.close()) {
+			if (key.trie != null) {
+				removed |= key.trie.remove(key.path, watcher);
+				continue;
+			}
+
+			if (key.set.remove(watcher)) {
+				removed = true;
+				if (key.set.isClosed()) {
+					key.watches.remove(key.path, key.set);
+				}
+			}
+		}
+		return removed;
 	}
 
 	@Override
@@ -50,54 +101,27 @@ public class WatchCacheImpl implements WatchCache {
 
 		switch (type) {
 			case None:
-				synchronized (dataWatches) {
-					for (Set<Watcher> ws : dataWatches.values()) {
-						result.addAll(ws);
-					}
-				}
-
-				synchronized (existWatches) {
-					for (Set<Watcher> ws : existWatches.values()) {
-						result.addAll(ws);
-					}
-				}
-
-				synchronized (childWatches) {
-					for (Set<Watcher> ws : childWatches.values()) {
-						result.addAll(ws);
-					}
-				}
-
+				addAll(dataWatches, result);
+				addAll(existWatches, result);
+				addAll(childWatches, result);
+				persistentWatches.getAllValues(result);
+				recursiveWatches.getAllValues(result);
 				return result;
 			case NodeDataChanged:
 			case NodeCreated:
-				synchronized (dataWatches) {
-					addTo(dataWatches.remove(clientPath), result);
-				}
-				synchronized (existWatches) {
-					addTo(existWatches.remove(clientPath), result);
-				}
+				addTo(trigger(dataWatches, clientPath), result);
+				addTo(trigger(existWatches, clientPath), result);
 				break;
 			case NodeChildrenChanged:
-				synchronized (childWatches) {
-					addTo(childWatches.remove(clientPath), result);
-				}
+				addTo(trigger(childWatches, clientPath), result);
 				break;
 			case NodeDeleted:
-				synchronized (dataWatches) {
-					addTo(dataWatches.remove(clientPath), result);
-				}
+				addTo(trigger(dataWatches, clientPath), result);
 				// XXX This shouldn't be needed, but just in case
-				synchronized (existWatches) {
-					Set<Watcher> list = existWatches.remove(clientPath);
-					if (list != null) {
-						addTo(existWatches.remove(clientPath), result);
-						logger.warn("We are triggering an exists watch for delete! Shouldn't happen!");
-					}
-				}
-				synchronized (childWatches) {
-					addTo(childWatches.remove(clientPath), result);
+				if (trigger(existWatches, clientPath) != null) {
+					logger.warn("We are triggering an exists watch for delete! Shouldn't happen!");
 				}
+				addTo(trigger(childWatches, clientPath), result);
 				break;
 			default:
 				String msg = "Unhandled watch event type " + type
@@ -106,35 +130,247 @@ public class WatchCacheImpl implements WatchCache {
 				throw new RuntimeException(msg);
 		}
 
+		addPersistent(type, clientPath, result);
+
 		return result;
 	}
 
+	private void addPersistent(Watcher.Event.EventType type, String clientPath, Set<Watcher> result) {
+		if (!persistentWatches.isEmpty()) {
+			persistentWatches.getValues(clientPath, result);
+		}
+
+		// Changes of children are reported to the recursive watches by the events of the children themselves
+		if (type != Watcher.Event.EventType.NodeChildrenChanged && !recursiveWatches.isEmpty()) {
+			recursiveWatches.getPrefixValues(clientPath, result);
+		}
+	}
+
 	private void addTo(Set<Watcher> from, Set<Watcher> to) {
 		if (from != null) {
 			to.addAll(from);
 		}
 	}
 
-	private Map<String, Set<Watcher>> getDataWatches() {
-		return dataWatches;
+	private void addAll(ConcurrentMap<NodePath, WatchSet> watches, Set<Watcher> to) {
+		for (WatchSet ws : watches.values()) {
+			addTo(ws.watchers.get(), to);
+		}
 	}
 
-	private Map<String, Set<Watcher>> getExistWatches() {
-		return existWatches;
+	/**
+	 * Removes the watches of the path.
+	 *
+	 * @return triggered watchers, null if there were no watches
+	 */
+	private Set<Watcher> trigger(ConcurrentMap<NodePath, WatchSet> watches, String clientPath) {
+		NodePath path = NodePath.find(clientPath);
+		if (path == null) {
+			return null;
+		}
+
+		WatchSet ws = watches.remove(path);
+		if (ws == null) {
+			return null;
+		}
+
+		Set<Watcher> watchers = ws.close();
+		if (watchers != null) {
+			// Only the registrations of the closed set, the watchers may be registered again in a new set
+			WatchKey key = new WatchKey(watches, path, ws);
+			for (Watcher watcher : watchers) {
+				unindexWatch(watcher, key);
+			}
+		}
+		return watchers;
 	}
 
-	private Map<String, Set<Watcher>> getChildWatches() {
-		return childWatches;
+	private void addWatch(Watcher watcher, NodePath path, ConcurrentMap<NodePath, WatchSet> watches) {
+		while (true) {
+			WatchSet ws = watches.get(path);
+			if (ws == null) {
+				WatchSet newWs = new WatchSet();
+				ws = watches.putIfAbsent(path, newWs);
+				if (ws == null) {
+					ws = newWs;
+				}
+			}
+
+			// Indexed before the watch is added, so the index is always cleaned up after the watch is triggered
+			WatchKey key = new WatchKey(watches, path, ws);
+			indexWatch(watcher, key);
+
+			if (ws.add(watcher)) {
+				return;
+			}
+
+			// The set was triggered concurrently, it is already removed or about to be removed from the map
+			unindexWatch(watcher, key);
+			watches.remove(path, ws);
+		}
 	}
 
-	private void addWatch(Watcher watcher, String clientPath, Map<String, Set<Watcher>> watches) {
-		synchronized (watches) {
-			Set<Watcher> watchers = watches.get(clientPath);
-			if (watchers == null) {
-				watchers = new HashSet<Watcher>();
-				watches.put(clientPath, watchers);
+	private void indexWatch(Watcher watcher, WatchKey key) {
+		while (true) {
+			WatcherWatches ww = watcherWatches.get(watcher);
+			if (ww == null) {
+				WatcherWatches newWw = new WatcherWatches();
+				ww = watcherWatches.putIfAbsent(watcher, newWw);
+				if (ww == null) {
+					ww = newWw;
+				}
 			}
-			watchers.add(watcher);
+
+			if (ww.add(key)) {
+				return;
+			}
+
+			// All the watches of the watcher were removed concurrently
+			watcherWatches.remove(watcher, ww);
+		}
+	}
+
+	private void unindexWatch(Watcher watcher, WatchKey key) {
+		WatcherWatches ww = watcherWatches.get(watcher);
+		if (ww != null && ww.remove(key)) {
+			watcherWatches.remove(watcher, ww);
+		}
+	}
+
+	/**
+	 * Watchers of a single path. The set of watchers is immutable and replaced on every registration,
+	 * a closed WatchSet doesn't accept new watchers.
+	 */
+	private static class WatchSet {
+		private final AtomicReference<Set<Watcher>> watchers = new AtomicReference<>(Collections.<Watcher>emptySet());
+
+		/**
+		 * @return false if the set is closed
+		 */
+		boolean add(Watcher watcher) {
+			while (true) {
+				Set<Watcher> current = watchers.get();
+				if (current == null) {
+					return false;
+				}
+				if (current.contains(watcher)) {
+					return true;
+				}
+
+				Set<Watcher> updated = new HashSet<>(current);
+				updated.add(watcher);
+				if (watchers.compareAndSet(current, Collections.unmodifiableSet(updated))) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Removes the watcher, the set is closed if it becomes empty.
+		 *
+		 * @return false if the watcher was not in the set or the set is closed
+		 */
+		boolean remove(Watcher watcher) {
+			while (true) {
+				Set<Watcher> current = watchers.get();
+				if (current == null || !current.contains(watcher)) {
+					return false;
+				}
+
+				Set<Watcher> updated = new HashSet<>(current);
+				updated.remove(watcher);
+				if (watchers.compareAndSet(current, updated.isEmpty() ? null : Collections.unmodifiableSet(updated))) {
+					return true;
+				}
+			}
+		}
+
+		boolean isClosed() {
+			return watchers.get() == null;
+		}
+
+		/**
+		 * Closes the set.
+		 *
+		 * @return watchers added before the set was closed, null if the set was already closed
+		 */
+		Set<Watcher> close() {
+			return watchers.getAndSet(null);
+		}
+	}
+
+	/**
+	 * Watch of a single path in one of the persistent watch tries, or registration in a single WatchSet of one of
+	 * the watch maps.
+	 */
+	private static class WatchKey {
+		private final ConcurrentMap<NodePath, WatchSet> watches;
+		private final WatchSet set;
+		private final PathTrie<Watcher> trie;
+		private final NodePath path;
+
+		WatchKey(ConcurrentMap<NodePath, WatchSet> watches, NodePath path, WatchSet set) {
+			this.watches = watches;
+			this.set = set;
+			this.trie = null;
+			this.path = path;
+		}
+
+		WatchKey(PathTrie<Watcher> trie, NodePath path) {
+			this.watches = null;
+			this.set = null;
+			this.trie = trie;
+			this.path = path;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof WatchKey)) {
+				return false;
+			}
+			WatchKey other = (WatchKey) o;
+			return watches == other.watches && set == other.set && trie == other.trie && path == other.path;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(set != null ? set : trie) + System.identityHashCode(path);
+		}
+	}
+
+	/**
+	 * Watches of a single watcher. Once closed, or emptied by triggers, it doesn't accept new watches and the
+	 * registration retries with a new instance.
+	 */
+	private static class WatcherWatches {
+		private Set<WatchKey> keys = new HashSet<>();
+
+		/**
+		 * @return false if closed
+		 */
+		synchronized boolean add(WatchKey key) {
+			if (keys == null) {
+				return false;
+			}
+			keys.add(key);
+			return true;
+		}
+
+		/**
+		 * @return true if the last watch was removed and this instance was closed
+		 */
+		synchronized boolean remove(WatchKey key) {
+			if (keys == null || !keys.remove(key) || !keys.isEmpty()) {
+				return false;
+			}
+			keys = null;
+			return true;
+		}
+
+		synchronized Set<WatchKey> close() {
+			Set<WatchKey> closed = keys == null ? Collections.<WatchKey>emptySet() : keys;
+			keys = null;
+			return closed;
 		}
 	}
 }
@@ -4,8 +4,6 @@ import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Created by natalia on 7/20/17.
@@ -17,12 +15,23 @@ public abstract class WatchService {
 	private WatchCache watchCache;
 
 	public WatchService(WatchCache watchCache) {
+		this(watchCache, new WatchesNotifier(watchCache));
+	}
+
+	public WatchService(WatchCache watchCache, WatchesNotifier watchesNotifier) {
 		this.watchCache = watchCache;
 
-		this.watchesNotifier = new WatchesNotifier(watchCache);
+		this.watchesNotifier = watchesNotifier;
 		nodeUpdateListeners = new CopyOnWriteArrayList<>();
 	}
 
+	/**
+	 * Notifier of the watches, exposes the delivery metrics.
+	 */
+	public WatchesNotifier getWatchesNotifier() {
+		return watchesNotifier;
+	}
+
 	public void addNodeUpdateListener(WatchedEventListener l) {
 		nodeUpdateListeners.add(l);
 	}
@@ -37,12 +46,12 @@ public abstract class WatchService {
 	 * @param event
 	 */
 	public void processRemoteWatchedEvent(WatchedEvent event) {
-		watchesNotifier.processWatchedEvent(event, false);
-
-		// notify listeners
+		// notify listeners first, so caches are invalidated before watchers read the changed node
 		for (WatchedEventListener l : nodeUpdateListeners) {
 			l.processWatchedEvent(event, false);
 		}
+
+		watchesNotifier.processWatchedEvent(event, false);
 	}
 
 	/**
@@ -66,12 +75,43 @@ public abstract class WatchService {
 	protected abstract void communicateEvent(WatchedEvent event);
 
 	public void start() {
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		executor.submit(watchesNotifier);
+		watchesNotifier.start();
+	}
+
+	/**
+	 * Stops the service threads, the service can't be started again.
+	 */
+	public void stop() {
+		watchesNotifier.stop();
 	}
 
 	;
 
+	/**
+	 * Registers the watch that is not removed when triggered. Repeated events of the other brokers may be coalesced
+	 * before they reach the watch, see {@link WatchServiceImpl#setEventCoalescing(boolean)}.
+	 *
+	 * @param watcher
+	 * @param path
+	 * @param recursive the watch is triggered also by events of all the path descendants
+	 */
+	public void registerPersistentWatch(Watcher watcher, String path, boolean recursive) {
+		watchCache.registerPersistentWatch(watcher, path, recursive);
+	}
+
+	/**
+	 * Removes all the watches of the watcher, e.g. when its session is closed.
+	 * The watcher is notified with the event if it had any watches.
+	 *
+	 * @param watcher
+	 * @param event
+	 */
+	public void removeWatcher(Watcher watcher, WatchedEvent event) {
+		if (watchCache.removeWatches(watcher)) {
+			watchesNotifier.notify(watcher, event);
+		}
+	}
+
 	public void registerWatch(Watcher watcher, Watcher.WatcherType type, String path) {
 		switch (type) {
 			case Children:
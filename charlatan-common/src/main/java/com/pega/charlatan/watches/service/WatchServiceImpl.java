@@ -2,50 +2,152 @@ package com.pega.charlatan.watches.service;
 
 import com.pega.charlatan.node.bean.NodeUpdate;
 import com.pega.charlatan.watches.dao.NodeUpdateDao;
+import com.pega.charlatan.watches.dao.PushNodeUpdateDao;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Simple implementation of RemotedNodeUpdate.
  * <p>
  * Every new local WatchedEvent is stored in the database.
- * WatchedEvents generated by remote brokers are pulled from the database every half a second.
+ * If the dao is a {@link PushNodeUpdateDao}, WatchedEvents generated by remote brokers are received as soon as
+ * they are stored, otherwise they are pulled from the database every second.
+ * Updates are read in id order, starting after the last update stored before the service start.
+ * <p>
+ * Local events are stored asynchronously, in batches, after a short coalescing window or as soon as a batch is full:
+ * events of the same type and path triggered within the window are stored as a single update, as one-shot watches
+ * are triggered by the first of them only. Persistent watches of the other brokers receive a single event for the
+ * coalesced ones, see {@link #setEventCoalescing(boolean)}. Updates that failed to be stored stay pending and are
+ * retried.
  */
 public class WatchServiceImpl extends WatchService {
 
+	public static final int DEFAULT_UPDATES_BATCH_SIZE = 1000;
+	public static final long DEFAULT_EVENT_COALESCING_WINDOW_MS = 10;
+	public static final int DEFAULT_EVENTS_BATCH_SIZE = 500;
+
+	private static final long PUSH_TIMEOUT_MS = 30000;
+	private static final long PUSH_RETRY_DELAY_MS = 1000;
+	private static final long FLUSH_RETRY_DELAY_MS = 1000;
+
 	private static Logger logger = LoggerFactory.getLogger(WatchServiceImpl.class);
-	protected Set<NodeUpdate> lastCheckedNodeUpdates;
-	protected long lastCheckedTimestamp;
+	// Id of the last received update, -1 until it is initialized with the last stored update id
+	protected long lastUpdateId = -1;
+	// Id up to which all the updates of the other brokers are received, newer updates are not cleared by this broker
+	protected volatile long readUpdateId = -1;
+	// Maximum number of updates read at once
+	protected int updatesBatchSize = DEFAULT_UPDATES_BATCH_SIZE;
 	private NodeUpdateDao nodeUpdateDao;
 	private int emitterId;
+	private NodeUpdatesRetentionPolicy retentionPolicy = new NodeUpdatesRetentionPolicy();
 	private ScheduledExecutorService cleanerService;
 	private ScheduledExecutorService updatesPullService;
+	private ExecutorService updatesPushService;
+	private ScheduledExecutorService eventsFlushService;
+
+	// Local events not stored yet, in the order of their last occurrence, guarded by itself
+	private final LinkedHashMap<Object, NodeUpdate> pendingUpdates = new LinkedHashMap<>();
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushUpdates();
+		}
+	};
+	private volatile boolean eventCoalescing = true;
+	private long eventCoalescingWindowMs = DEFAULT_EVENT_COALESCING_WINDOW_MS;
+	private int eventsBatchSize = DEFAULT_EVENTS_BATCH_SIZE;
+	private final AtomicLong coalescedEvents = new AtomicLong();
 
 	public WatchServiceImpl(NodeUpdateDao nodeUpdateDao, ThreadFactory threadFactory) {
-		this(new WatchCacheImpl(), nodeUpdateDao, System.currentTimeMillis(), 100 + (int) (Math.random() * 100), threadFactory);
+		this(new WatchCacheImpl(), nodeUpdateDao, 100 + (int) (Math.random() * 100), threadFactory);
 	}
 
-	public WatchServiceImpl(WatchCache watchCache, NodeUpdateDao nodeUpdateDao, long serviceStartTime, int emitterId, ThreadFactory threadFactory) {
-		super(watchCache);
+	public WatchServiceImpl(WatchCache watchCache, NodeUpdateDao nodeUpdateDao, int emitterId, ThreadFactory threadFactory) {
+		this(watchCache, nodeUpdateDao, emitterId, threadFactory, WatchesNotifier.DEFAULT_THREADS, WatchesNotifier.DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param notifierThreads       number of threads delivering watch notifications
+	 * @param notifierQueueCapacity maximum number of not delivered notifications per thread
+	 */
+	public WatchServiceImpl(WatchCache watchCache, NodeUpdateDao nodeUpdateDao, int emitterId, ThreadFactory threadFactory,
+							int notifierThreads, int notifierQueueCapacity) {
+		super(watchCache, new WatchesNotifier(watchCache, notifierThreads, notifierQueueCapacity, threadFactory));
 
 		this.nodeUpdateDao = nodeUpdateDao;
 		this.emitterId = emitterId;
 
-		this.lastCheckedTimestamp = serviceStartTime;
-		this.lastCheckedNodeUpdates = new HashSet<>();
-
 		cleanerService = Executors.newSingleThreadScheduledExecutor(threadFactory);
 		updatesPullService = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		updatesPushService = Executors.newSingleThreadExecutor(threadFactory);
+		eventsFlushService = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+	/**
+	 * Maximum number of updates read from the dao at once. During bursts the updates are read page by page.
+	 */
+	public void setUpdatesBatchSize(int updatesBatchSize) {
+		if (updatesBatchSize <= 0) {
+			throw new IllegalArgumentException("Updates batch size must be > 0");
+		}
+		this.updatesBatchSize = updatesBatchSize;
+	}
+
+	/**
+	 * Defines how long the updates are kept in the update log, must be set before the service is started.
+	 */
+	public void setRetentionPolicy(NodeUpdatesRetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy;
+	}
+
+	/**
+	 * Time local events are kept before they are stored, so repeated events of the same node are stored once.
+	 * 0 stores the events as soon as possible, events triggered while the previous batch is stored are still batched.
+	 */
+	public void setEventCoalescingWindow(long eventCoalescingWindowMs) {
+		if (eventCoalescingWindowMs < 0) {
+			throw new IllegalArgumentException("Event coalescing window must be >= 0");
+		}
+		this.eventCoalescingWindowMs = eventCoalescingWindowMs;
+	}
+
+	/**
+	 * Whether repeated events of the same type and path are stored as a single update, true by default. Persistent
+	 * watches registered on the other brokers are triggered once for the coalesced events, so brokers serving clients
+	 * that expect every event of a persistent watch should disable it. The events are still stored in batches.
+	 */
+	public void setEventCoalescing(boolean eventCoalescing) {
+		this.eventCoalescing = eventCoalescing;
+	}
+
+	/**
+	 * Maximum number of local events stored at once. A full batch is stored without waiting for the coalescing window.
+	 */
+	public void setEventsBatchSize(int eventsBatchSize) {
+		if (eventsBatchSize <= 0) {
+			throw new IllegalArgumentException("Events batch size must be > 0");
+		}
+		this.eventsBatchSize = eventsBatchSize;
+	}
+
+	/**
+	 * Number of local events that were merged with an earlier event of the same node and type.
+	 */
+	public long getCoalescedEvents() {
+		return coalescedEvents.get();
 	}
 
 	public void start() {
@@ -56,60 +158,125 @@ public class WatchServiceImpl extends WatchService {
 			public void run() {
 				clearUpdates();
 			}
-		}, 1, 1, TimeUnit.MINUTES);
+		}, retentionPolicy.getCleanupIntervalMs(), retentionPolicy.getCleanupIntervalMs(), TimeUnit.MILLISECONDS);
 
-		updatesPullService.scheduleWithFixedDelay(new Runnable() {
-			@Override
-			public void run() {
-				pullUpdates();
-			}
-		}, 5, 1000, TimeUnit.MILLISECONDS);
+		if (nodeUpdateDao instanceof PushNodeUpdateDao) {
+			final PushNodeUpdateDao pushNodeUpdateDao = (PushNodeUpdateDao) nodeUpdateDao;
+
+			updatesPushService.submit(new Runnable() {
+				@Override
+				public void run() {
+					receiveUpdates(pushNodeUpdateDao);
+				}
+			});
+		} else {
+			updatesPullService.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					pullUpdates();
+				}
+			}, 5, 1000, TimeUnit.MILLISECONDS);
+		}
 	}
 
-	protected void pullUpdates() {
-		try {
-			List<NodeUpdate> updates = nodeUpdateDao.getNodeUpdates(emitterId, lastCheckedTimestamp);
+	/**
+	 * Stores the pending local events and stops receiving the remote ones.
+	 */
+	@Override
+	public void stop() {
+		cleanerService.shutdownNow();
+		updatesPullService.shutdownNow();
+		updatesPushService.shutdownNow();
+		eventsFlushService.shutdownNow();
+		flushUpdates();
 
-			Set<NodeUpdate> latestNodeUpdates = new HashSet<>(lastCheckedNodeUpdates);
-			long latestTimestamp = lastCheckedTimestamp;
+		super.stop();
+	}
 
-			for (NodeUpdate update : updates) {
-				if (!latestNodeUpdates.contains(update)) {
-					logger.info("Processing update " + update);
-					WatchedEvent event = new WatchedEvent(update.getEventType(), Watcher.Event.KeeperState.SyncConnected, update.getPath());
-					processRemoteWatchedEvent(event);
-
-					if (update.getTimestamp() > latestTimestamp) {
-						latestTimestamp = update.getTimestamp();
-						latestNodeUpdates.clear();
-						latestNodeUpdates.add(update);
-					} else if (update.getTimestamp() == latestTimestamp) {
-						latestNodeUpdates.add(update);
-					}
+	/**
+	 * Receives updates of the remote brokers until the thread is interrupted.
+	 */
+	private void receiveUpdates(PushNodeUpdateDao pushNodeUpdateDao) {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				initLastUpdateId();
+				receiveUpdates(pushNodeUpdateDao, PUSH_TIMEOUT_MS);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable e) {
+				logger.warn("Receive updates failed [" + e.getMessage() + "]");
+				try {
+					Thread.sleep(PUSH_RETRY_DELAY_MS);
+				} catch (InterruptedException e1) {
+					return;
 				}
 			}
+		}
+	}
 
-			if (latestTimestamp == lastCheckedTimestamp) {
-				// Small optimization: if twice in a row we got same updates with the same timestamp we can assume that next updates will have higher timestamp.
-				if (!lastCheckedNodeUpdates.isEmpty()) {
-					lastCheckedTimestamp++;
-					lastCheckedNodeUpdates.clear();
-				}
-			} else if (latestTimestamp > lastCheckedTimestamp) {
-				lastCheckedTimestamp = latestTimestamp;
-				lastCheckedNodeUpdates.clear();
-				lastCheckedNodeUpdates.addAll(latestNodeUpdates);
-			} else {
-				logger.warn(String.format("Node updates have timestamp %d, that is smaller then requested %d", latestTimestamp, lastCheckedTimestamp));
-			}
+	protected void receiveUpdates(PushNodeUpdateDao pushNodeUpdateDao, long timeoutMs) throws InterruptedException {
+		long storedId = pushNodeUpdateDao.getLastUpdateId();
+
+		List<NodeUpdate> updates = pushNodeUpdateDao.awaitNodeUpdates(emitterId, lastUpdateId, updatesBatchSize, timeoutMs);
+		processUpdates(updates);
+
+		if (updates.size() < updatesBatchSize) {
+			// Every update stored before the wait was received
+			readUpdateId = Math.max(lastUpdateId, storedId);
+		}
+	}
+
+	protected void pullUpdates() {
+		try {
+			initLastUpdateId();
+			long storedId = nodeUpdateDao.getLastUpdateId();
+
+			List<NodeUpdate> updates;
+			do {
+				updates = nodeUpdateDao.getNodeUpdates(emitterId, lastUpdateId, updatesBatchSize);
+				processUpdates(updates);
+			} while (updates.size() >= updatesBatchSize);
+
+			// Every update stored before the pull was received, own updates included as they are never read
+			readUpdateId = Math.max(lastUpdateId, storedId);
 		} catch (Throwable e) {
 			logger.warn("Pull updates failed [" + e.getMessage() + "]");
 		}
 	}
 
+	private void initLastUpdateId() {
+		if (lastUpdateId < 0) {
+			// Updates stored before the service start are not interesting
+			lastUpdateId = nodeUpdateDao.getLastUpdateId();
+		}
+	}
+
+	private void processUpdates(List<NodeUpdate> updates) {
+		for (NodeUpdate update : updates) {
+			logger.info("Processing update " + update);
+			WatchedEvent event = new WatchedEvent(update.getEventType(), Watcher.Event.KeeperState.SyncConnected, update.getPath());
+			processRemoteWatchedEvent(event);
+
+			lastUpdateId = Math.max(lastUpdateId, update.getId());
+		}
+	}
+
 	protected void clearUpdates() {
+		long lastReadId = readUpdateId;
+		if (lastReadId < 0) {
+			// Nothing received yet
+			return;
+		}
+
 		try {
-			nodeUpdateDao.clearOldUpdates(Math.min(System.currentTimeMillis() - 5 * 60 * 1000, lastCheckedTimestamp));
+			long toMs = System.currentTimeMillis() - retentionPolicy.getMaxAgeMs();
+			int chunkSize = retentionPolicy.getChunkSize();
+
+			// Deleted in chunks, so the writers of new updates wait at most for a single chunk
+			int deleted;
+			do {
+				deleted = nodeUpdateDao.clearOldUpdates(toMs, retentionPolicy.getMaxUpdates(), lastReadId, chunkSize);
+			} while (deleted >= chunkSize && !Thread.currentThread().isInterrupted());
 		} catch (Throwable e) {
 			logger.warn("clear updates failed [" + e.getMessage() + "]");
 		}
@@ -117,11 +284,77 @@ public class WatchServiceImpl extends WatchService {
 
 	@Override
 	public void communicateEvent(WatchedEvent event) {
-		try {
-			NodeUpdate update = new NodeUpdate(event.getType(), event.getPath(), System.currentTimeMillis(), emitterId);
-			nodeUpdateDao.insertUpdate(update);
-		} catch (Throwable e) {
-			logger.warn("clear updates failed [" + e.getMessage() + "]");
+		NodeUpdate update = new NodeUpdate(event.getType(), event.getPath(), System.currentTimeMillis(), emitterId);
+
+		boolean scheduleFlush;
+		boolean batchFull;
+		synchronized (pendingUpdates) {
+			scheduleFlush = pendingUpdates.isEmpty();
+			addPending(update);
+			batchFull = pendingUpdates.size() == eventsBatchSize;
+		}
+
+		if (scheduleFlush) {
+			eventsFlushService.schedule(flushTask, eventCoalescingWindowMs, TimeUnit.MILLISECONDS);
+		}
+		if (batchFull) {
+			eventsFlushService.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Stores the pending local events. If a batch fails, it and the following updates stay pending and the flush is
+	 * retried, unless the service is stopped.
+	 */
+	protected void flushUpdates() {
+		List<NodeUpdate> updates;
+		synchronized (pendingUpdates) {
+			updates = new ArrayList<>(pendingUpdates.values());
+			pendingUpdates.clear();
+		}
+
+		for (int from = 0; from < updates.size(); from += eventsBatchSize) {
+			List<NodeUpdate> batch = updates.subList(from, Math.min(updates.size(), from + eventsBatchSize));
+			try {
+				nodeUpdateDao.insertUpdates(batch);
+			} catch (Throwable e) {
+				List<NodeUpdate> unstored = updates.subList(from, updates.size());
+				try {
+					restorePending(unstored);
+					eventsFlushService.schedule(flushTask, FLUSH_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+					logger.warn("store updates failed [" + e.getMessage() + "], " + unstored.size() + " updates are retried");
+				} catch (RejectedExecutionException e1) {
+					logger.warn("store updates failed [" + e.getMessage() + "], " + unstored.size() + " updates are lost");
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Puts the updates back before the updates added since they were taken, which are newer.
+	 */
+	private void restorePending(List<NodeUpdate> updates) {
+		synchronized (pendingUpdates) {
+			List<NodeUpdate> newer = new ArrayList<>(pendingUpdates.values());
+			pendingUpdates.clear();
+			for (NodeUpdate update : updates) {
+				addPending(update);
+			}
+			for (NodeUpdate update : newer) {
+				addPending(update);
+			}
+		}
+	}
+
+	private void addPending(NodeUpdate update) {
+		// Without coalescing every update has a key of its own
+		Object key = eventCoalescing ? update.getEventType() + " " + update.getPath() : new Object();
+
+		// Re-inserted, so the update keeps the position of the latest event
+		if (pendingUpdates.remove(key) != null) {
+			coalescedEvents.incrementAndGet();
 		}
+		pendingUpdates.put(key, update);
 	}
 }
@@ -5,35 +5,88 @@ import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Notifies all watches interested in specific WatchedEvent
+ * <p>
+ * Events are delivered by a number of threads, each watcher is always served by the same thread, so events of the
+ * same watcher (connection) are delivered in order, while a slow watcher delays only the watchers of its thread.
+ * Every thread has a bounded queue: when it is full, threads that trigger the events wait until the queue is
+ * drained. Events triggered by the notifier threads themselves never wait, to not deadlock on their own queue.
  */
-public class WatchesNotifier implements WatchedEventListener, Runnable {
+public class WatchesNotifier implements WatchedEventListener {
+
+	public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
 
 	private static Logger logger = LoggerFactory.getLogger(WatchesNotifier.class);
 
-	private BlockingQueue<WatcherWatchedEvent> _blockingQueue = new LinkedBlockingDeque<WatcherWatchedEvent>();
-	private WatchCache watchCache;
+	// Set for the notifier threads
+	private static final ThreadLocal<Boolean> notifierThread = new ThreadLocal<>();
+
+	private final WatchCache watchCache;
+	private final ThreadFactory threadFactory;
+	private final Shard[] shards;
+	private final List<Thread> threads = new ArrayList<>();
+
+	private final AtomicLong deliveredEvents = new AtomicLong();
+	private final AtomicLong blockedEnqueues = new AtomicLong();
+	private final AtomicLong blockedTimeMs = new AtomicLong();
+
 	public WatchesNotifier(WatchCache watchCache) {
+		this(watchCache, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * @param watchCache    watches of the events
+	 * @param threads       number of notifier threads
+	 * @param queueCapacity maximum number of not delivered events per thread
+	 * @param threadFactory factory of the notifier threads
+	 */
+	public WatchesNotifier(WatchCache watchCache, int threads, int queueCapacity, ThreadFactory threadFactory) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Notifier threads must be > 0");
+		}
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("Notifier queue capacity must be > 0");
+		}
+
 		this.watchCache = watchCache;
+		this.threadFactory = threadFactory;
+		this.shards = new Shard[threads];
+		for (int i = 0; i < threads; i++) {
+			shards[i] = new Shard(queueCapacity);
+		}
 	}
 
-	@Override
-	public void run() {
-		try {
-			while (true) {
-				WatcherWatchedEvent we = _blockingQueue.take();
-				we.getWatcher().process(we.getWatchedEvent());
+	/**
+	 * Starts the notifier threads.
+	 */
+	public synchronized void start() {
+		for (Shard shard : shards) {
+			Thread thread = threadFactory.newThread(shard);
+			thread.start();
+			threads.add(thread);
+		}
+	}
 
-				logger.debug("Send watched event " + we.getWatchedEvent().toString() );
-			}
-		} catch (InterruptedException e) {
-			// stop event thread
+	/**
+	 * Stops the notifier threads, events that are not delivered yet are dropped.
+	 */
+	public synchronized void stop() {
+		for (Thread thread : threads) {
+			thread.interrupt();
 		}
+		threads.clear();
 	}
 
 	public void processWatchedEvent(WatchedEvent event, boolean blocking) {
@@ -42,13 +95,124 @@ public class WatchesNotifier implements WatchedEventListener, Runnable {
 			if(blocking)
 				watcher.process(event);
 			else
-				_blockingQueue.add(new WatcherWatchedEvent(watcher, event));
+				notify(watcher, event);
+		}
+	}
+
+	/**
+	 * Notifies single watcher, regardless of its watches.
+	 */
+	public void notify(Watcher watcher, WatchedEvent event) {
+		try {
+			getShard(watcher).add(new WatcherWatchedEvent(watcher, event));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while waiting to notify watcher, event " + event + " is lost");
+		}
+	}
+
+	/**
+	 * Number of queued events that are not delivered yet.
+	 */
+	public int getQueuedEvents() {
+		int queued = 0;
+		for (Shard shard : shards) {
+			queued += shard.queue.size();
+		}
+		return queued;
+	}
+
+	/**
+	 * Maximum number of queued events of a single notifier thread.
+	 */
+	public int getMaxQueuedEvents() {
+		int max = 0;
+		for (Shard shard : shards) {
+			max = Math.max(max, shard.queue.size());
+		}
+		return max;
+	}
+
+	public long getDeliveredEvents() {
+		return deliveredEvents.get();
+	}
+
+	/**
+	 * Number of times the event had to wait for a full queue.
+	 */
+	public long getBlockedEnqueues() {
+		return blockedEnqueues.get();
+	}
+
+	/**
+	 * Total time spent waiting for full queues.
+	 */
+	public long getBlockedTimeMs() {
+		return blockedTimeMs.get();
+	}
+
+	private Shard getShard(Watcher watcher) {
+		int h = watcher.hashCode();
+		// Spread the hash, identity hash codes are not well distributed in low bits
+		h ^= (h >>> 16);
+		return shards[(h & Integer.MAX_VALUE) % shards.length];
+	}
+
+	/**
+	 * Queue of the events delivered by a single thread.
+	 */
+	private class Shard implements Runnable {
+		// Unbounded, the capacity is enforced by the permits, so the notifier threads can always add
+		private final BlockingQueue<WatcherWatchedEvent> queue = new LinkedBlockingQueue<>();
+		private final Semaphore permits;
+
+		Shard(int capacity) {
+			this.permits = new Semaphore(capacity);
+		}
+
+		void add(WatcherWatchedEvent we) throws InterruptedException {
+			if (notifierThread.get() == null) {
+				if (!permits.tryAcquire()) {
+					long start = System.currentTimeMillis();
+					permits.acquire();
+					blockedEnqueues.incrementAndGet();
+					blockedTimeMs.addAndGet(System.currentTimeMillis() - start);
+				}
+				we.permit = true;
+			}
+			queue.add(we);
+		}
+
+		@Override
+		public void run() {
+			notifierThread.set(Boolean.TRUE);
+			try {
+				while (true) {
+					WatcherWatchedEvent we = queue.take();
+					try {
+						we.getWatcher().process(we.getWatchedEvent());
+						deliveredEvents.incrementAndGet();
+
+						logger.debug("Send watched event " + we.getWatchedEvent().toString());
+					} catch (Throwable e) {
+						logger.warn("Failed to notify watcher of " + we.getWatchedEvent(), e);
+					} finally {
+						if (we.permit) {
+							permits.release();
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// stop event thread
+			}
 		}
 	}
 
 	class WatcherWatchedEvent {
 		private Watcher watcher;
 		private WatchedEvent event;
+		// Holds a queue permit
+		private boolean permit;
 
 		public WatcherWatchedEvent(Watcher watcher, WatchedEvent event) {
 			this.watcher = watcher;
@@ -64,4 +228,3 @@ public class WatchesNotifier implements WatchedEventListener, Runnable {
 		}
 	}
 }
-
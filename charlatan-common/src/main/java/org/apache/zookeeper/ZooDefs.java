@@ -60,6 +60,8 @@ public class ZooDefs {
 
         public final int sasl = 102;
 
+        public final int addWatch = 106;
+
         public final int createSession = -10;
 
         public final int closeSession = -11;
@@ -67,6 +69,12 @@ public class ZooDefs {
         public final int error = -1;
     }
 
+    public interface AddWatchModes {
+        int persistent = 0; // matches AddWatchMode.PERSISTENT
+
+        int persistentRecursive = 1;  // matches AddWatchMode.PERSISTENT_RECURSIVE
+    }
+
     public interface Perms {
         int READ = 1 << 0;
 
@@ -0,0 +1,18 @@
+package com.pega.charlatan.node.bean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NodeTest {
+
+	@Test
+	public void parentAndNameTest() {
+		assertEquals("/a", Node.parentOf("/a/x"));
+		assertEquals("/", Node.parentOf("/a"));
+		assertNull(Node.parentOf("/"));
+		assertEquals("x", Node.nameOf("/a/x"));
+		assertEquals("/a", new Node("/a/x").getParentPath());
+	}
+}
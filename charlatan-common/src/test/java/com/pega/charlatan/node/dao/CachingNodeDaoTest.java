@@ -0,0 +1,61 @@
+package com.pega.charlatan.node.dao;
+
+import com.pega.charlatan.node.bean.Node;
+import org.apache.zookeeper.CreateMode;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachingNodeDaoTest {
+
+	private NodeDao nodeDao;
+	private CachingNodeDao cache;
+
+	@Before
+	public void setUp() {
+		nodeDao = Mockito.mock(NodeDao.class);
+		cache = new CachingNodeDao(nodeDao, 10, 100000);
+	}
+
+	@Test
+	public void readRacingWriteOfSamePathIsNotCachedTest() throws RecordNotFoundException {
+		// The node is deleted while its old state is being read
+		Mockito.when(nodeDao.get("/a")).thenAnswer(readRacing(new Node("/a")));
+
+		cache.get("/a");
+		assertEquals(0, cache.size());
+
+		cache.get("/a");
+		assertEquals(0, cache.getHits());
+		Mockito.verify(nodeDao, Mockito.times(2)).get("/a");
+	}
+
+	@Test
+	public void readRacingWriteOfOtherPathIsCachedTest() throws RecordNotFoundException {
+		Mockito.when(nodeDao.get("/a")).thenAnswer(readRacing(new Node("/b/x")));
+
+		cache.get("/a");
+		assertEquals(1, cache.size());
+
+		cache.get("/a");
+		assertEquals(1, cache.getHits());
+		Mockito.verify(nodeDao, Mockito.times(1)).get("/a");
+	}
+
+	/**
+	 * Reads the node while the given node is deleted through the cache.
+	 */
+	private Answer<Node> readRacing(final Node deleted) {
+		return new Answer<Node>() {
+			@Override
+			public Node answer(InvocationOnMock invocation) {
+				cache.delete(deleted);
+				return new Node((String) invocation.getArguments()[0], new byte[0], CreateMode.PERSISTENT);
+			}
+		};
+	}
+}
@@ -0,0 +1,143 @@
+package com.pega.charlatan.node.service;
+
+import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import com.pega.charlatan.node.dao.NodeDao;
+import com.pega.charlatan.watches.service.WatchCacheImpl;
+import com.pega.charlatan.watches.service.WatchService;
+import com.pega.charlatan.watches.service.WatchesNotifier;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+
+public class NodeServiceImplTest {
+
+	private static final long SESSION = 1;
+
+	private NodeDao nodeDao;
+	private NodeService nodeService;
+	// Events sent to the other servers
+	private List<WatchedEvent> events;
+
+	@Before
+	public void setUp() {
+		nodeDao = Mockito.mock(NodeDao.class);
+		events = new ArrayList<>();
+		WatchService watchService = new WatchService(new WatchCacheImpl(), Mockito.mock(WatchesNotifier.class)) {
+			@Override
+			protected void communicateEvent(WatchedEvent event) {
+				events.add(event);
+			}
+		};
+		nodeService = new NodeServiceImpl(nodeDao, watchService);
+	}
+
+	@Test
+	public void setDataWithoutVersionRetriesConcurrentUpdateTest() throws Exception {
+		// Updated by someone else between the read and the batch of the first attempt
+		Mockito.when(nodeDao.get("/a")).thenReturn(node("/a", 0), node("/a", 1));
+		Mockito.when(nodeDao.executeBatch(Mockito.eq(SESSION), anyListOf(NodeOperation.class))).thenReturn(0, -1);
+
+		List<OpResult> results = nodeService.multi(SESSION, Collections.singletonList(Op.setData("/a", new byte[]{1}, -1)));
+
+		assertEquals(2, ((OpResult.SetDataResult) results.get(0)).getStat().getVersion());
+
+		// Every attempt expects the version it read instead of overwriting the concurrent update
+		List<List<NodeOperation>> batches = captureBatches(2);
+		assertEquals(0, batches.get(0).get(0).getVersion());
+		assertEquals(1, batches.get(1).get(0).getVersion());
+	}
+
+	@Test
+	public void failedCheckAbortsMultiTest() throws Exception {
+		Mockito.when(nodeDao.get("/a")).thenReturn(node("/a", 0));
+
+		List<OpResult> results = nodeService.multi(SESSION, Arrays.asList(
+				Op.create("/a/x", null, null, CreateMode.PERSISTENT),
+				Op.check("/a", 5),
+				Op.setData("/a", new byte[]{1}, -1)));
+
+		assertEquals(Arrays.<OpResult>asList(
+				new OpResult.ErrorResult(KeeperException.Code.OK.intValue()),
+				new OpResult.ErrorResult(KeeperException.Code.BADVERSION.intValue()),
+				new OpResult.ErrorResult(KeeperException.Code.RUNTIMEINCONSISTENCY.intValue())), results);
+
+		// Nothing is written and nobody is notified
+		Mockito.verify(nodeDao, Mockito.never()).executeBatch(anyLong(), anyListOf(NodeOperation.class));
+		assertTrue(events.isEmpty());
+	}
+
+	@Test
+	public void failedBatchIsReportedAtItsOpTest() throws Exception {
+		Mockito.when(nodeDao.get("/a")).thenReturn(node("/a", 0));
+		Mockito.when(nodeDao.get("/b")).thenReturn(node("/b", 3));
+		// The delete, third operation of the batch after the cversion increment and the create, was outdated
+		Mockito.when(nodeDao.executeBatch(Mockito.eq(SESSION), anyListOf(NodeOperation.class))).thenReturn(2);
+
+		List<OpResult> results = nodeService.multi(SESSION, Arrays.asList(
+				Op.create("/a/x", null, null, CreateMode.PERSISTENT),
+				Op.delete("/b", 3)));
+
+		assertEquals(Arrays.<OpResult>asList(
+				new OpResult.ErrorResult(KeeperException.Code.OK.intValue()),
+				new OpResult.ErrorResult(KeeperException.Code.BADVERSION.intValue())), results);
+		assertTrue(events.isEmpty());
+	}
+
+	@Test
+	public void sequentialCreatesTest() throws Exception {
+		Node parent = node("/a", 0);
+		parent.getStat().setCversion(4);
+		Mockito.when(nodeDao.get("/a")).thenReturn(parent);
+		Mockito.when(nodeDao.executeBatch(Mockito.eq(SESSION), anyListOf(NodeOperation.class))).thenReturn(-1);
+
+		List<OpResult> results = nodeService.multi(SESSION, Arrays.asList(
+				Op.create("/a/s-", null, null, CreateMode.PERSISTENT_SEQUENTIAL),
+				Op.create("/a/s-", null, null, CreateMode.PERSISTENT_SEQUENTIAL)));
+
+		// The second create sees the cversion incremented by the first one
+		assertEquals("/a/s-0000000004", ((OpResult.CreateResult) results.get(0)).getPath());
+		assertEquals("/a/s-0000000005", ((OpResult.CreateResult) results.get(1)).getPath());
+
+		// Every sequence number is allocated by the batch, which fails if it was taken meanwhile
+		List<NodeOperation> batch = captureBatches(1).get(0);
+		assertEquals(4, batch.size());
+		assertEquals(NodeOperation.Type.INCREMENT_CVERSION, batch.get(0).getType());
+		assertEquals(4, batch.get(0).getCversion());
+		assertEquals("/a/s-0000000004", batch.get(1).getPath());
+		assertEquals(NodeOperation.Type.INCREMENT_CVERSION, batch.get(2).getType());
+		assertEquals(5, batch.get(2).getCversion());
+		assertEquals("/a/s-0000000005", batch.get(3).getPath());
+		assertEquals(4, events.size());
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<List<NodeOperation>> captureBatches(int count) {
+		ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+		Mockito.verify(nodeDao, Mockito.times(count)).executeBatch(anyLong(), captor.capture());
+		return (List<List<NodeOperation>>) (List<?>) captor.getAllValues();
+	}
+
+	private static Node node(String path, int version) {
+		Node node = new Node(path, null, CreateMode.PERSISTENT);
+		node.getStat().setVersion(version);
+		node.setChildren(Collections.<String>emptyList());
+		return node;
+	}
+}
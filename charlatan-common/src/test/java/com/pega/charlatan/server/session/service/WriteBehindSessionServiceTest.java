@@ -0,0 +1,87 @@
+package com.pega.charlatan.server.session.service;
+
+import com.pega.charlatan.server.session.bean.Session;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindSessionServiceTest {
+
+	@Test
+	public void heartbeatsAreBatchedTest() {
+		RecordingSessionService delegate = new RecordingSessionService();
+		WriteBehindSessionService sessionService = new WriteBehindSessionService(delegate);
+
+		Session first = new Session(UUID.randomUUID(), 1);
+		Session second = new Session(UUID.randomUUID(), 1);
+		Session deleted = new Session(UUID.randomUUID(), 1);
+
+		for (int i = 2; i < 10; i++) {
+			first.setLastTimeSeen(i);
+			sessionService.updateSession(first);
+			sessionService.updateSession(deleted);
+		}
+		sessionService.updateSession(second);
+		sessionService.deleteSession(deleted.getUuid());
+
+		// Nothing is written until the flush
+		assertTrue(delegate.batches.isEmpty());
+		assertEquals(2, sessionService.getPendingSessions());
+
+		sessionService.flush();
+		assertEquals(1, delegate.batches.size());
+		List<Session> batch = delegate.batches.get(0);
+		assertEquals(2, batch.size());
+		assertTrue(batch.contains(first));
+		assertTrue(batch.contains(second));
+		assertEquals(9, first.getLastTimeSeen());
+
+		sessionService.flush();
+		assertEquals(1, delegate.batches.size());
+	}
+
+	@Test
+	public void staleSessionsSeePendingHeartbeatsTest() {
+		RecordingSessionService delegate = new RecordingSessionService();
+		WriteBehindSessionService sessionService = new WriteBehindSessionService(delegate);
+
+		sessionService.updateSession(new Session(UUID.randomUUID(), 1));
+		sessionService.getStaleSessions(0);
+
+		assertEquals(1, delegate.batches.size());
+		assertEquals(0, sessionService.getPendingSessions());
+	}
+
+	private static class RecordingSessionService implements SessionService {
+		private final List<List<Session>> batches = new ArrayList<>();
+
+		@Override
+		public void registerSession(String serverId, Session session) {
+		}
+
+		@Override
+		public void updateSession(Session session) {
+			throw new AssertionError("Sessions must be updated in batches");
+		}
+
+		@Override
+		public void updateSessions(Collection<Session> sessions) {
+			batches.add(new ArrayList<>(sessions));
+		}
+
+		@Override
+		public void deleteSession(UUID uuid) {
+		}
+
+		@Override
+		public List<Session> getStaleSessions(long maxLastSeen) {
+			return new ArrayList<>();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.pega.charlatan.watches.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NodePathTest {
+
+	@Test
+	public void pathsAreInternedTest() {
+		NodePath path = NodePath.of("/brokers/topics/t/partitions/0/state");
+
+		assertTrue(path == NodePath.of(new String("/brokers/topics/t/partitions/0/state")));
+		assertTrue(path == NodePath.find("/brokers/topics/t/partitions/0/state"));
+		assertTrue(path.getParent() == NodePath.find("/brokers/topics/t/partitions/0"));
+		assertTrue(path.getParent().getParent() == NodePath.of("/brokers/topics/t/partitions/1").getParent());
+		assertTrue(path == path.getParent().getChild("state"));
+		assertEquals("/brokers/topics/t/partitions/0/state", path.toString());
+		assertTrue(NodePath.findClosest("/brokers/topics/t/partitions/2/state") == path.getParent().getParent());
+	}
+
+	@Test
+	public void parentAndNameTest() {
+		NodePath path = NodePath.of("/a/b");
+
+		assertEquals("b", path.getName());
+		assertEquals("/a", path.getParent().toString());
+		assertEquals("a", path.getParent().getName());
+		assertTrue(path.getParent().getParent() == NodePath.root());
+		assertTrue(NodePath.of("/") == NodePath.root());
+		assertTrue(NodePath.root().isRoot());
+		assertNull(NodePath.root().getParent());
+		assertEquals("/c", NodePath.root().getChild("c").toString());
+		assertNull(NodePath.find("/a/x"));
+
+	}
+
+	@Test
+	public void unusedPathsAreCollectedTest() throws InterruptedException {
+		NodePath.of("/collected/path");
+
+		for (int i = 0; i < 100 && NodePath.find("/collected/path") != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(NodePath.find("/collected/path"));
+	}
+}
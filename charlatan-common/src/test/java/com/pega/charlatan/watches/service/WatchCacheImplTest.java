@@ -0,0 +1,254 @@
+package com.pega.charlatan.watches.service;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WatchCacheImplTest {
+
+	private static final Watcher.Event.KeeperState STATE = Watcher.Event.KeeperState.SyncConnected;
+
+	private static final int PATHS = 8;
+	private static final int REGISTER_THREADS = 4;
+	private static final int TRIGGER_THREADS = 2;
+	private static final int WATCHES_PER_THREAD = 20000;
+
+	@Test
+	public void triggeredWatchIsRemovedTest() {
+		WatchCache watchCache = new WatchCacheImpl();
+		Watcher watcher = new TestWatcher();
+
+		watchCache.registerDataWatch(watcher, "/a");
+		watchCache.registerDataWatch(watcher, "/a");
+		watchCache.registerChildWatch(watcher, "/b");
+
+		// None event doesn't remove the watches
+		assertEquals(1, watchCache.materialize(STATE, Watcher.Event.EventType.None, null).size());
+
+		assertEquals(1, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDataChanged, "/a").size());
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDataChanged, "/a").size());
+		assertEquals(1, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDeleted, "/b").size());
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.None, null).size());
+	}
+
+	@Test
+	public void removeWatchesTest() {
+		WatchCache watchCache = new WatchCacheImpl();
+		Watcher closed = new TestWatcher();
+		Watcher open = new TestWatcher();
+
+		watchCache.registerDataWatch(closed, "/a");
+		watchCache.registerExistWatch(closed, "/b");
+		watchCache.registerChildWatch(closed, "/c");
+		watchCache.registerDataWatch(open, "/a");
+
+		// Triggered watch is not removed again
+		assertEquals(1, watchCache.materialize(STATE, Watcher.Event.EventType.NodeChildrenChanged, "/c").size());
+
+		assertTrue(watchCache.removeWatches(closed));
+		assertFalse(watchCache.removeWatches(closed));
+
+		Set<Watcher> triggered = watchCache.materialize(STATE, Watcher.Event.EventType.NodeDataChanged, "/a");
+		assertEquals(1, triggered.size());
+		assertTrue(triggered.contains(open));
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.NodeCreated, "/b").size());
+
+		// All the watches of the watcher were triggered
+		assertFalse(watchCache.removeWatches(open));
+	}
+
+	@Test
+	public void persistentWatchTest() {
+		WatchCache watchCache = new WatchCacheImpl();
+		Watcher persistent = new TestWatcher();
+		Watcher recursive = new TestWatcher();
+
+		watchCache.registerPersistentWatch(persistent, "/brokers/topics", false);
+		watchCache.registerPersistentWatch(recursive, "/brokers/topics", true);
+
+		// Persistent watches are not removed when triggered
+		for (int i = 0; i < 2; i++) {
+			Set<Watcher> triggered = watchCache.materialize(STATE, Watcher.Event.EventType.NodeDataChanged, "/brokers/topics");
+			assertEquals(2, triggered.size());
+		}
+
+		Set<Watcher> triggered = watchCache.materialize(STATE, Watcher.Event.EventType.NodeChildrenChanged, "/brokers/topics");
+		assertEquals(1, triggered.size());
+		assertTrue(triggered.contains(persistent));
+
+		triggered = watchCache.materialize(STATE, Watcher.Event.EventType.NodeCreated, "/brokers/topics/t1/partitions/0/state");
+		assertEquals(1, triggered.size());
+		assertTrue(triggered.contains(recursive));
+		// Events are matched without interning their paths
+		assertNull(NodePath.find("/brokers/topics/t1/partitions/0/state"));
+
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.NodeChildrenChanged, "/brokers/topics/t1").size());
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDeleted, "/brokers/topic").size());
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDeleted, "/brokers").size());
+
+		assertTrue(watchCache.removeWatches(recursive));
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDeleted, "/brokers/topics/t1").size());
+		assertEquals(1, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDeleted, "/brokers/topics").size());
+	}
+
+	/**
+	 * Watches are registered and triggered concurrently, every registered watch must be triggered exactly once.
+	 */
+	@Test
+	public void reregisteredWatchIsRemovedTest() throws Exception {
+		Random random = new Random();
+		for (int round = 0; round < 2000; round++) {
+			final WatchCache watchCache = new WatchCacheImpl();
+			final Watcher watcher = new TestWatcher();
+			final CountDownLatch start = new CountDownLatch(1);
+			final int registrations = 1 + random.nextInt(20);
+
+			// The watcher registers again the path it is triggered for
+			Thread registerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < registrations; i++) {
+							watchCache.registerDataWatch(watcher, "/node");
+						}
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			registerThread.start();
+			start.countDown();
+			while (registerThread.isAlive()) {
+				watchCache.materialize(STATE, Watcher.Event.EventType.NodeDataChanged, "/node");
+			}
+			registerThread.join();
+
+			// The last registration is indexed, so it is removed with the watcher
+			watchCache.removeWatches(watcher);
+			assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.NodeDataChanged, "/node").size());
+		}
+	}
+
+	@Test
+	public void concurrentRegisterAndTriggerTest() throws Exception {
+		final WatchCache watchCache = new WatchCacheImpl();
+		final ConcurrentMap<Watcher, AtomicInteger> triggers = new ConcurrentHashMap<>();
+		final List<Throwable> errors = new ArrayList<>();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean registering = new AtomicBoolean(true);
+
+		List<Thread> registerThreads = new ArrayList<>();
+		for (int t = 0; t < REGISTER_THREADS; t++) {
+			final Random random = new Random(t);
+			registerThreads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < WATCHES_PER_THREAD; i++) {
+							Watcher watcher = new TestWatcher();
+							triggers.put(watcher, new AtomicInteger());
+
+							String path = "/node" + random.nextInt(PATHS);
+							switch (random.nextInt(3)) {
+								case 0:
+									watchCache.registerDataWatch(watcher, path);
+									break;
+								case 1:
+									watchCache.registerExistWatch(watcher, path);
+									break;
+								default:
+									watchCache.registerChildWatch(watcher, path);
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			}));
+		}
+
+		List<Thread> triggerThreads = new ArrayList<>();
+		for (int t = 0; t < TRIGGER_THREADS; t++) {
+			final Random random = new Random(100 + t);
+			triggerThreads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						while (registering.get()) {
+							String path = "/node" + random.nextInt(PATHS);
+							Watcher.Event.EventType type = random.nextBoolean() ? Watcher.Event.EventType.NodeCreated : Watcher.Event.EventType.NodeChildrenChanged;
+							count(watchCache.materialize(STATE, type, path), triggers);
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			}));
+		}
+
+		for (Thread thread : registerThreads) {
+			thread.start();
+		}
+		for (Thread thread : triggerThreads) {
+			thread.start();
+		}
+		start.countDown();
+
+		for (Thread thread : registerThreads) {
+			thread.join();
+		}
+		registering.set(false);
+		for (Thread thread : triggerThreads) {
+			thread.join();
+		}
+
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		// Trigger watches that remained registered
+		for (int i = 0; i < PATHS; i++) {
+			count(watchCache.materialize(STATE, Watcher.Event.EventType.NodeCreated, "/node" + i), triggers);
+			count(watchCache.materialize(STATE, Watcher.Event.EventType.NodeChildrenChanged, "/node" + i), triggers);
+		}
+
+		assertEquals(REGISTER_THREADS * WATCHES_PER_THREAD, triggers.size());
+		for (AtomicInteger count : triggers.values()) {
+			assertEquals(1, count.get());
+		}
+		assertEquals(0, watchCache.materialize(STATE, Watcher.Event.EventType.None, null).size());
+	}
+
+	private static void count(Set<Watcher> triggered, ConcurrentMap<Watcher, AtomicInteger> triggers) {
+		for (Watcher watcher : triggered) {
+			triggers.get(watcher).incrementAndGet();
+		}
+	}
+
+	private static class TestWatcher implements Watcher {
+		@Override
+		public void process(WatchedEvent event) {
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.pega.charlatan.watches.service;
+
+import com.pega.charlatan.node.bean.NodeUpdate;
+import com.pega.charlatan.utils.NamedThreadFactory;
+import com.pega.charlatan.watches.dao.NodeUpdateDao;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class WatchServiceImplEventsTest {
+
+	private NodeUpdateDao nodeUpdateDao;
+	private WatchServiceImpl watchService;
+
+	@Before
+	public void setUp() {
+		nodeUpdateDao = Mockito.mock(NodeUpdateDao.class);
+		watchService = new WatchServiceImpl(Mockito.mock(WatchCache.class), nodeUpdateDao, 1, new NamedThreadFactory("watcher"));
+		// Events are flushed by the test
+		watchService.setEventCoalescingWindow(60000);
+	}
+
+	@After
+	public void tearDown() {
+		watchService.stop();
+	}
+
+	@Test
+	public void repeatedEventsAreCoalescedTest() {
+		watchService.communicateEvent(event("/a"));
+		watchService.communicateEvent(event("/b"));
+		watchService.communicateEvent(event("/a"));
+		watchService.flushUpdates();
+
+		assertEquals(Arrays.asList("/b", "/a"), paths(storedUpdates(1).get(0)));
+		assertEquals(1, watchService.getCoalescedEvents());
+	}
+
+	@Test
+	public void repeatedEventsAreKeptWithoutCoalescingTest() {
+		watchService.setEventCoalescing(false);
+		watchService.communicateEvent(event("/a"));
+		watchService.communicateEvent(event("/a"));
+		watchService.flushUpdates();
+
+		assertEquals(Arrays.asList("/a", "/a"), paths(storedUpdates(1).get(0)));
+		assertEquals(0, watchService.getCoalescedEvents());
+	}
+
+	@Test
+	public void failedUpdatesAreRetriedTest() {
+		Mockito.doThrow(new RuntimeException("store failed")).doNothing().when(nodeUpdateDao).insertUpdates(Mockito.<NodeUpdate>anyList());
+
+		watchService.communicateEvent(event("/a"));
+		watchService.communicateEvent(event("/b"));
+		watchService.flushUpdates();
+		watchService.communicateEvent(event("/c"));
+		watchService.communicateEvent(event("/a"));
+
+		// The failed updates are retried before the newer ones, the repeated event is coalesced
+		List<List<NodeUpdate>> stored = storedUpdates(2);
+		assertEquals(Arrays.asList("/a", "/b"), paths(stored.get(0)));
+		assertEquals(Arrays.asList("/b", "/c", "/a"), paths(stored.get(1)));
+	}
+
+	private static WatchedEvent event(String path) {
+		return new WatchedEvent(Watcher.Event.EventType.NodeDataChanged, Watcher.Event.KeeperState.SyncConnected, path);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<List<NodeUpdate>> storedUpdates(int batches) {
+		ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+		Mockito.verify(nodeUpdateDao, Mockito.timeout(5000).times(batches)).insertUpdates(captor.capture());
+
+		List<List<NodeUpdate>> stored = new ArrayList<>();
+		for (List batch : captor.getAllValues()) {
+			stored.add(new ArrayList<NodeUpdate>(batch));
+		}
+		return stored;
+	}
+
+	private static List<String> paths(List<NodeUpdate> updates) {
+		List<String> paths = new ArrayList<>();
+		for (NodeUpdate update : updates) {
+			paths.add(update.getPath());
+		}
+		return paths;
+	}
+}
@@ -20,82 +20,115 @@ public class WatchServiceImplTest {
 	private static long timestamp1 = 1504082581000l; //August 30, 2017 8:43:01 AM
 	private static long timestamp2 = 1504083600000l; //August 30, 2017 9:00:00 AM
 
-	private static NodeUpdate update1WithTimestamp1 = new NodeUpdate(Watcher.Event.EventType.NodeCreated, "/test/child1", timestamp1, 2);
-	private static NodeUpdate update2WithTimestamp2 = new NodeUpdate(Watcher.Event.EventType.NodeCreated, "/test/child2", timestamp2, 3);
-	private static NodeUpdate update3WithTimestamp2 = new NodeUpdate(Watcher.Event.EventType.NodeCreated, "/test/child3", timestamp2, 2);
+	private static NodeUpdate update11 = newUpdate(11, "/test/child1", timestamp1, 2);
+	private static NodeUpdate update12 = newUpdate(12, "/test/child2", timestamp2, 3);
+	private static NodeUpdate update14 = newUpdate(14, "/test/child3", timestamp2, 2);
+	private static NodeUpdate update15 = newUpdate(15, "/test/child4", timestamp1, 3);
 
-	private static Set<NodeUpdate> updatesWithTimestamp1_1 = new HashSet<>();
-	private static Set<NodeUpdate> updatesWithTimestamp2_1 = new HashSet<>();
-	private static Set<NodeUpdate> updatesWithTimestamp2_2 = new HashSet<>();
 	private static int BROKER_ID = 1;
-
-	static {
-		updatesWithTimestamp1_1.add(update1WithTimestamp1);
-	}
-
-	static {
-		updatesWithTimestamp2_1.add(update2WithTimestamp2);
-	}
-
-	static {
-		updatesWithTimestamp2_2.add(update2WithTimestamp2);
-		updatesWithTimestamp2_2.add(update3WithTimestamp2);
+	private static int BATCH_SIZE = 2;
+
+	private long lastUpdateIdBeforePull;
+	// Pages returned by the dao, keyed by the requested afterId
+	private Map<Long, List<NodeUpdate>> pages;
+	private long lastUpdateIdAfterPull;
+
+	public WatchServiceImplTest(long lastUpdateIdBeforePull, NodeUpdate[][] pages, long lastUpdateIdAfterPull, String testName) {
+		this.lastUpdateIdBeforePull = lastUpdateIdBeforePull;
+		this.lastUpdateIdAfterPull = lastUpdateIdAfterPull;
+
+		this.pages = new HashMap<>();
+		long afterId = lastUpdateIdBeforePull;
+		for (NodeUpdate[] page : pages) {
+			this.pages.put(afterId, Arrays.asList(page));
+			if (page.length > 0) {
+				afterId = page[page.length - 1].getId();
+			}
+		}
 	}
 
-	private long latestTimestampBeforePull;
-	private Set<NodeUpdate> latestUpdatesBeforePull;
-
-	private List<NodeUpdate> updatesFromLatestTimestamp;
-
-	private long latestTimestampAfterPull;
-	private Set<NodeUpdate> latestUpdateAfterPull;
-
-	public WatchServiceImplTest(long latestTimestampBeforePull, Set<NodeUpdate> latestUpdatesBeforePull, NodeUpdate[] updatesFromLatestTimestamp, long latestTimestampAfterPull, Set<NodeUpdate> latestUpdateAfterPull, String testName) {
-		this.latestTimestampBeforePull = latestTimestampBeforePull;
-		this.latestUpdatesBeforePull = latestUpdatesBeforePull;
-		this.updatesFromLatestTimestamp = Arrays.asList(updatesFromLatestTimestamp);
-		this.latestTimestampAfterPull = latestTimestampAfterPull;
-		this.latestUpdateAfterPull = latestUpdateAfterPull;
-	}
-
-	@Parameters(name = "{5}")
+	@Parameters(name = "{3}")
 	public static Collection<Object[]> data() {
 		return Arrays.asList(new Object[][]{
-				{timestamp1, new HashSet<NodeUpdate>(), new NodeUpdate[]{},
-						timestamp1, new HashSet<NodeUpdate>(), "Before: no updates. Pull: no updates. After: no updates"
+				{10, new NodeUpdate[][]{{}},
+						10, "Before: id 10. Pull: no updates. After: same id"
 				},
-				{timestamp1, new HashSet<NodeUpdate>(), new NodeUpdate[]{update1WithTimestamp1, update2WithTimestamp2},
-						timestamp2, updatesWithTimestamp2_1, "Before: no updates. Pull: 2 updates/different timestamp. After: one update with biggest timestamp"
+				{10, new NodeUpdate[][]{{update11}},
+						11, "Before: id 10. Pull: 1 update. After: id of the update"
 				},
-				{timestamp1, new HashSet<NodeUpdate>(), new NodeUpdate[]{update1WithTimestamp1, update2WithTimestamp2, update3WithTimestamp2},
-						timestamp2, updatesWithTimestamp2_2, "Before: no updates. Pull: 3 updates/different timestamp. After: two update with biggest timestamp"
+				{10, new NodeUpdate[][]{{update11, update12}, {}},
+						12, "Before: id 10. Pull: full page, then no updates. After: id of the last update"
 				},
-				{timestamp2, updatesWithTimestamp2_1, new NodeUpdate[]{update2WithTimestamp2, update3WithTimestamp2},
-						timestamp2 + 1, new HashSet<NodeUpdate>(), "Before: 1 update. Pull: 2 updates/same timestamp. After: no updates, timestamp increased"
+				{10, new NodeUpdate[][]{{update11, update12}, {update14, update15}, {}},
+						15, "Before: id 10. Pull: 2 full pages with gap in ids. After: id of the last update"
 				},
-				{timestamp2, updatesWithTimestamp2_2, new NodeUpdate[]{update2WithTimestamp2, update3WithTimestamp2},
-						timestamp2 + 1, new HashSet<NodeUpdate>(), "Before: 2 updates. Pull: 2 same updates. After: no updates, timestamp increased"
-				},
-				{timestamp2, updatesWithTimestamp2_2, new NodeUpdate[]{},
-						timestamp2, updatesWithTimestamp2_2, "Before: has updates. Pull: no updates. After: same updates"}
+				{13, new NodeUpdate[][]{{update14}},
+						14, "Before: id 13. Pull: 1 update with same timestamp as older update. After: id of the update"
+				}
 		});
 	}
 
 	@Test
 	public void pullUpdatesTest() throws Exception {
 		NodeUpdateDao nodeUpdateDao = Mockito.mock(NodeUpdateDao.class);
-		Mockito.when(nodeUpdateDao.getNodeUpdates(BROKER_ID, latestTimestampBeforePull)).thenReturn(updatesFromLatestTimestamp);
+		for (Map.Entry<Long, List<NodeUpdate>> page : pages.entrySet()) {
+			Mockito.when(nodeUpdateDao.getNodeUpdates(BROKER_ID, page.getKey(), BATCH_SIZE)).thenReturn(page.getValue());
+		}
 
 		WatchCache watchCache = Mockito.mock(WatchCache.class);
 
-		WatchServiceImpl remoteNodeUpdateManager = new WatchServiceImpl(watchCache, nodeUpdateDao, latestTimestampBeforePull, BROKER_ID, new NamedThreadFactory("watcher"));
-		remoteNodeUpdateManager.lastCheckedTimestamp = latestTimestampBeforePull;
-		remoteNodeUpdateManager.lastCheckedNodeUpdates = latestUpdatesBeforePull;
+		WatchServiceImpl remoteNodeUpdateManager = new WatchServiceImpl(watchCache, nodeUpdateDao, BROKER_ID, new NamedThreadFactory("watcher"));
+		remoteNodeUpdateManager.setUpdatesBatchSize(BATCH_SIZE);
+		remoteNodeUpdateManager.lastUpdateId = lastUpdateIdBeforePull;
 
-		// First pull, highest timestamp is timestamp2
 		remoteNodeUpdateManager.pullUpdates();
 
-		assertEquals(latestTimestampAfterPull, remoteNodeUpdateManager.lastCheckedTimestamp);
-		assertEquals(latestUpdateAfterPull, remoteNodeUpdateManager.lastCheckedNodeUpdates);
+		assertEquals(lastUpdateIdAfterPull, remoteNodeUpdateManager.lastUpdateId);
+		for (Long afterId : pages.keySet()) {
+			Mockito.verify(nodeUpdateDao).getNodeUpdates(BROKER_ID, afterId, BATCH_SIZE);
+		}
+		assertEquals(lastUpdateIdAfterPull, remoteNodeUpdateManager.readUpdateId);
+	}
+
+	@Test
+	public void pullUpdatesStartsFromLastStoredUpdateTest() throws Exception {
+		NodeUpdateDao nodeUpdateDao = Mockito.mock(NodeUpdateDao.class);
+		Mockito.when(nodeUpdateDao.getLastUpdateId()).thenReturn(lastUpdateIdBeforePull);
+		for (Map.Entry<Long, List<NodeUpdate>> page : pages.entrySet()) {
+			Mockito.when(nodeUpdateDao.getNodeUpdates(BROKER_ID, page.getKey(), BATCH_SIZE)).thenReturn(page.getValue());
+		}
+
+		WatchServiceImpl remoteNodeUpdateManager = new WatchServiceImpl(Mockito.mock(WatchCache.class), nodeUpdateDao, BROKER_ID, new NamedThreadFactory("watcher"));
+		remoteNodeUpdateManager.setUpdatesBatchSize(BATCH_SIZE);
+
+		remoteNodeUpdateManager.pullUpdates();
+
+		assertEquals(lastUpdateIdAfterPull, remoteNodeUpdateManager.lastUpdateId);
+	}
+
+	@Test
+	public void clearUpdatesKeepsUnreadUpdatesTest() throws Exception {
+		NodeUpdateDao nodeUpdateDao = Mockito.mock(NodeUpdateDao.class);
+		Mockito.when(nodeUpdateDao.getLastUpdateId()).thenReturn(lastUpdateIdBeforePull);
+		for (Map.Entry<Long, List<NodeUpdate>> page : pages.entrySet()) {
+			Mockito.when(nodeUpdateDao.getNodeUpdates(BROKER_ID, page.getKey(), BATCH_SIZE)).thenReturn(page.getValue());
+		}
+
+		WatchServiceImpl remoteNodeUpdateManager = new WatchServiceImpl(Mockito.mock(WatchCache.class), nodeUpdateDao, BROKER_ID, new NamedThreadFactory("watcher"));
+		remoteNodeUpdateManager.setUpdatesBatchSize(BATCH_SIZE);
+
+		// Nothing is cleared before the updates are read
+		remoteNodeUpdateManager.clearUpdates();
+		Mockito.verify(nodeUpdateDao, Mockito.never()).clearOldUpdates(Mockito.anyLong(), Mockito.anyLong(), Mockito.anyLong(), Mockito.anyInt());
+
+		remoteNodeUpdateManager.pullUpdates();
+		remoteNodeUpdateManager.clearUpdates();
+		Mockito.verify(nodeUpdateDao).clearOldUpdates(Mockito.anyLong(), Mockito.anyLong(), Mockito.eq(lastUpdateIdAfterPull), Mockito.anyInt());
+	}
+
+	private static NodeUpdate newUpdate(long id, String path, long timestamp, int broker) {
+		NodeUpdate update = new NodeUpdate(Watcher.Event.EventType.NodeCreated, path, timestamp, broker);
+		update.setId(id);
+		return update;
 	}
-}
\ No newline at end of file
+}
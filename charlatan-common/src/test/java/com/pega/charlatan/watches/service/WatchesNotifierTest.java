@@ -0,0 +1,75 @@
+package com.pega.charlatan.watches.service;
+
+import com.pega.charlatan.utils.NamedThreadFactory;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WatchesNotifierTest {
+
+	private static final int WATCHERS = 20;
+	private static final int EVENTS = 1000;
+
+	/**
+	 * Events of every watcher are delivered in the order they were triggered.
+	 */
+	@Test
+	public void perWatcherOrderTest() throws Exception {
+		WatchesNotifier notifier = new WatchesNotifier(Mockito.mock(WatchCache.class), 4, 10, new NamedThreadFactory("notifier"));
+		notifier.start();
+
+		CountDownLatch delivered = new CountDownLatch(WATCHERS * EVENTS);
+		List<RecordingWatcher> watchers = new ArrayList<>();
+		for (int i = 0; i < WATCHERS; i++) {
+			watchers.add(new RecordingWatcher(delivered));
+		}
+
+		for (int e = 0; e < EVENTS; e++) {
+			WatchedEvent event = new WatchedEvent(Watcher.Event.EventType.NodeDataChanged, Watcher.Event.KeeperState.SyncConnected, "/node" + e);
+			for (RecordingWatcher watcher : watchers) {
+				notifier.notify(watcher, event);
+			}
+		}
+
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+
+		for (RecordingWatcher watcher : watchers) {
+			assertEquals(EVENTS, watcher.paths.size());
+			for (int e = 0; e < EVENTS; e++) {
+				assertEquals("/node" + e, watcher.paths.get(e));
+			}
+		}
+		// Delivered events are counted after the watcher is notified
+		long deadline = System.currentTimeMillis() + 1000;
+		while (notifier.getDeliveredEvents() < WATCHERS * EVENTS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(WATCHERS * EVENTS, notifier.getDeliveredEvents());
+		assertEquals(0, notifier.getQueuedEvents());
+	}
+
+	private static class RecordingWatcher implements Watcher {
+		private final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+		private final CountDownLatch delivered;
+
+		RecordingWatcher(CountDownLatch delivered) {
+			this.delivered = delivered;
+		}
+
+		@Override
+		public void process(WatchedEvent event) {
+			paths.add(event.getPath());
+			delivered.countDown();
+		}
+	}
+}
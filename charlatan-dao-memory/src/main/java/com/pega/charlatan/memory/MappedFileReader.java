@@ -0,0 +1,132 @@
+package com.pega.charlatan.memory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Sequential reader of a file mapped to memory in windows, so files over 2GB can be read too.
+ * <p>
+ * {@link #slice(int)} returns a part of the mapped file without copying it to the heap, the slice stays valid after
+ * the reader is closed. Every byte read by the reader is added to the checksum, see {@link #getChecksum()}. Sliced
+ * bytes are skipped by the checksum, so their pages are not touched until the slice is read.
+ */
+class MappedFileReader implements Closeable {
+
+	private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long size;
+	private final CRC32 checksum = new CRC32();
+	private final byte[] checksumBuffer = new byte[64 * 1024];
+
+	private MappedByteBuffer window;
+	// Position of the window in the file
+	private long windowPosition;
+	// Position in the window up to which the checksum is computed
+	private int checksumPosition;
+
+	MappedFileReader(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+		map(0, 0);
+	}
+
+	boolean readBoolean() throws IOException {
+		return ensure(1).get() != 0;
+	}
+
+	int readInt() throws IOException {
+		return ensure(4).getInt();
+	}
+
+	long readLong() throws IOException {
+		return ensure(8).getLong();
+	}
+
+	/**
+	 * Reads a string stored as int length (-1 for null) followed by UTF-8 bytes.
+	 */
+	String readString() throws IOException {
+		int length = readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] b = new byte[length];
+		ensure(length).get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the next length bytes of the file without copying them. The bytes are not added to the checksum.
+	 */
+	ByteBuffer slice(int length) throws IOException {
+		ByteBuffer buffer = ensure(length);
+		updateChecksum();
+
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(slice.position() + length);
+		buffer.position(buffer.position() + length);
+		checksumPosition = buffer.position();
+		return slice.slice();
+	}
+
+	/**
+	 * Checksum of all the bytes read so far, except the slices.
+	 */
+	long getChecksum() {
+		updateChecksum();
+		return checksum.getValue();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private ByteBuffer ensure(int length) throws IOException {
+		if (length < 0) {
+			throw new IOException("Invalid length " + length);
+		}
+		if (window.remaining() < length) {
+			map(windowPosition + window.position(), length);
+		}
+		return window;
+	}
+
+	private void map(long position, int length) throws IOException {
+		if (position + length > size) {
+			throw new EOFException();
+		}
+
+		if (window != null) {
+			updateChecksum();
+		}
+
+		long windowSize = Math.min(Math.max(length, WINDOW_SIZE), size - position);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+		windowPosition = position;
+		checksumPosition = 0;
+	}
+
+	private void updateChecksum() {
+		ByteBuffer passed = window.duplicate();
+		passed.position(checksumPosition);
+		passed.limit(window.position());
+
+		while (passed.hasRemaining()) {
+			int length = Math.min(passed.remaining(), checksumBuffer.length);
+			passed.get(checksumBuffer, 0, length);
+			checksum.update(checksumBuffer, 0, length);
+		}
+		checksumPosition = window.position();
+	}
+}
@@ -0,0 +1,1099 @@
+package com.pega.charlatan.memory;
+
+import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import com.pega.charlatan.node.dao.DataAccessException;
+import com.pega.charlatan.node.dao.RecordNotFoundException;
+import com.pega.charlatan.server.session.bean.Session;
+import com.pega.charlatan.utils.NamedThreadFactory;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Node tree and sessions of the in-memory daos, made durable by a write-ahead log and snapshots.
+ * <p>
+ * Nodes are kept in a concurrent hash map from path to node and the child names of every node in a concurrent set,
+ * so reads never lock. Writes are serialized by a single lock: a change is validated, appended to the log and applied
+ * under the lock, then the writer waits outside the lock until the log is synced, so concurrent writers share the
+ * syncs. Log records hold the resulting state of the changed nodes and sessions, replaying a record twice gives the
+ * same state.
+ * <p>
+ * A change is visible before it is synced. If the log fails to store it, the change stays in memory but would be lost
+ * on restart, so the database is marked failed: every following read and write fails until the database is reopened
+ * and recovered from the log.
+ * <p>
+ * When the current log segment grows over the snapshot threshold, nodes and sessions are written to a snapshot and
+ * the older segments are deleted. Writes continue during the snapshot: the log is rolled first, and the records
+ * appended after the roll are replayed on top of the snapshot on recovery.
+ * <p>
+ * Snapshots are loaded through a memory-mapped file: nodes are indexed on start, but their data stays in the mapped
+ * file until it is first read, so a restart doesn't copy the whole tree to the heap. The snapshot checksum covers
+ * the index only, data of every node has its own checksum that is verified when the data is first read, so a restart
+ * doesn't read the data pages either.
+ * <p>
+ * The database of the daos created by the classpath scanning is configured by memory.properties: "directory",
+ * "syncWrites" and "snapshotLogSize". The directory can be overridden by {@link #DIRECTORY_PROPERTY} system property.
+ */
+public class MemoryDatabase implements Closeable {
+
+	public static final String DIRECTORY_PROPERTY = "charlatan.memory.directory";
+	public static final String DEFAULT_DIRECTORY = "charlatan-data";
+	public static final long DEFAULT_SNAPSHOT_LOG_SIZE = 64L * 1024 * 1024;
+
+	static final String SNAPSHOT_PREFIX = "snapshot.";
+
+	private static final int SNAPSHOT_MAGIC = 0x43484c4e;
+	private static final int SNAPSHOT_VERSION = 2;
+
+	// Changes of a log record
+	private static final byte PUT_NODE = 1;
+	private static final byte REMOVE_NODE = 2;
+	private static final byte PUT_SESSION = 3;
+	private static final byte REMOVE_SESSION = 4;
+
+	private static Logger logger = LoggerFactory.getLogger(MemoryDatabase.class);
+
+	private static MemoryDatabase defaultDatabase;
+
+	private final ConcurrentMap<String, MemoryNode> nodes = new ConcurrentHashMap<>();
+	// Child names by parent path
+	private final ConcurrentMap<String, Set<String>> children = new ConcurrentHashMap<>();
+	// Ephemeral node paths by owner session
+	private final ConcurrentMap<Long, Set<String>> ephemerals = new ConcurrentHashMap<>();
+	private final ConcurrentMap<UUID, StoredSession> sessions = new ConcurrentHashMap<>();
+	private final NodeUpdateLog nodeUpdates = new NodeUpdateLog();
+
+	private final Object writeLock = new Object();
+	private final File directory;
+	private final long snapshotLogSize;
+	private final WriteAheadLog log;
+	private final ExecutorService snapshotService;
+	private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+	// Failure of the log, the memory state may hold changes that are not stored
+	private volatile IOException failure;
+
+	/**
+	 * Opens the database, recovering its state from the latest snapshot and the log.
+	 *
+	 * @param directory       database directory, created if it doesn't exist
+	 * @param syncWrites      whether changes are synced to the disk before they are acknowledged
+	 * @param snapshotLogSize size of the log segment in bytes after which a snapshot is written
+	 */
+	public MemoryDatabase(File directory, boolean syncWrites, long snapshotLogSize) {
+		this.directory = directory;
+		this.snapshotLogSize = snapshotLogSize;
+
+		ThreadFactory threadFactory = new NamedThreadFactory("charlatan-memory-db");
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Failed to create directory " + directory);
+			}
+
+			long segment = recover();
+			this.log = new WriteAheadLog(directory, segment, syncWrites, threadFactory);
+		} catch (IOException e) {
+			throw new DataAccessException("Failed to open database in " + directory, e);
+		}
+		this.snapshotService = Executors.newSingleThreadExecutor(threadFactory);
+
+		if (!nodes.containsKey("/")) {
+			try {
+				createNode(0, new Node("/"));
+			} catch (RecordNotFoundException e) {
+				// root has no parent
+			}
+		}
+	}
+
+	/**
+	 * Database of the daos created without an explicit database, opened on the first use.
+	 */
+	public static synchronized MemoryDatabase getDefault() {
+		if (defaultDatabase == null) {
+			Properties prop = readProperties();
+
+			String directory = System.getProperty(DIRECTORY_PROPERTY, prop.getProperty("directory", DEFAULT_DIRECTORY));
+			boolean syncWrites = Boolean.parseBoolean(prop.getProperty("syncWrites", "true").trim());
+			long snapshotLogSize = Long.parseLong(prop.getProperty("snapshotLogSize", String.valueOf(DEFAULT_SNAPSHOT_LOG_SIZE)).trim());
+
+			defaultDatabase = new MemoryDatabase(new File(directory), syncWrites, snapshotLogSize);
+		}
+		return defaultDatabase;
+	}
+
+	private static Properties readProperties() {
+		Properties prop = new Properties();
+		try (InputStream input = new FileInputStream("memory.properties")) {
+			prop.load(input);
+		} catch (FileNotFoundException e) {
+			// defaults are used
+		} catch (IOException e) {
+			logger.warn("Failed to read memory.properties, defaults are used", e);
+		}
+		return prop;
+	}
+
+	NodeUpdateLog getNodeUpdates() {
+		return nodeUpdates;
+	}
+
+	/**
+	 * @return false if the node already exists
+	 * @throws RecordNotFoundException if the parent node doesn't exist
+	 */
+	boolean createNode(long session, Node node) throws RecordNotFoundException {
+		long sequence;
+		synchronized (writeLock) {
+			String parentPath = node.getParentPath();
+			if (parentPath != null && !nodes.containsKey(parentPath)) {
+				throw new RecordNotFoundException(parentPath);
+			}
+			if (nodes.containsKey(node.getPath())) {
+				return false;
+			}
+
+			Transaction tx = new Transaction();
+			tx.putNode(newNode(session, node));
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+		return true;
+	}
+
+	/**
+	 * Creates the node with the path suffixed by the parent cversion and increments the parent cversion.
+	 *
+	 * @return path of the created node, null if it already existed
+	 */
+	String createSequentialNode(long session, Node node) throws RecordNotFoundException {
+		long sequence;
+		String path;
+		synchronized (writeLock) {
+			String parentPath = node.getParentPath();
+			MemoryNode parent = nodes.get(parentPath);
+			if (parent == null) {
+				throw new RecordNotFoundException(parentPath);
+			}
+
+			path = Node.getSequentialPath(node.getPath(), parent.cversion);
+			if (nodes.containsKey(path)) {
+				return null;
+			}
+
+			Transaction tx = new Transaction();
+			tx.putNode(parent.withCversion(parent.cversion + 1));
+			tx.putNode(newNode(session, new Node(path, node.getData(), node.getMode())));
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+		return path;
+	}
+
+	/**
+	 * Deletes the node if it has the version (any version if negative) and has no children.
+	 *
+	 * @return false if the node was not deleted
+	 */
+	boolean deleteNode(String path, int version) {
+		long sequence;
+		synchronized (writeLock) {
+			MemoryNode node = nodes.get(path);
+			if (!matches(node, version) || hasChildren(Collections.<String, MemoryNode>emptyMap(), path)) {
+				return false;
+			}
+
+			Transaction tx = new Transaction();
+			tx.removeNode(path);
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+		return true;
+	}
+
+	Node getNode(String path) throws RecordNotFoundException {
+		checkFailure();
+
+		MemoryNode stored = nodes.get(path);
+		if (stored == null) {
+			throw new RecordNotFoundException(path);
+		}
+
+		byte[] data = stored.getData();
+		Node node = new Node(stored.path, data, stored.mode);
+		Stat stat = node.getStat();
+		setStat(stat, stored, data);
+
+		Set<String> names = children.get(path);
+		List<String> childNames = names == null ? new ArrayList<String>() : new ArrayList<>(names);
+		node.setChildren(childNames);
+		stat.setNumChildren(childNames.size());
+		return node;
+	}
+
+	void updateNode(String path, byte[] data, int newVersion, long modificationTime) {
+		long sequence;
+		synchronized (writeLock) {
+			MemoryNode node = nodes.get(path);
+			if (node == null) {
+				return;
+			}
+
+			Transaction tx = new Transaction();
+			tx.putNode(node.withData(data, newVersion, modificationTime));
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+	}
+
+	/**
+	 * Updates data of the node if it has the expected version (any version if negative), incrementing the version.
+	 *
+	 * @return stat of the updated node, null if the node has another version
+	 */
+	Stat compareAndSet(String path, int expectedVersion, byte[] data, long modificationTime) throws RecordNotFoundException {
+		long sequence;
+		Stat stat = new Stat();
+		synchronized (writeLock) {
+			MemoryNode node = nodes.get(path);
+			if (node == null) {
+				throw new RecordNotFoundException(path);
+			}
+			if (!matches(node, expectedVersion)) {
+				return null;
+			}
+
+			MemoryNode updated = node.withData(data, node.version + 1, modificationTime);
+			Transaction tx = new Transaction();
+			tx.putNode(updated);
+			sequence = commit(tx);
+
+			setStat(stat, updated, data);
+			Set<String> names = children.get(path);
+			stat.setNumChildren(names == null ? 0 : names.size());
+		}
+		awaitWritten(sequence);
+		return stat;
+	}
+
+	void incrementCVersion(String path) {
+		long sequence;
+		synchronized (writeLock) {
+			MemoryNode node = nodes.get(path);
+			if (node == null) {
+				return;
+			}
+
+			Transaction tx = new Transaction();
+			tx.putNode(node.withCversion(node.cversion + 1));
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+	}
+
+	List<String> getEphemeralPaths(long session) {
+		checkFailure();
+
+		Set<String> paths = ephemerals.get(session);
+		return paths == null ? new ArrayList<String>() : new ArrayList<>(paths);
+	}
+
+	/**
+	 * Validates all the operations against the current tree and the changes of the preceding operations, then stores
+	 * all the changes as a single log record.
+	 *
+	 * @return -1 if the batch was applied, otherwise index of the operation which precondition failed
+	 */
+	int executeBatch(long session, List<NodeOperation> operations) {
+		long sequence;
+		synchronized (writeLock) {
+			// Nodes changed by the batch, null for the deleted ones
+			Map<String, MemoryNode> changed = new HashMap<>();
+			Transaction tx = new Transaction();
+
+			for (int i = 0; i < operations.size(); i++) {
+				NodeOperation operation = operations.get(i);
+				String path = operation.getPath();
+				MemoryNode node = lookup(changed, path);
+
+				switch (operation.getType()) {
+					case CREATE: {
+						Node created = operation.getNode();
+						String parentPath = created.getParentPath();
+						if (node != null || (parentPath != null && lookup(changed, parentPath) == null)) {
+							return i;
+						}
+
+						MemoryNode newNode = newNode(session, created);
+						changed.put(path, newNode);
+						tx.putNode(newNode);
+						break;
+					}
+					case DELETE:
+						if (!matches(node, operation.getVersion()) || hasChildren(changed, path)) {
+							return i;
+						}
+
+						changed.put(path, null);
+						tx.removeNode(path);
+						break;
+					case UPDATE:
+						if (!matches(node, operation.getVersion())) {
+							return i;
+						}
+
+						// Relative to the current node, a concurrent update is never overwritten with the same version
+						MemoryNode updated = node.withData(operation.getData(), node.version + 1, operation.getModificationTime());
+						changed.put(path, updated);
+						tx.putNode(updated);
+						break;
+					case INCREMENT_CVERSION:
+						if (node == null || (operation.getCversion() >= 0 && node.cversion != operation.getCversion())) {
+							return i;
+						}
+
+						MemoryNode cversionUpdated = node.withCversion(node.cversion + 1);
+						changed.put(path, cversionUpdated);
+						tx.putNode(cversionUpdated);
+						break;
+					case CHECK:
+						if (!matches(node, operation.getVersion())) {
+							return i;
+						}
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown operation " + operation);
+				}
+			}
+
+			if (tx.isEmpty()) {
+				return -1;
+			}
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+		return -1;
+	}
+
+	void insertSession(String serverId, Session session) {
+		long sequence;
+		synchronized (writeLock) {
+			Transaction tx = new Transaction();
+			tx.putSession(new StoredSession(serverId, copy(session)));
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+	}
+
+	/**
+	 * Updates session id, timeout and last seen time of the existing sessions in a single log record.
+	 */
+	void updateSessions(Collection<Session> updates) {
+		long sequence;
+		synchronized (writeLock) {
+			Transaction tx = new Transaction();
+			for (Session update : updates) {
+				StoredSession stored = sessions.get(update.getUuid());
+				if (stored != null) {
+					Session session = new Session(update.getUuid(), stored.session.getStartTime());
+					session.setSessionId(update.getSessionId());
+					session.setTimeout(update.getTimeout());
+					session.setLastTimeSeen(update.getLastTimeSeen());
+					tx.putSession(new StoredSession(stored.serverId, session));
+				}
+			}
+
+			if (tx.isEmpty()) {
+				return;
+			}
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+	}
+
+	void deleteSession(UUID uuid) {
+		long sequence;
+		synchronized (writeLock) {
+			if (!sessions.containsKey(uuid)) {
+				return;
+			}
+
+			Transaction tx = new Transaction();
+			tx.removeSession(uuid);
+			sequence = commit(tx);
+		}
+		awaitWritten(sequence);
+	}
+
+	List<Session> getStaleSessions(long maxLastSeenTime) {
+		checkFailure();
+
+		List<Session> stale = new ArrayList<>();
+		for (StoredSession stored : sessions.values()) {
+			if (stored.session.getLastTimeSeen() < maxLastSeenTime) {
+				stale.add(copy(stored.session));
+			}
+		}
+		return stale;
+	}
+
+	Session getSession(UUID uuid) throws RecordNotFoundException {
+		checkFailure();
+
+		StoredSession stored = sessions.get(uuid);
+		if (stored == null) {
+			throw new RecordNotFoundException("Session " + uuid);
+		}
+		return copy(stored.session);
+	}
+
+	/**
+	 * Writes a snapshot and deletes the log segments and snapshots it replaces.
+	 */
+	public void snapshot() {
+		// The memory state of a failed database may hold changes that were reported as failed
+		checkFailure();
+
+		try {
+			long segment;
+			synchronized (writeLock) {
+				// Every record of the previous segments is applied, so the snapshot contains all of them
+				segment = log.roll();
+			}
+
+			File file = new File(directory, getSnapshotName(segment));
+			File tmp = new File(directory, file.getName() + ".tmp");
+			writeSnapshot(tmp);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			for (long older : WriteAheadLog.listFiles(directory, SNAPSHOT_PREFIX)) {
+				if (older < segment) {
+					File olderFile = new File(directory, getSnapshotName(older));
+					try {
+						Files.deleteIfExists(olderFile.toPath());
+					} catch (IOException e) {
+						// Some systems don't delete mapped files, it is retried by the next snapshot
+						logger.info("Failed to delete snapshot " + olderFile + ": " + e);
+					}
+				}
+			}
+			for (long older : WriteAheadLog.listFiles(directory, WriteAheadLog.SEGMENT_PREFIX)) {
+				if (older < segment) {
+					Files.deleteIfExists(new File(directory, WriteAheadLog.getSegmentName(older)).toPath());
+				}
+			}
+
+			logger.info(String.format("Written snapshot %s of %d nodes and %d sessions", file, nodes.size(), sessions.size()));
+		} catch (IOException e) {
+			throw new DataAccessException("Failed to write snapshot", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessException("Interrupted while writing snapshot", e);
+		}
+	}
+
+	/**
+	 * Writes a snapshot, so the next start doesn't replay the log, and closes the database.
+	 */
+	@Override
+	public void close() throws IOException {
+		snapshotService.shutdown();
+		try {
+			snapshotService.awaitTermination(1, TimeUnit.MINUTES);
+			snapshot();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (DataAccessException e) {
+			logger.warn("Failed to write snapshot on close", e);
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Appends the transaction to the log and applies it, must be called under the write lock.
+	 *
+	 * @return log sequence number of the transaction
+	 */
+	private long commit(Transaction tx) {
+		checkFailure();
+
+		byte[] record = tx.toByteArray();
+		try {
+			long sequence = log.append(record);
+			apply(record, true);
+			return sequence;
+		} catch (IOException e) {
+			fail(e);
+			throw new DataAccessException("Failed to store the change", e);
+		}
+	}
+
+	private void awaitWritten(long sequence) {
+		try {
+			log.awaitWritten(sequence);
+		} catch (IOException e) {
+			fail(e);
+			throw new DataAccessException("Failed to store the change", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessException("Interrupted while storing the change", e);
+		}
+
+		if (log.getSegmentSize() >= snapshotLogSize && snapshotScheduled.compareAndSet(false, true)) {
+			snapshotService.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot();
+					} catch (Throwable e) {
+						logger.error("Failed to write snapshot", e);
+					} finally {
+						snapshotScheduled.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failure == null) {
+			logger.error("Log failed to store a change, the database stops serving until it is reopened", e);
+			failure = e;
+		}
+	}
+
+	private void checkFailure() {
+		IOException failure = this.failure;
+		if (failure != null) {
+			throw new DataAccessException("Database failed to store a change and must be reopened", failure);
+		}
+	}
+
+	/**
+	 * Applies the changes of the log record.
+	 *
+	 * @param indexes whether children and ephemeral indexes are maintained, during recovery they are built at the end
+	 */
+	private void apply(byte[] record, boolean indexes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		while (in.available() > 0) {
+			byte change = in.readByte();
+			switch (change) {
+				case PUT_NODE:
+					putNode(readNode(in), indexes);
+					break;
+				case REMOVE_NODE:
+					removeNode(readString(in), indexes);
+					break;
+				case PUT_SESSION:
+					StoredSession stored = readSession(in);
+					sessions.put(stored.session.getUuid(), stored);
+					break;
+				case REMOVE_SESSION:
+					sessions.remove(new UUID(in.readLong(), in.readLong()));
+					break;
+				default:
+					throw new IOException("Unknown change " + change);
+			}
+		}
+	}
+
+	private void putNode(MemoryNode node, boolean indexes) {
+		MemoryNode previous = nodes.put(node.path, node);
+		if (indexes && previous == null) {
+			children.putIfAbsent(node.path, newNameSet());
+			// A child is listed only after it can be read
+			addToIndexes(node);
+		}
+	}
+
+	private void removeNode(String path, boolean indexes) {
+		if (indexes) {
+			MemoryNode node = nodes.get(path);
+			if (node != null) {
+				String parentPath = MemoryNode.getParentPath(path);
+				Set<String> siblings = parentPath == null ? null : children.get(parentPath);
+				if (siblings != null) {
+					siblings.remove(MemoryNode.getName(path));
+				}
+				children.remove(path);
+
+				if (node.mode.isEphemeral()) {
+					Set<String> paths = ephemerals.get(node.session);
+					if (paths != null) {
+						paths.remove(path);
+						if (paths.isEmpty()) {
+							ephemerals.remove(node.session);
+						}
+					}
+				}
+			}
+		}
+		nodes.remove(path);
+	}
+
+	private void addToIndexes(MemoryNode node) {
+		String parentPath = MemoryNode.getParentPath(node.path);
+		if (parentPath != null) {
+			Set<String> siblings = children.get(parentPath);
+			if (siblings != null) {
+				siblings.add(MemoryNode.getName(node.path));
+			} else {
+				logger.warn("Parent of node " + node.path + " doesn't exist");
+			}
+		}
+
+		if (node.mode.isEphemeral()) {
+			Set<String> paths = ephemerals.get(node.session);
+			if (paths == null) {
+				paths = newNameSet();
+				ephemerals.put(node.session, paths);
+			}
+			paths.add(node.path);
+		}
+	}
+
+	private void rebuildIndexes() {
+		children.clear();
+		ephemerals.clear();
+		for (String path : nodes.keySet()) {
+			children.put(path, newNameSet());
+		}
+		for (MemoryNode node : nodes.values()) {
+			addToIndexes(node);
+		}
+	}
+
+	private MemoryNode lookup(Map<String, MemoryNode> changed, String path) {
+		return changed.containsKey(path) ? changed.get(path) : nodes.get(path);
+	}
+
+	private boolean hasChildren(Map<String, MemoryNode> changed, String path) {
+		Set<String> names = children.get(path);
+		if (names != null) {
+			for (String name : names) {
+				String childPath = MemoryNode.getChildPath(path, name);
+				if (!changed.containsKey(childPath) || changed.get(childPath) != null) {
+					return true;
+				}
+			}
+		}
+
+		for (Map.Entry<String, MemoryNode> entry : changed.entrySet()) {
+			if (entry.getValue() != null && path.equals(MemoryNode.getParentPath(entry.getKey()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void setStat(Stat stat, MemoryNode node, byte[] data) {
+		stat.setVersion(node.version);
+		stat.setCversion(node.cversion);
+		stat.setCtime(node.ctime);
+		stat.setMtime(node.mtime);
+		if (data != null) {
+			stat.setDataLength(data.length);
+		}
+		if (node.mode.isEphemeral()) {
+			stat.setEphemeralOwner(node.session);
+		}
+	}
+
+	private static boolean matches(MemoryNode node, int version) {
+		return node != null && (version < 0 || node.version == version);
+	}
+
+	private static MemoryNode newNode(long session, Node node) {
+		long now = System.currentTimeMillis();
+		CreateMode mode = node.getMode() != null ? node.getMode() : CreateMode.PERSISTENT;
+
+		return new MemoryNode(node.getPath(), node.getData(), mode, mode.isEphemeral() ? session : 0, 0, 0, now, now);
+	}
+
+	private static Set<String> newNameSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+
+	private static Session copy(Session session) {
+		Session copy = new Session(session.getUuid(), session.getStartTime());
+		copy.setSessionId(session.getSessionId());
+		copy.setTimeout(session.getTimeout());
+		copy.setLastTimeSeen(session.getLastTimeSeen());
+		return copy;
+	}
+
+	/**
+	 * Loads the latest snapshot and replays the log segments written after it.
+	 *
+	 * @return number of the next log segment
+	 */
+	private long recover() throws IOException {
+		long firstSegment = 1;
+
+		List<Long> snapshots = WriteAheadLog.listFiles(directory, SNAPSHOT_PREFIX);
+		if (!snapshots.isEmpty()) {
+			firstSegment = snapshots.get(snapshots.size() - 1);
+			readSnapshot(new File(directory, getSnapshotName(firstSegment)));
+		}
+
+		WriteAheadLog.RecordHandler handler = new WriteAheadLog.RecordHandler() {
+			@Override
+			public void apply(byte[] record) throws IOException {
+				MemoryDatabase.this.apply(record, false);
+			}
+		};
+
+		long nextSegment = firstSegment;
+		long records = 0;
+		List<Long> segments = WriteAheadLog.listFiles(directory, WriteAheadLog.SEGMENT_PREFIX);
+		for (int i = 0; i < segments.size(); i++) {
+			long segment = segments.get(i);
+			if (segment >= firstSegment) {
+				File file = new File(directory, WriteAheadLog.getSegmentName(segment));
+				records += WriteAheadLog.replay(file, handler, i == segments.size() - 1);
+				nextSegment = segment + 1;
+			}
+		}
+
+		rebuildIndexes();
+
+		logger.info(String.format("Recovered %d nodes and %d sessions from %s, replayed %d log records",
+				nodes.size(), sessions.size(), directory, records));
+		return nextSegment;
+	}
+
+	private void writeSnapshot(File file) throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			BufferedOutputStream buffered = new BufferedOutputStream(fos, 64 * 1024);
+			CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+
+			for (MemoryNode node : nodes.values()) {
+				out.writeBoolean(true);
+				// Node data is written past the snapshot checksum, it has a checksum of its own
+				writeSnapshotNode(out, buffered, node);
+			}
+			out.writeBoolean(false);
+
+			for (StoredSession session : sessions.values()) {
+				out.writeBoolean(true);
+				writeSession(out, session);
+			}
+			out.writeBoolean(false);
+
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			fos.getChannel().force(true);
+		}
+	}
+
+	private void readSnapshot(File file) throws IOException {
+		try (MappedFileReader in = new MappedFileReader(file)) {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				throw new IOException("Unknown snapshot format of " + file);
+			}
+
+			while (in.readBoolean()) {
+				MemoryNode node = readNode(in);
+				nodes.put(node.path, node);
+			}
+			while (in.readBoolean()) {
+				StoredSession session = readSession(in);
+				sessions.put(session.session.getUuid(), session);
+			}
+
+			long checksum = in.getChecksum();
+			if (in.readLong() != checksum) {
+				throw new IOException("Snapshot " + file + " is corrupted");
+			}
+		}
+	}
+
+	private static String getSnapshotName(long segment) {
+		return SNAPSHOT_PREFIX + String.format("%016d", segment);
+	}
+
+	private static void writeNode(DataOutput out, MemoryNode node) throws IOException {
+		writeString(out, node.path);
+		ByteBuffer mappedData = node.getMappedData();
+		if (mappedData != null) {
+			// Copied in chunks, so writing a snapshot doesn't load the data to the heap
+			byte[] chunk = new byte[Math.min(mappedData.remaining(), 8192)];
+			out.writeInt(mappedData.remaining());
+			while (mappedData.hasRemaining()) {
+				int length = Math.min(mappedData.remaining(), chunk.length);
+				mappedData.get(chunk, 0, length);
+				out.write(chunk, 0, length);
+			}
+		} else {
+			writeBytes(out, node.getData());
+		}
+		out.writeInt(node.mode.toFlag());
+		out.writeLong(node.session);
+		out.writeInt(node.version);
+		out.writeInt(node.cversion);
+		out.writeLong(node.ctime);
+		out.writeLong(node.mtime);
+	}
+
+	/**
+	 * Writes a node to a snapshot: the data is preceded by its checksum and written to dataOut.
+	 */
+	private static void writeSnapshotNode(DataOutput out, OutputStream dataOut, MemoryNode node) throws IOException {
+		writeString(out, node.path);
+		ByteBuffer mappedData = node.getMappedData();
+		if (mappedData != null) {
+			out.writeInt(mappedData.remaining());
+			out.writeInt(node.getMappedChecksum());
+
+			// Copied in chunks, so writing a snapshot doesn't load the data to the heap
+			CRC32 checksum = new CRC32();
+			byte[] chunk = new byte[Math.min(mappedData.remaining(), 8192)];
+			while (mappedData.hasRemaining()) {
+				int length = Math.min(mappedData.remaining(), chunk.length);
+				mappedData.get(chunk, 0, length);
+				checksum.update(chunk, 0, length);
+				dataOut.write(chunk, 0, length);
+			}
+			if ((int) checksum.getValue() != node.getMappedChecksum()) {
+				throw new IOException("Data of node " + node.path + " is corrupted in the snapshot");
+			}
+		} else {
+			byte[] data = node.getData();
+			if (data == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(data.length);
+				out.writeInt(MemoryNode.checksum(data, 0, data.length));
+				dataOut.write(data);
+			}
+		}
+		out.writeInt(node.mode.toFlag());
+		out.writeLong(node.session);
+		out.writeInt(node.version);
+		out.writeInt(node.cversion);
+		out.writeLong(node.ctime);
+		out.writeLong(node.mtime);
+	}
+
+	private static MemoryNode readNode(DataInput in) throws IOException {
+		String path = readString(in);
+		byte[] data = readBytes(in);
+		CreateMode mode;
+		try {
+			mode = CreateMode.fromFlag(in.readInt());
+		} catch (KeeperException e) {
+			throw new IOException("Invalid mode of node " + path, e);
+		}
+		long session = in.readLong();
+		int version = in.readInt();
+		int cversion = in.readInt();
+		long ctime = in.readLong();
+		long mtime = in.readLong();
+
+		return new MemoryNode(path, data, mode, session, version, cversion, ctime, mtime);
+	}
+
+	/**
+	 * Reads a node written by {@link #writeSnapshotNode}, leaving its data in the mapped file unread.
+	 */
+	private static MemoryNode readNode(MappedFileReader in) throws IOException {
+		String path = in.readString();
+		int dataLength = in.readInt();
+		int dataChecksum = dataLength < 0 ? 0 : in.readInt();
+		ByteBuffer data = dataLength < 0 ? null : in.slice(dataLength);
+		CreateMode mode;
+		try {
+			mode = CreateMode.fromFlag(in.readInt());
+		} catch (KeeperException e) {
+			throw new IOException("Invalid mode of node " + path, e);
+		}
+		long session = in.readLong();
+		int version = in.readInt();
+		int cversion = in.readInt();
+		long ctime = in.readLong();
+		long mtime = in.readLong();
+
+		if (data == null) {
+			return new MemoryNode(path, (byte[]) null, mode, session, version, cversion, ctime, mtime);
+		}
+		return new MemoryNode(path, data, dataChecksum, mode, session, version, cversion, ctime, mtime);
+	}
+
+	private static void writeSession(DataOutput out, StoredSession stored) throws IOException {
+		Session session = stored.session;
+		out.writeLong(session.getUuid().getMostSignificantBits());
+		out.writeLong(session.getUuid().getLeastSignificantBits());
+		writeString(out, stored.serverId);
+		out.writeLong(session.getSessionId());
+		out.writeInt(session.getTimeout());
+		out.writeLong(session.getStartTime());
+		out.writeLong(session.getLastTimeSeen());
+	}
+
+	private static StoredSession readSession(DataInput in) throws IOException {
+		UUID uuid = new UUID(in.readLong(), in.readLong());
+		String serverId = readString(in);
+
+		Session session = new Session(uuid, 0);
+		session.setSessionId(in.readLong());
+		session.setTimeout(in.readInt());
+		session.setStartTime(in.readLong());
+		session.setLastTimeSeen(in.readLong());
+		return new StoredSession(serverId, session);
+	}
+
+	/**
+	 * Reads a session written by {@link #writeSession}.
+	 */
+	private static StoredSession readSession(MappedFileReader in) throws IOException {
+		UUID uuid = new UUID(in.readLong(), in.readLong());
+		String serverId = in.readString();
+
+		Session session = new Session(uuid, 0);
+		session.setSessionId(in.readLong());
+		session.setTimeout(in.readInt());
+		session.setStartTime(in.readLong());
+		session.setLastTimeSeen(in.readLong());
+		return new StoredSession(serverId, session);
+	}
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] b = readBytes(in);
+		return b == null ? null : new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeBytes(DataOutput out, byte[] b) throws IOException {
+		if (b == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return b;
+	}
+
+	/**
+	 * Session with the id of the server it was registered by.
+	 */
+	private static class StoredSession {
+		private final String serverId;
+		private final Session session;
+
+		StoredSession(String serverId, Session session) {
+			this.serverId = serverId;
+			this.session = session;
+		}
+	}
+
+	/**
+	 * Changes stored as a single log record, so they are recovered all or none.
+	 */
+	private static class Transaction {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		void putNode(MemoryNode node) {
+			try {
+				out.writeByte(PUT_NODE);
+				writeNode(out, node);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void removeNode(String path) {
+			try {
+				out.writeByte(REMOVE_NODE);
+				writeString(out, path);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void putSession(StoredSession session) {
+			try {
+				out.writeByte(PUT_SESSION);
+				writeSession(out, session);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void removeSession(UUID uuid) {
+			try {
+				out.writeByte(REMOVE_SESSION);
+				out.writeLong(uuid.getMostSignificantBits());
+				out.writeLong(uuid.getLeastSignificantBits());
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		boolean isEmpty() {
+			return bytes.size() == 0;
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
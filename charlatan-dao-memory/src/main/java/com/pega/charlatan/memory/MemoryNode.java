@@ -0,0 +1,123 @@
+package com.pega.charlatan.memory;
+
+import com.pega.charlatan.node.dao.DataAccessException;
+import org.apache.zookeeper.CreateMode;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Stored node. Instances are immutable: a change replaces the node in the tree, so readers always see a consistent
+ * node without locking. Children are kept by {@link MemoryDatabase} apart from the node.
+ * <p>
+ * Data of the nodes loaded from a snapshot stays in the mapped snapshot file until it is first read, its checksum is
+ * verified then.
+ */
+final class MemoryNode {
+
+	final String path;
+	final CreateMode mode;
+	// Owner session of the ephemeral node, 0 for persistent nodes
+	final long session;
+	final int version;
+	final int cversion;
+	final long ctime;
+	final long mtime;
+
+	// Data still in the mapped snapshot, null once it is copied to the heap
+	private volatile ByteBuffer mappedData;
+	// CRC32 of the mapped data
+	private final int mappedChecksum;
+	private volatile byte[] data;
+
+	MemoryNode(String path, byte[] data, CreateMode mode, long session, int version, int cversion, long ctime, long mtime) {
+		this(path, data, null, 0, mode, session, version, cversion, ctime, mtime);
+	}
+
+	MemoryNode(String path, ByteBuffer mappedData, int mappedChecksum, CreateMode mode, long session, int version, int cversion, long ctime, long mtime) {
+		this(path, null, mappedData, mappedChecksum, mode, session, version, cversion, ctime, mtime);
+	}
+
+	private MemoryNode(String path, byte[] data, ByteBuffer mappedData, int mappedChecksum, CreateMode mode, long session, int version, int cversion, long ctime, long mtime) {
+		this.path = path;
+		this.data = data;
+		this.mappedData = mappedData;
+		this.mappedChecksum = mappedChecksum;
+		this.mode = mode;
+		this.session = session;
+		this.version = version;
+		this.cversion = cversion;
+		this.ctime = ctime;
+		this.mtime = mtime;
+	}
+
+	byte[] getData() {
+		ByteBuffer mapped = mappedData;
+		if (mapped == null) {
+			return data;
+		}
+
+		// Concurrent readers may copy the data twice, both copies are equal
+		byte[] copy = new byte[mapped.remaining()];
+		mapped.duplicate().get(copy);
+		if (checksum(copy, 0, copy.length) != mappedChecksum) {
+			throw new DataAccessException("Data of node " + path + " is corrupted in the snapshot");
+		}
+		data = copy;
+		mappedData = null;
+		return copy;
+	}
+
+	/**
+	 * @return data still in the mapped snapshot, null if the data is on the heap
+	 */
+	ByteBuffer getMappedData() {
+		ByteBuffer mapped = mappedData;
+		return mapped == null ? null : mapped.duplicate();
+	}
+
+	/**
+	 * @return CRC32 the mapped data is verified with
+	 */
+	int getMappedChecksum() {
+		return mappedChecksum;
+	}
+
+	MemoryNode withData(byte[] data, int version, long mtime) {
+		return new MemoryNode(path, data, mode, session, version, cversion, ctime, mtime);
+	}
+
+	MemoryNode withCversion(int cversion) {
+		ByteBuffer mapped = mappedData;
+		return new MemoryNode(path, mapped == null ? data : null, mapped, mappedChecksum, mode, session, version, cversion, ctime, mtime);
+	}
+
+	boolean isRoot() {
+		return path.length() == 1;
+	}
+
+	/**
+	 * @return parent path, null for the root
+	 */
+	static String getParentPath(String path) {
+		if (path.length() == 1) {
+			return null;
+		}
+		int index = path.lastIndexOf('/');
+		return index == 0 ? "/" : path.substring(0, index);
+	}
+
+	static String getName(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	static int checksum(byte[] b, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(b, offset, length);
+		return (int) crc.getValue();
+	}
+
+	static String getChildPath(String parentPath, String name) {
+		return parentPath.length() == 1 ? "/" + name : parentPath + "/" + name;
+	}
+}
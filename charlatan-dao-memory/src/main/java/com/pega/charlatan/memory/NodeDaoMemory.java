@@ -0,0 +1,75 @@
+package com.pega.charlatan.memory;
+
+import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import com.pega.charlatan.node.dao.NodeDao;
+import com.pega.charlatan.node.dao.RecordNotFoundException;
+import com.pega.charlatan.utils.Service;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+
+/**
+ * NodeDao keeping the node tree in memory, see {@link MemoryDatabase}.
+ */
+@Service
+public class NodeDaoMemory implements NodeDao {
+
+	private final MemoryDatabase database;
+
+	public NodeDaoMemory() {
+		this(MemoryDatabase.getDefault());
+	}
+
+	public NodeDaoMemory(MemoryDatabase database) {
+		this.database = database;
+	}
+
+	@Override
+	public boolean create(long session, Node node) throws RecordNotFoundException {
+		return database.createNode(session, node);
+	}
+
+	@Override
+	public String createSequential(long session, Node node) throws RecordNotFoundException {
+		return database.createSequentialNode(session, node);
+	}
+
+	/**
+	 * Deletes the node if it has the version of the given node (any version if negative) and has no children.
+	 */
+	@Override
+	public boolean delete(Node node) {
+		return database.deleteNode(node.getPath(), node.getStat().getVersion());
+	}
+
+	@Override
+	public Node get(String path) throws RecordNotFoundException {
+		return database.getNode(path);
+	}
+
+	@Override
+	public void update(String path, byte[] data, int newVersion, long modificationTime) {
+		database.updateNode(path, data, newVersion, modificationTime);
+	}
+
+	@Override
+	public Stat compareAndSet(String path, int expectedVersion, byte[] data, long modificationTime) throws RecordNotFoundException {
+		return database.compareAndSet(path, expectedVersion, data, modificationTime);
+	}
+
+	@Override
+	public void incrementCVersion(String path) {
+		database.incrementCVersion(path);
+	}
+
+	@Override
+	public List<String> getEphemeralPaths(long session) {
+		return database.getEphemeralPaths(session);
+	}
+
+	@Override
+	public int executeBatch(long session, List<NodeOperation> operations) {
+		return database.executeBatch(session, operations);
+	}
+}
@@ -0,0 +1,59 @@
+package com.pega.charlatan.memory;
+
+import com.pega.charlatan.node.bean.NodeUpdate;
+import com.pega.charlatan.utils.Service;
+import com.pega.charlatan.watches.dao.PushNodeUpdateDao;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PushNodeUpdateDao keeping the updates in memory, see {@link NodeUpdateLog}.
+ * Waiters of {@link #awaitNodeUpdates} are woken up as soon as an update is stored.
+ */
+@Service
+public class NodeUpdateDaoMemory implements PushNodeUpdateDao {
+
+	private final NodeUpdateLog updates;
+
+	public NodeUpdateDaoMemory() {
+		this(MemoryDatabase.getDefault());
+	}
+
+	public NodeUpdateDaoMemory(MemoryDatabase database) {
+		this.updates = database.getNodeUpdates();
+	}
+
+	@Override
+	public void insertUpdate(NodeUpdate update) {
+		updates.insert(Collections.singletonList(update));
+	}
+
+	@Override
+	public void insertUpdates(List<NodeUpdate> newUpdates) {
+		if (newUpdates.isEmpty()) {
+			return;
+		}
+		updates.insert(newUpdates);
+	}
+
+	@Override
+	public long getLastUpdateId() {
+		return updates.getLastId();
+	}
+
+	@Override
+	public List<NodeUpdate> getNodeUpdates(int thisBroker, long afterId, int limit) {
+		return updates.get(thisBroker, afterId, limit);
+	}
+
+	@Override
+	public List<NodeUpdate> awaitNodeUpdates(int thisBroker, long afterId, int limit, long timeoutMs) throws InterruptedException {
+		return updates.await(thisBroker, afterId, limit, timeoutMs);
+	}
+
+	@Override
+	public int clearOldUpdates(long toMs, long keepUpdates, long lastReadId, int limit) {
+		return updates.clear(toMs, keepUpdates, lastReadId, limit);
+	}
+}
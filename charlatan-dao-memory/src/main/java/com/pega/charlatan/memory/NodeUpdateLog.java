@@ -0,0 +1,103 @@
+package com.pega.charlatan.memory;
+
+import com.pega.charlatan.node.bean.NodeUpdate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Node updates of the database, ordered by id.
+ * <p>
+ * Updates are kept in memory only: they notify the other servers sharing the database, and all of them run
+ * in this process, so they don't outlive the process either.
+ */
+class NodeUpdateLog {
+
+	private final ConcurrentNavigableMap<Long, NodeUpdate> updates = new ConcurrentSkipListMap<>();
+
+	// Guarded by this
+	private long lastId;
+
+	synchronized void insert(List<NodeUpdate> newUpdates) {
+		long now = System.currentTimeMillis();
+		for (NodeUpdate update : newUpdates) {
+			NodeUpdate stored = new NodeUpdate(update.getEventType(), update.getPath(), now, update.getEmitterId());
+			stored.setId(++lastId);
+			updates.put(stored.getId(), stored);
+		}
+		notifyAll();
+	}
+
+	synchronized long getLastId() {
+		return lastId;
+	}
+
+	List<NodeUpdate> get(int thisBroker, long afterId, int limit) {
+		List<NodeUpdate> result = new ArrayList<>();
+		for (NodeUpdate update : updates.tailMap(afterId, false).values()) {
+			if (result.size() >= limit) {
+				break;
+			}
+			if (update.getEmitterId() != thisBroker) {
+				result.add(copy(update));
+			}
+		}
+		return result;
+	}
+
+	List<NodeUpdate> await(int thisBroker, long afterId, int limit, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+
+		while (true) {
+			long seenId = getLastId();
+
+			List<NodeUpdate> result = get(thisBroker, afterId, limit);
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (!result.isEmpty() || remaining <= 0) {
+				return result;
+			}
+
+			synchronized (this) {
+				if (lastId == seenId) {
+					wait(remaining);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same contract as {@link com.pega.charlatan.watches.dao.NodeUpdateDao#clearOldUpdates(long, long, long, int)}.
+	 */
+	synchronized int clear(long toMs, long keepUpdates, long lastReadId, int limit) {
+		// Ids increase with the timestamps, so the old updates are at the head
+		long oldId = 0;
+		for (NodeUpdate update : updates.values()) {
+			if (update.getTimestamp() >= toMs) {
+				break;
+			}
+			oldId = update.getId();
+		}
+
+		long toId = Math.min(Math.min(Math.max(oldId, lastId - keepUpdates), lastId - 1), lastReadId);
+
+		int deleted = 0;
+		Iterator<Map.Entry<Long, NodeUpdate>> it = updates.headMap(toId, true).entrySet().iterator();
+		while (it.hasNext() && deleted < limit) {
+			it.next();
+			it.remove();
+			deleted++;
+		}
+		return deleted;
+	}
+
+	private static NodeUpdate copy(NodeUpdate update) {
+		NodeUpdate copy = new NodeUpdate(update.getEventType(), update.getPath(), update.getTimestamp(), update.getEmitterId());
+		copy.setId(update.getId());
+		return copy;
+	}
+}
@@ -0,0 +1,64 @@
+package com.pega.charlatan.memory;
+
+import com.pega.charlatan.node.dao.RecordNotFoundException;
+import com.pega.charlatan.server.session.bean.Session;
+import com.pega.charlatan.server.session.dao.SessionDao;
+import com.pega.charlatan.utils.Service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * SessionDao keeping the sessions in memory, see {@link MemoryDatabase}.
+ */
+@Service
+public class SessionDaoMemory implements SessionDao {
+
+	private final MemoryDatabase database;
+
+	public SessionDaoMemory() {
+		this(MemoryDatabase.getDefault());
+	}
+
+	public SessionDaoMemory(MemoryDatabase database) {
+		this.database = database;
+	}
+
+	@Override
+	public void insertSession(String serverId, Session session) {
+		database.insertSession(serverId, session);
+	}
+
+	@Override
+	public void updateSession(Session session) {
+		database.updateSessions(Collections.singletonList(session));
+	}
+
+	/**
+	 * Updates the sessions in a single log record, so the whole batch costs one sync.
+	 */
+	@Override
+	public void updateSessions(Collection<Session> sessions) {
+		if (sessions.isEmpty()) {
+			return;
+		}
+		database.updateSessions(sessions);
+	}
+
+	@Override
+	public void deleteSession(UUID uuid) {
+		database.deleteSession(uuid);
+	}
+
+	@Override
+	public List<Session> getStaleSessions(long maxLastSeenTime) {
+		return database.getStaleSessions(maxLastSeenTime);
+	}
+
+	@Override
+	public Session getSession(UUID uuid) throws RecordNotFoundException {
+		return database.getSession(uuid);
+	}
+}
@@ -0,0 +1,337 @@
+package com.pega.charlatan.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the database changes, split into numbered segment files.
+ * <p>
+ * Records are appended to an in-memory buffer and written by a single flusher thread. The flusher writes and syncs
+ * everything appended since its previous write at once, so concurrent writers share one fsync (group commit).
+ * Every record is stored with its length and CRC32, a torn record at the end of the last segment is dropped on replay.
+ */
+class WriteAheadLog implements Closeable, Runnable {
+
+	static final String SEGMENT_PREFIX = "log.";
+
+	// Sanity limit of a single record, longer length means a corrupted record
+	private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+	private static Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	/**
+	 * Applies the replayed records.
+	 */
+	interface RecordHandler {
+		void apply(byte[] record) throws IOException;
+	}
+
+	private final File directory;
+	private final boolean syncWrites;
+	private final Thread flusher;
+
+	// Used by the flusher thread only
+	private FileChannel channel;
+	private RecordBuffer flushing = new RecordBuffer();
+
+	// Guarded by this
+	private RecordBuffer pending = new RecordBuffer();
+	private long appendedRecords;
+	private long writtenRecords;
+	private long segment;
+	private boolean rollRequested;
+	private boolean closed;
+	private IOException failure;
+
+	private volatile long segmentSize;
+
+	/**
+	 * Starts writing a new segment.
+	 *
+	 * @param directory  log directory
+	 * @param segment    number of the new segment, must be greater than numbers of the existing segments
+	 * @param syncWrites whether the written records are synced to the disk before they are acknowledged
+	 */
+	WriteAheadLog(File directory, long segment, boolean syncWrites, ThreadFactory threadFactory) throws IOException {
+		this.directory = directory;
+		this.segment = segment;
+		this.syncWrites = syncWrites;
+		this.channel = openSegment(segment);
+
+		this.flusher = threadFactory.newThread(this);
+		flusher.start();
+	}
+
+	/**
+	 * Appends the record to the log, the record is written asynchronously.
+	 *
+	 * @return sequence number of the record, see {@link #awaitWritten(long)}
+	 */
+	synchronized long append(byte[] record) throws IOException {
+		checkFailure();
+		if (closed) {
+			throw new IOException("Log is closed");
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(record);
+
+		pending.writeInt(record.length);
+		pending.writeInt((int) crc.getValue());
+		pending.write(record);
+
+		notifyAll();
+		return ++appendedRecords;
+	}
+
+	/**
+	 * Waits until the record and all the records appended before it are written (and synced if required).
+	 */
+	synchronized void awaitWritten(long sequence) throws IOException, InterruptedException {
+		while (writtenRecords < sequence) {
+			checkFailure();
+			wait();
+		}
+	}
+
+	/**
+	 * Starts a new segment. Records appended before this call are written to the previous segments.
+	 *
+	 * @return number of the new segment
+	 */
+	synchronized long roll() throws IOException, InterruptedException {
+		if (closed) {
+			throw new IOException("Log is closed");
+		}
+		rollRequested = true;
+		notifyAll();
+
+		while (rollRequested) {
+			checkFailure();
+			wait();
+		}
+		return segment;
+	}
+
+	/**
+	 * Number of bytes written to the current segment.
+	 */
+	long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Writes the pending records and closes the log.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				RecordBuffer batch;
+				long batchRecords;
+				boolean roll;
+
+				synchronized (this) {
+					while (pending.size() == 0 && !rollRequested && !closed) {
+						wait();
+					}
+					if (pending.size() == 0 && !rollRequested) {
+						return;
+					}
+
+					batch = pending;
+					pending = flushing;
+					flushing = batch;
+					batchRecords = appendedRecords;
+					roll = rollRequested;
+				}
+
+				if (batch.size() > 0) {
+					ByteBuffer buffer = batch.toByteBuffer();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					if (syncWrites) {
+						channel.force(false);
+					}
+					segmentSize += batch.size();
+					batch.reset();
+				}
+
+				long newSegment = -1;
+				if (roll) {
+					channel.close();
+					synchronized (this) {
+						newSegment = segment + 1;
+					}
+					channel = openSegment(newSegment);
+					segmentSize = 0;
+				}
+
+				synchronized (this) {
+					writtenRecords = batchRecords;
+					if (roll) {
+						segment = newSegment;
+						rollRequested = false;
+					}
+					notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Failed to write the log, the database doesn't accept changes anymore", e);
+			synchronized (this) {
+				failure = e;
+				notifyAll();
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				failure = new IOException("Log flusher was interrupted");
+				notifyAll();
+			}
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Log has failed", failure);
+		}
+	}
+
+	private FileChannel openSegment(long segment) throws IOException {
+		File file = new File(directory, getSegmentName(segment));
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+
+	static String getSegmentName(long segment) {
+		return SEGMENT_PREFIX + String.format("%016d", segment);
+	}
+
+	/**
+	 * Numbers of the files with the prefix, in ascending order.
+	 */
+	static List<Long> listFiles(File directory, String prefix) {
+		List<Long> numbers = new ArrayList<>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix)) {
+					try {
+						numbers.add(Long.parseLong(name.substring(prefix.length())));
+					} catch (NumberFormatException e) {
+						// not a complete file, e.g. snapshot being written
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Passes the records of the segment to the handler in the order they were appended.
+	 *
+	 * @param lastSegment whether the segment is the last one: its torn tail is truncated instead of failing the replay
+	 * @return number of replayed records
+	 */
+	static long replay(File file, RecordHandler handler, boolean lastSegment) throws IOException {
+		long records = 0;
+		long position = 0;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+
+			while (true) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					int crc = in.readInt();
+					if (length < 0 || length > MAX_RECORD_SIZE) {
+						throw new EOFException("Invalid record length " + length);
+					}
+
+					record = new byte[length];
+					in.readFully(record);
+
+					CRC32 actualCrc = new CRC32();
+					actualCrc.update(record);
+					if ((int) actualCrc.getValue() != crc) {
+						throw new EOFException("Invalid record checksum");
+					}
+				} catch (EOFException e) {
+					if (position == channel.size()) {
+						break;
+					}
+					if (!lastSegment) {
+						throw new IOException(String.format("Log segment %s is corrupted at %d", file, position), e);
+					}
+
+					logger.warn(String.format("Truncating torn tail of log segment %s at %d: %s", file, position, e.getMessage()));
+					channel.truncate(position);
+					break;
+				}
+
+				handler.apply(record);
+				position += 8 + record.length;
+				records++;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Exposes the buffer, so it is written to the channel without copying.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(64 * 1024);
+		}
+
+		void writeInt(int v) {
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+
+		@Override
+		public void write(byte[] b) {
+			write(b, 0, b.length);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package com.pega.charlatan.memory;
+
+import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import com.pega.charlatan.node.dao.DataAccessException;
+import com.pega.charlatan.node.dao.RecordNotFoundException;
+import com.pega.charlatan.server.session.bean.Session;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemoryDatabaseTest {
+
+	private File directory;
+	private MemoryDatabase database;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("charlatan-memory").toFile();
+		database = new MemoryDatabase(directory, true, MemoryDatabase.DEFAULT_SNAPSHOT_LOG_SIZE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		database.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void nodeTreeTest() throws RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+
+		assertTrue(nodeDao.create(1, new Node("/a", new byte[]{1}, CreateMode.PERSISTENT)));
+		assertFalse(nodeDao.create(1, new Node("/a", new byte[]{2}, CreateMode.PERSISTENT)));
+		assertTrue(nodeDao.create(7, new Node("/a/b", null, CreateMode.EPHEMERAL)));
+
+		try {
+			nodeDao.create(1, new Node("/c/d"));
+			fail("Parent doesn't exist");
+		} catch (RecordNotFoundException e) {
+			// expected
+		}
+
+		Node a = nodeDao.get("/a");
+		assertArrayEquals(new byte[]{1}, a.getData());
+		assertEquals(Collections.singletonList("b"), a.getChildren());
+		assertEquals(7, nodeDao.get("/a/b").getStat().getEphemeralOwner());
+		assertEquals(Collections.singletonList("/a/b"), nodeDao.getEphemeralPaths(7));
+
+		// Node with children is not deleted
+		assertFalse(nodeDao.delete(new Node("/a")));
+
+		nodeDao.update("/a/b", new byte[]{3}, 1, 100);
+		Node b = nodeDao.get("/a/b");
+		b.getStat().setVersion(0);
+		assertFalse(nodeDao.delete(b));
+		b.getStat().setVersion(1);
+		assertTrue(nodeDao.delete(b));
+
+		assertTrue(nodeDao.get("/a").getChildren().isEmpty());
+		assertTrue(nodeDao.getEphemeralPaths(7).isEmpty());
+	}
+
+	@Test
+	public void compareAndSetTest() throws RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		nodeDao.create(1, new Node("/a"));
+		nodeDao.create(1, new Node("/a/b"));
+
+		Stat stat = nodeDao.compareAndSet("/a", 0, new byte[]{1, 2}, 100);
+		assertEquals(1, stat.getVersion());
+		assertEquals(100, stat.getMtime());
+		assertEquals(2, stat.getDataLength());
+		assertEquals(1, stat.getNumChildren());
+
+		// Stale version
+		assertNull(nodeDao.compareAndSet("/a", 0, new byte[]{3}, 200));
+		assertArrayEquals(new byte[]{1, 2}, nodeDao.get("/a").getData());
+
+		// Any version
+		assertEquals(2, nodeDao.compareAndSet("/a", -1, new byte[]{3}, 200).getVersion());
+
+		try {
+			nodeDao.compareAndSet("/c", -1, null, 300);
+			fail("Node doesn't exist");
+		} catch (RecordNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void sequentialNodeTest() throws RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		nodeDao.create(1, new Node("/a"));
+
+		assertEquals("/a/n-0000000000", nodeDao.createSequential(1, new Node("/a/n-")));
+		assertEquals("/a/n-0000000001", nodeDao.createSequential(1, new Node("/a/n-", new byte[]{1}, CreateMode.EPHEMERAL_SEQUENTIAL)));
+		assertEquals(2, nodeDao.get("/a").getStat().getCversion());
+		assertEquals(Collections.singletonList("/a/n-0000000001"), nodeDao.getEphemeralPaths(1));
+
+		// The sequential path is taken, the sequence number is not allocated
+		nodeDao.create(1, new Node("/a/n-0000000002"));
+		assertNull(nodeDao.createSequential(1, new Node("/a/n-")));
+		assertEquals(2, nodeDao.get("/a").getStat().getCversion());
+
+		// Batch allocates the sequence number only if nobody else took it
+		List<NodeOperation> stale = Arrays.asList(
+				NodeOperation.incrementCVersion("/a", 1),
+				NodeOperation.create(new Node("/a/n-0000000001")));
+		assertEquals(0, nodeDao.executeBatch(1, stale));
+		List<NodeOperation> current = Arrays.asList(
+				NodeOperation.incrementCVersion("/a", 2),
+				NodeOperation.create(new Node("/a/m-0000000002")));
+		assertEquals(-1, nodeDao.executeBatch(1, current));
+		assertEquals(3, nodeDao.get("/a").getStat().getCversion());
+
+		try {
+			nodeDao.createSequential(1, new Node("/c/n-"));
+			fail("Parent doesn't exist");
+		} catch (RecordNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void batchIsAtomicTest() throws RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		nodeDao.create(1, new Node("/a"));
+
+		List<NodeOperation> failing = Arrays.asList(
+				NodeOperation.create(new Node("/a/b")),
+				NodeOperation.check("/a", 5));
+		assertEquals(1, nodeDao.executeBatch(1, failing));
+		assertTrue(nodeDao.get("/a").getChildren().isEmpty());
+
+		List<NodeOperation> applied = Arrays.asList(
+				NodeOperation.create(new Node("/a/b")),
+				NodeOperation.delete("/a/b", 0),
+				NodeOperation.delete("/a", 0));
+		assertEquals(-1, nodeDao.executeBatch(1, applied));
+		assertTrue(nodeDao.get("/").getChildren().isEmpty());
+	}
+
+	@Test
+	public void batchUpdateIncrementsVersionTest() throws RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		nodeDao.create(1, new Node("/a"));
+
+		// Updated after the batch read version 0
+		nodeDao.compareAndSet("/a", 0, new byte[]{1}, 10);
+
+		assertEquals(-1, nodeDao.executeBatch(1, Collections.singletonList(NodeOperation.update("/a", new byte[]{2}, -1, 20))));
+		Node node = nodeDao.get("/a");
+		assertArrayEquals(new byte[]{2}, node.getData());
+		assertEquals(2, node.getStat().getVersion());
+
+		// Update expecting an outdated version fails and leaves the node as it is
+		assertEquals(0, nodeDao.executeBatch(1, Collections.singletonList(NodeOperation.update("/a", new byte[]{3}, 1, 30))));
+		assertArrayEquals(new byte[]{2}, nodeDao.get("/a").getData());
+	}
+
+	@Test
+	public void recoveryTest() throws IOException, RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		SessionDaoMemory sessionDao = new SessionDaoMemory(database);
+
+		nodeDao.create(1, new Node("/snapshot", new byte[]{1}, CreateMode.PERSISTENT));
+		database.snapshot();
+		nodeDao.create(1, new Node("/log", new byte[]{2}, CreateMode.PERSISTENT));
+		nodeDao.create(1, new Node("/deleted"));
+		nodeDao.delete(new Node("/deleted"));
+
+		Session session = new Session(UUID.randomUUID(), 10);
+		session.setSessionId(5);
+		sessionDao.insertSession("server", session);
+		session.setLastTimeSeen(20);
+		sessionDao.updateSessions(Collections.singletonList(session));
+
+		reopen();
+		nodeDao = new NodeDaoMemory(database);
+		sessionDao = new SessionDaoMemory(database);
+
+		assertArrayEquals(new byte[]{1}, nodeDao.get("/snapshot").getData());
+		assertArrayEquals(new byte[]{2}, nodeDao.get("/log").getData());
+		assertEquals(2, nodeDao.get("/").getChildren().size());
+		assertEquals(20, sessionDao.getSession(session.getUuid()).getLastTimeSeen());
+		assertEquals(5, sessionDao.getSession(session.getUuid()).getSessionId());
+	}
+
+	@Test
+	public void snapshotOfMappedDataTest() throws IOException, RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		byte[] data = new byte[100000];
+		Arrays.fill(data, (byte) 7);
+		nodeDao.create(1, new Node("/read", data, CreateMode.PERSISTENT));
+		nodeDao.create(1, new Node("/unread", data, CreateMode.PERSISTENT));
+		nodeDao.create(1, new Node("/empty"));
+
+		// Data of the unread node goes from the mapped snapshot to the next snapshot without being read
+		reopen();
+		nodeDao = new NodeDaoMemory(database);
+		assertArrayEquals(data, nodeDao.get("/read").getData());
+		nodeDao.incrementCVersion("/unread");
+		reopen();
+		nodeDao = new NodeDaoMemory(database);
+
+		assertArrayEquals(data, nodeDao.get("/read").getData());
+		assertArrayEquals(data, nodeDao.get("/unread").getData());
+		assertEquals(1, nodeDao.get("/unread").getStat().getCversion());
+		assertNull(nodeDao.get("/empty").getData());
+	}
+
+	@Test
+	public void corruptedDataIsDetectedOnReadTest() throws IOException, RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		byte[] data = new byte[]{11, 22, 33, 44, 55};
+		nodeDao.create(1, new Node("/corrupted", data, CreateMode.PERSISTENT));
+		nodeDao.create(1, new Node("/intact", new byte[]{1}, CreateMode.PERSISTENT));
+		database.close();
+
+		List<Long> snapshots = WriteAheadLog.listFiles(directory, MemoryDatabase.SNAPSHOT_PREFIX);
+		File snapshot = new File(directory, MemoryDatabase.SNAPSHOT_PREFIX + String.format("%016d", snapshots.get(snapshots.size() - 1)));
+		byte[] bytes = Files.readAllBytes(snapshot.toPath());
+		for (int i = 0; i + data.length <= bytes.length; i++) {
+			if (Arrays.equals(data, Arrays.copyOfRange(bytes, i, i + data.length))) {
+				bytes[i + 2] ^= 1;
+			}
+		}
+		Files.write(snapshot.toPath(), bytes);
+
+		// The node index is intact, so the database opens without reading the data
+		database = new MemoryDatabase(directory, true, MemoryDatabase.DEFAULT_SNAPSHOT_LOG_SIZE);
+		nodeDao = new NodeDaoMemory(database);
+
+		assertArrayEquals(new byte[]{1}, nodeDao.get("/intact").getData());
+		try {
+			nodeDao.get("/corrupted");
+			fail("Corrupted data was read");
+		} catch (DataAccessException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void tornLogTailIsDroppedTest() throws IOException, RecordNotFoundException {
+		NodeDaoMemory nodeDao = new NodeDaoMemory(database);
+		nodeDao.create(1, new Node("/a"));
+		nodeDao.create(1, new Node("/b"));
+
+		// Simulate a crash: copy of the log without a snapshot and with the last record torn
+		File segment = lastSegment();
+		byte[] log = Files.readAllBytes(segment.toPath());
+		tearDown();
+		directory = Files.createTempDirectory("charlatan-memory").toFile();
+		Files.write(new File(directory, segment.getName()).toPath(), Arrays.copyOf(log, log.length - 3));
+
+		database = new MemoryDatabase(directory, true, MemoryDatabase.DEFAULT_SNAPSHOT_LOG_SIZE);
+		nodeDao = new NodeDaoMemory(database);
+
+		nodeDao.get("/a");
+		try {
+			nodeDao.get("/b");
+			fail("Torn record was replayed");
+		} catch (RecordNotFoundException e) {
+			// expected
+		}
+
+		// The log accepts new records after the truncated tail
+		assertTrue(nodeDao.create(1, new Node("/b")));
+		reopen();
+		new NodeDaoMemory(database).get("/b");
+	}
+
+	private File lastSegment() {
+		List<Long> segments = WriteAheadLog.listFiles(directory, WriteAheadLog.SEGMENT_PREFIX);
+		return new File(directory, WriteAheadLog.getSegmentName(segments.get(segments.size() - 1)));
+	}
+
+	private void reopen() throws IOException {
+		database.close();
+		database = new MemoryDatabase(directory, true, MemoryDatabase.DEFAULT_SNAPSHOT_LOG_SIZE);
+	}
+}
@@ -5,6 +5,8 @@ import com.pega.charlatan.node.dao.NodeDao;
 import com.pega.charlatan.node.dao.RecordNotFoundException;
 import com.pega.charlatan.utils.Service;
 import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
+import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -24,6 +26,15 @@ public class NodeDaoRestClient extends NettyClient implements NodeDao {
 		}
 	}
 
+	@Override
+	public String createSequential(long session, Node node) throws RecordNotFoundException {
+		try {
+			return sendMessage(HttpMethod.POST, "/nodes/sequential?session=" + session, node, String.class);
+		} catch (IOException e) {
+			throw new DataAccessException("Failed to create requested sequential node", e);
+		}
+	}
+
 	@Override
 	public boolean delete(Node node) {
 		try {
@@ -53,9 +64,18 @@ public class NodeDaoRestClient extends NettyClient implements NodeDao {
 	}
 
 	@Override
-	public void updateCVersion(String path, int cversion) {
+	public Stat compareAndSet(String path, int expectedVersion, byte[] data, long modificationTime) throws RecordNotFoundException {
 		try {
-			sendMessage(HttpMethod.PUT, "/nodes/" + encodePath(path) + "?cversion=" + cversion);
+			return sendMessage(HttpMethod.PUT, "/nodes/" + encodePath(path) + "?expectedVersion=" + expectedVersion + "&mtime=" + modificationTime, data, Stat.class);
+		} catch (IOException e) {
+			throw new DataAccessException("Failed to update requested node", e);
+		}
+	}
+
+	@Override
+	public void incrementCVersion(String path) {
+		try {
+			sendMessage(HttpMethod.PUT, "/nodes/" + encodePath(path) + "?incrementCVersion=true");
 		} catch (IOException | RecordNotFoundException e) {
 			throw new DataAccessException("Failed to update node cversion", e);
 		}
@@ -70,6 +90,15 @@ public class NodeDaoRestClient extends NettyClient implements NodeDao {
 		}
 	}
 
+	@Override
+	public int executeBatch(long session, List<NodeOperation> operations) {
+		try {
+			return sendMessage(HttpMethod.POST, "/nodes/batch?session=" + session, operations, Integer.class);
+		} catch (IOException | RecordNotFoundException e) {
+			throw new DataAccessException("Failed to execute node batch", e);
+		}
+	}
+
 	private String encodePath(String path) {
 		try {
 			return URLEncoder.encode(path, "UTF-8");
@@ -4,14 +4,24 @@ import com.pega.charlatan.node.dao.DataAccessException;
 import com.pega.charlatan.node.dao.RecordNotFoundException;
 import com.pega.charlatan.utils.Service;
 import com.pega.charlatan.node.bean.NodeUpdate;
-import com.pega.charlatan.watches.dao.NodeUpdateDao;
+import com.pega.charlatan.watches.dao.PushNodeUpdateDao;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Node updates are awaited with long polling requests sent over a dedicated connection, so the waiting
+ * request doesn't delay the other requests.
+ */
 @Service
-public class NodeUpdateDaoRestClient extends NettyClient implements NodeUpdateDao {
+public class NodeUpdateDaoRestClient extends NettyClient implements PushNodeUpdateDao {
+
+	// Time the response of the long polling request may take on top of the wait time
+	private static final int AWAIT_RESPONSE_MARGIN_MS = 10000;
+
+	private volatile ZookeeperDaoRemoteConnection awaitConnection;
+
 	@Override
 	public void insertUpdate(NodeUpdate update) {
 		try {
@@ -21,11 +31,23 @@ public class NodeUpdateDaoRestClient extends NettyClient implements NodeUpdateDa
 		}
 	}
 
+	@Override
+	public void insertUpdates(List<NodeUpdate> updates) {
+		if (updates.isEmpty()) {
+			return;
+		}
+
+		try {
+			sendMessage(HttpMethod.POST, "/updates/batch", updates, null);
+		} catch (IOException | RecordNotFoundException e) {
+			throw new DataAccessException("Failed to create node updates", e);
+		}
+	}
 
 	@Override
-	public List<NodeUpdate> getNodeUpdates(int ownerBroker, long fromTimestamp) {
+	public List<NodeUpdate> getNodeUpdates(int thisBroker, long afterId, int limit) {
 		try {
-			return Arrays.asList(sendMessage(HttpMethod.GET, "/updates?broker=" + ownerBroker + "&exclude_own=true&start_timestamp=" + fromTimestamp, NodeUpdate[].class));
+			return Arrays.asList(sendMessage(HttpMethod.GET, "/updates?broker=" + thisBroker + "&exclude_own=true&after_id=" + afterId + "&limit=" + limit, NodeUpdate[].class));
 		} catch (IOException | RecordNotFoundException e) {
 			throw new DataAccessException("Failed to get node updates", e);
 		}
@@ -41,20 +63,47 @@ public class NodeUpdateDaoRestClient extends NettyClient implements NodeUpdateDa
 //	}
 
 	@Override
-	public void clearOldUpdates(long toMs) {
+	public int clearOldUpdates(long toMs, long keepUpdates, long lastReadId, int limit) {
 		try {
-			sendMessage(HttpMethod.DELETE, "/updates?to_ms=" + toMs);
+			return sendMessage(HttpMethod.DELETE, "/updates?to_ms=" + toMs + "&keep=" + keepUpdates + "&last_read_id=" + lastReadId + "&limit=" + limit, Integer.class);
 		} catch (IOException | RecordNotFoundException e) {
 			throw new DataAccessException("Failed to clear old updates", e);
 		}
 	}
 
-//	@Override
-//	public int getLastUpdateId() {
-//		try {
-//			return sendMessage(HttpMethod.GET, "/updates/last/id", Integer.class);
-//		} catch (IOException | RecordNotFoundException e) {
-//			throw new DataAccessException("Failed to retrieve last update id", e);
-//		}
-//	}
+	@Override
+	public long getLastUpdateId() {
+		try {
+			return sendMessage(HttpMethod.GET, "/updates/last/id", Long.class);
+		} catch (IOException | RecordNotFoundException e) {
+			throw new DataAccessException("Failed to retrieve last update id", e);
+		}
+	}
+
+	@Override
+	public List<NodeUpdate> awaitNodeUpdates(int thisBroker, long afterId, int limit, long timeoutMs) throws InterruptedException {
+		String api = "/updates?broker=" + thisBroker + "&exclude_own=true&after_id=" + afterId + "&limit=" + limit + "&timeout_ms=" + timeoutMs;
+
+		try {
+			NodeUpdate[] updates = getAwaitConnection().sendMessage(org.jboss.netty.handler.codec.http.HttpMethod.GET, api,
+					null, NodeUpdate[].class, (int) timeoutMs + AWAIT_RESPONSE_MARGIN_MS);
+			return Arrays.asList(updates);
+		} catch (IOException | RecordNotFoundException e) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			throw new DataAccessException("Failed to await node updates", e);
+		}
+	}
+
+	private ZookeeperDaoRemoteConnection getAwaitConnection() {
+		if (awaitConnection == null) {
+			synchronized (this) {
+				if (awaitConnection == null) {
+					awaitConnection = ZookeeperDaoRemoteConnection.newConnection();
+				}
+			}
+		}
+		return awaitConnection;
+	}
 }
@@ -8,6 +8,7 @@ import com.pega.charlatan.utils.Service;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -57,4 +58,18 @@ public class SessionDaoRestClient extends NettyClient implements SessionDao {
 			throw new DataAccessException("Failed to update broker info", e);
 		}
 	}
+
+	@Override
+	public void updateSessions(Collection<Session> sessions) {
+		if (sessions.isEmpty()) {
+			return;
+		}
+
+		try {
+			sendMessage(HttpMethod.POST, "/sessions/batch", sessions, null);
+		} catch (IOException | RecordNotFoundException e) {
+			logger.error("Failed to update broker info", e);
+			throw new DataAccessException("Failed to update broker info", e);
+		}
+	}
 }
@@ -56,23 +56,34 @@ public class ZookeeperDaoRemoteConnection {
 		if (instance == null) {
 			synchronized (ZookeeperDaoRemoteConnection.class) {
 				if (instance == null) {
-					String host = System.getProperty("ZOOKEEPER_HOST");
-					String port = System.getProperty("ZOOKEEPER_PORT");
-
-					if (host == null && host.isEmpty()) {
-						throw new RuntimeException("Zookeeper server host is unknown");
-					}
-
-					if (port == null && port.isEmpty()) {
-						throw new RuntimeException("Zookeeper server port is unknown");
-					}
-					instance = new ZookeeperDaoRemoteConnection(host, Integer.parseInt(port));
+					instance = newConnection();
 				}
 			}
 		}
 		return instance;
 	}
 
+	/**
+	 * Creates a connection that isn't shared with the other clients.
+	 * Requests on the keep alive connection are answered in order, so requests that wait on the server side must not
+	 * use the shared connection.
+	 *
+	 * @return
+	 */
+	public static ZookeeperDaoRemoteConnection newConnection() {
+		String host = System.getProperty("ZOOKEEPER_HOST");
+		String port = System.getProperty("ZOOKEEPER_PORT");
+
+		if (host == null && host.isEmpty()) {
+			throw new RuntimeException("Zookeeper server host is unknown");
+		}
+
+		if (port == null && port.isEmpty()) {
+			throw new RuntimeException("Zookeeper server port is unknown");
+		}
+		return new ZookeeperDaoRemoteConnection(host, Integer.parseInt(port));
+	}
+
 	/**
 	 * Executes the HTTP request, writing the given request entity to the request, and returns the response of the requested response type.
 	 *
@@ -86,6 +97,13 @@ public class ZookeeperDaoRemoteConnection {
 	 * @throws RecordNotFoundException
 	 */
 	protected <T> T sendMessage(HttpMethod httpMethod, String api, Object requestEntity, Class<T> responseType) throws IOException, RecordNotFoundException {
+		return sendMessage(httpMethod, api, requestEntity, responseType, readTimeoutMs);
+	}
+
+	/**
+	 * Same as {@link #sendMessage(HttpMethod, String, Object, Class)} with a custom response timeout.
+	 */
+	protected <T> T sendMessage(HttpMethod httpMethod, String api, Object requestEntity, Class<T> responseType, int timeoutMs) throws IOException, RecordNotFoundException {
 
 		MessageHandler messageHandler = getMessageHandler();
 
@@ -108,7 +126,7 @@ public class ZookeeperDaoRemoteConnection {
 
 		try {
 			// wait for response
-			HttpResponse response = responseFuture.get(readTimeoutMs, TimeUnit.MILLISECONDS);
+			HttpResponse response = responseFuture.get(timeoutMs, TimeUnit.MILLISECONDS);
 			int statusCode = response.getStatus().getCode();
 
 			if (statusCode == 200) {
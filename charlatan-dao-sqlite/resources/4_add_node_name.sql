@@ -0,0 +1,3 @@
+ALTER TABLE nodes ADD COLUMN node_name text;
+UPDATE nodes SET node_name = substr(name, (SELECT CASE WHEN p.name = '/' THEN 2 ELSE length(p.name) + 2 END FROM nodes p WHERE p.pk = nodes.fk)) WHERE node_name IS NULL AND fk IS NOT NULL;
+CREATE INDEX IF NOT EXISTS nodes_fk_node_name ON nodes(fk, node_name);
@@ -0,0 +1 @@
+CREATE INDEX IF NOT EXISTS node_updates_timestamp ON node_updates(timestamp);
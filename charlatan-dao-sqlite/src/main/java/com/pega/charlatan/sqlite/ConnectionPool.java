@@ -0,0 +1,251 @@
+package com.pega.charlatan.sqlite;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of SQLite connections shared by all the DAOs of the same database.
+ * <p>
+ * SQLite allows a single writer at a time, so there is one write connection and a number of read connections
+ * that, in WAL mode, read concurrently with the writer.
+ * Connections are opened lazily and kept open. Closing a pooled connection returns it to the pool, closing a
+ * statement prepared on a pooled connection keeps it prepared for the next caller with the same SQL.
+ * <p>
+ * A thread that already holds a connection of the pool gets the same connection back instead of waiting for another
+ * one, which would never come for the single write connection. The nested borrow shares the transaction of the
+ * outer one, and the connection returns to the pool when the outermost borrow is closed.
+ */
+class ConnectionPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+	private final String url;
+
+	private final BlockingQueue<PooledConnection> writeConnections;
+	private final BlockingQueue<PooledConnection> readConnections;
+
+	// Connection of each pool held by the current thread
+	private final ThreadLocal<PooledConnection> writeConnection = new ThreadLocal<>();
+	private final ThreadLocal<PooledConnection> readConnection = new ThreadLocal<>();
+
+	/**
+	 * @param url         jdbc url of the database
+	 * @param properties  connection properties
+	 * @param readerCount number of read connections
+	 */
+	ConnectionPool(String url, Properties properties, int readerCount) {
+		this.url = url;
+
+		this.writeConnections = new ArrayBlockingQueue<>(1);
+		this.writeConnections.add(new PooledConnection(writeConnections, writeConnection, properties));
+
+		this.readConnections = new ArrayBlockingQueue<>(readerCount);
+		for (int i = 0; i < readerCount; i++) {
+			readConnections.add(new PooledConnection(readConnections, readConnection, properties));
+		}
+	}
+
+	/**
+	 * Waits for the write connection. The connection must be closed to release it.
+	 */
+	Connection getWriteConnection() throws SQLException {
+		return borrow(writeConnections, writeConnection);
+	}
+
+	/**
+	 * Waits for a read connection. The connection must be closed to release it.
+	 */
+	Connection getReadConnection() throws SQLException {
+		return borrow(readConnections, readConnection);
+	}
+
+	private Connection borrow(BlockingQueue<PooledConnection> connections, ThreadLocal<PooledConnection> held) throws SQLException {
+		PooledConnection connection = held.get();
+		if (connection != null) {
+			return connection.borrow();
+		}
+
+		try {
+			connection = connections.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+
+		try {
+			return connection.borrow();
+		} catch (SQLException | RuntimeException e) {
+			connections.add(connection);
+			throw e;
+		}
+	}
+
+	/**
+	 * Physical connection with its prepared statements cache.
+	 */
+	private class PooledConnection {
+		private final BlockingQueue<PooledConnection> pool;
+		private final ThreadLocal<PooledConnection> held;
+		private final Properties properties;
+		private final Map<String, PreparedStatement> statements;
+		private Connection connection;
+		// Borrows not closed yet by the holding thread
+		private int holds;
+
+		PooledConnection(BlockingQueue<PooledConnection> pool, ThreadLocal<PooledConnection> held, Properties properties) {
+			this.pool = pool;
+			this.held = held;
+			this.properties = properties;
+			this.statements = new HashMap<>();
+		}
+
+		Connection borrow() throws SQLException {
+			if (holds == 0) {
+				if (connection == null || connection.isClosed()) {
+					statements.clear();
+					connection = DriverManager.getConnection(url, properties);
+				}
+				held.set(this);
+			}
+			holds++;
+
+			return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[]{Connection.class}, new ConnectionHandler(this));
+		}
+
+		PreparedStatement prepareStatement(String sql) throws SQLException {
+			PreparedStatement ps = statements.get(sql);
+			if (ps == null || ps.isClosed()) {
+				ps = connection.prepareStatement(sql);
+				statements.put(sql, ps);
+			}
+
+			return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[]{PreparedStatement.class}, new StatementHandler(ps));
+		}
+
+		void release() {
+			if (--holds > 0) {
+				// Still used by an outer borrow of the same thread
+				return;
+			}
+			held.remove();
+
+			try {
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				logger.warn("Closing broken database connection", e);
+				close();
+			}
+
+			pool.add(this);
+		}
+
+		private void close() {
+			for (PreparedStatement ps : statements.values()) {
+				try {
+					ps.close();
+				} catch (SQLException ignore) {
+				}
+			}
+			statements.clear();
+
+			try {
+				connection.close();
+			} catch (SQLException ignore) {
+			}
+			connection = null;
+		}
+	}
+
+	/**
+	 * Connection handed out to a DAO: close returns the connection to the pool.
+	 */
+	private static class ConnectionHandler implements InvocationHandler {
+		private final PooledConnection pooled;
+		private boolean closed;
+
+		ConnectionHandler(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "close":
+					if (!closed) {
+						closed = true;
+						pooled.release();
+					}
+					return null;
+				case "isClosed":
+					return closed;
+				default:
+					if (closed) {
+						throw new SQLException("Connection is returned to the pool");
+					}
+					if (method.getName().equals("prepareStatement") && args.length == 1) {
+						return pooled.prepareStatement((String) args[0]);
+					}
+					return invokeTarget(pooled.connection, method, args);
+			}
+		}
+	}
+
+	/**
+	 * Cached statement handed out to a DAO: close only resets the statement.
+	 */
+	private static class StatementHandler implements InvocationHandler {
+		private final PreparedStatement ps;
+		private ResultSet resultSet;
+
+		StatementHandler(PreparedStatement ps) {
+			this.ps = ps;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "close":
+					// Closing the result set releases the statement read lock
+					if (resultSet != null) {
+						resultSet.close();
+						resultSet = null;
+					}
+					ps.clearParameters();
+					return null;
+				case "executeQuery":
+					resultSet = (ResultSet) invokeTarget(ps, method, args);
+					return resultSet;
+				default:
+					return invokeTarget(ps, method, args);
+			}
+		}
+	}
+
+	private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
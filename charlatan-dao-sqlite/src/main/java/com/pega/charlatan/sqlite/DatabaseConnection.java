@@ -4,6 +4,7 @@ import com.pega.charlatan.node.dao.DataAccessException;
 import org.sqlite.SQLiteConfig;
 
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.*;
@@ -12,12 +13,25 @@ import java.util.concurrent.Callable;
 
 /**
  * Created by natalia on 7/17/17.
+ * <p>
+ * All the DAOs share one pool of connections: a single write connection and {@link #DEFAULT_READERS} read
+ * connections (configurable by "readers" property of sqlite.properties). Database runs in WAL mode, so reads
+ * don't wait for the writer.
+ * <p>
+ * The database of sqlite.properties can be overridden by {@link #DATABASE_PROPERTY} system property.
  */
 public abstract class DatabaseConnection {
 
+	public static final int DEFAULT_READERS = 4;
+	public static final String DATABASE_PROPERTY = "charlatan.sqlite.database";
+
+	// SQLITE_BUSY
+	private static final int BUSY_ERROR_CODE = 5;
+
 	private static long retryTimeoutInMillis = 60000;
 	private static String database;
-	private static SQLiteConfig config = new SQLiteConfig();
+	private static int readers = DEFAULT_READERS;
+	private static ConnectionPool connectionPool;
 
 	static {
 		try {
@@ -28,6 +42,7 @@ public abstract class DatabaseConnection {
 		}
 
 		readProperties();
+		initConnectionPool();
 	}
 
 
@@ -47,6 +62,16 @@ public abstract class DatabaseConnection {
 			prop.load(input);
 
 			database = prop.getProperty("database");
+
+			String readersProperty = prop.getProperty("readers");
+			if (readersProperty != null) {
+				readers = Integer.parseInt(readersProperty.trim());
+			}
+		} catch (FileNotFoundException ex) {
+			// Properties file is optional when the database is given by the system property
+			if (System.getProperty(DATABASE_PROPERTY) == null) {
+				ex.printStackTrace();
+			}
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
@@ -58,23 +83,81 @@ public abstract class DatabaseConnection {
 				}
 			}
 		}
+
+		database = System.getProperty(DATABASE_PROPERTY, database);
+	}
+
+	private static void initConnectionPool() {
+		connectionPool = new ConnectionPool("jdbc:sqlite:" + database, createConfig().toProperties(), Math.max(1, readers));
 	}
 
-	private static void initConfig() {
-		config = new SQLiteConfig();
+	private static SQLiteConfig createConfig() {
+		SQLiteConfig config = new SQLiteConfig();
 		config.setBusyTimeout("1000");
+		// Readers don't block the writer and the writer doesn't block readers
+		config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+		// In WAL mode NORMAL is durable against application crash and syncs only on checkpoints
+		config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+		config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+		// Negative value is in KiB
+		config.setCacheSize(-8192);
+		return config;
 	}
 
+	/**
+	 * Returns the write connection, closing it returns it to the pool.
+	 * Only one thread holds the write connection at a time.
+	 */
 	protected Connection getConnection() throws SQLException {
+		try {
+			return connectionPool.getWriteConnection();
+		} catch (SQLException e) {
+			if (e.getErrorCode() != BUSY_ERROR_CODE) {
+				throw e;
+			}
+		}
+
 		return retryUntilSucceeded(new Callable<Connection>() {
 			@Override
 			public Connection call() throws Exception {
-				return DriverManager.getConnection("jdbc:sqlite:" + database, config.toProperties());
+				return connectionPool.getWriteConnection();
 			}
 		});
 	}
 
+	/**
+	 * Returns a read connection, closing it returns it to the pool.
+	 * Read connections see everything committed by the write connection before the read starts.
+	 */
+	protected Connection getReadConnection() throws SQLException {
+		try {
+			return connectionPool.getReadConnection();
+		} catch (SQLException e) {
+			if (e.getErrorCode() != BUSY_ERROR_CODE) {
+				throw e;
+			}
+		}
+
+		return retryUntilSucceeded(new Callable<Connection>() {
+			@Override
+			public Connection call() throws Exception {
+				return connectionPool.getReadConnection();
+			}
+		});
+	}
+
+	/**
+	 * Statements are cached by the pooled connection, closing the statement keeps it prepared.
+	 */
 	protected PreparedStatement prepareStatement(final Connection c, final String sql) throws SQLException {
+		try {
+			return c.prepareStatement(sql);
+		} catch (SQLException e) {
+			if (e.getErrorCode() != BUSY_ERROR_CODE) {
+				throw e;
+			}
+		}
+
 		return retryUntilSucceeded(new Callable<PreparedStatement>() {
 			@Override
 			public PreparedStatement call() throws Exception {
@@ -84,6 +167,14 @@ public abstract class DatabaseConnection {
 	}
 
 	protected int executeUpdate(final PreparedStatement ps) throws SQLException {
+		try {
+			return ps.executeUpdate();
+		} catch (SQLException e) {
+			if (e.getErrorCode() != BUSY_ERROR_CODE) {
+				throw e;
+			}
+		}
+
 		return retryUntilSucceeded(new Callable<Integer>() {
 			@Override
 			public Integer call() throws Exception {
@@ -93,6 +184,14 @@ public abstract class DatabaseConnection {
 	}
 
 	protected ResultSet executeQuery(final PreparedStatement ps) throws SQLException {
+		try {
+			return ps.executeQuery();
+		} catch (SQLException e) {
+			if (e.getErrorCode() != BUSY_ERROR_CODE) {
+				throw e;
+			}
+		}
+
 		return retryUntilSucceeded(new Callable<ResultSet>() {
 			@Override
 			public ResultSet call() throws Exception {
@@ -101,6 +200,9 @@ public abstract class DatabaseConnection {
 		});
 	}
 
+	/**
+	 * Slow path of the operations above, taken only when the database is busy.
+	 */
 	private <T> T retryUntilSucceeded(final Callable<T> callable) throws SQLException {
 		final long operationStartTime = System.currentTimeMillis();
 		SQLException lastEx;
@@ -108,7 +210,7 @@ public abstract class DatabaseConnection {
 			try {
 				return callable.call();
 			} catch (SQLException e) {
-				if (e.getErrorCode() == 5) {
+				if (e.getErrorCode() == BUSY_ERROR_CODE) {
 					// we give the event thread some time to update the status to 'Disconnected'
 					lastEx = e;
 					try {
@@ -5,6 +5,7 @@ import com.pega.charlatan.node.dao.NodeDao;
 import com.pega.charlatan.node.dao.RecordNotFoundException;
 import com.pega.charlatan.utils.Service;
 import com.pega.charlatan.node.bean.Node;
+import com.pega.charlatan.node.bean.NodeOperation;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.data.Stat;
 
@@ -16,6 +17,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -27,49 +29,111 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 
 	@Override
 	public boolean create(long session, Node node) throws RecordNotFoundException {
-		StringBuilder sql = new StringBuilder("INSERT INTO nodes(fk, name, data, create_time, modify_time, session");
+		int parentKey = getNodeKey(node.getParentPath());
+
+		try (Connection c = getConnection()) {
+			return insertNode(c, session, parentKey, node.getPath(), node);
+		} catch (SQLException e) {
+			throw new DataAccessException(e);
+		}
+	}
+
+	/**
+	 * Increments the parent cversion before reading it. The update takes the database write lock, so no other
+	 * connection, in this or another process, can allocate the same sequence number before the node is inserted.
+	 */
+	@Override
+	public String createSequential(long session, Node node) throws RecordNotFoundException {
+		String parentPath = node.getParentPath();
+
+		try (Connection c = getConnection()) {
+			c.setAutoCommit(false);
+
+			try {
+				try (PreparedStatement ps = prepareStatement(c, "UPDATE nodes SET cversion = cversion + 1 WHERE name = ?")) {
+					ps.setString(1, parentPath);
+					if (executeUpdate(ps) == 0) {
+						c.rollback();
+						throw new RecordNotFoundException(parentPath + " not found");
+					}
+				}
+
+				int parentKey;
+				int sequence;
+				try (PreparedStatement ps = prepareStatement(c, "SELECT pk, cversion FROM nodes WHERE name = ?")) {
+					ps.setString(1, parentPath);
+					ResultSet rs = executeQuery(ps);
+					rs.next();
+					parentKey = rs.getInt("pk");
+					sequence = rs.getInt("cversion") - 1;
+				}
+
+				String path = Node.getSequentialPath(node.getPath(), sequence);
+				if (!insertNode(c, session, parentKey, path, node)) {
+					c.rollback();
+					return null;
+				}
+
+				c.commit();
+				return path;
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
+			} finally {
+				c.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new DataAccessException(e);
+		}
+	}
+
+	/**
+	 * @return false if a node with the path already exists
+	 */
+	private boolean insertNode(Connection c, long session, int parentKey, String path, Node node) throws SQLException {
+		StringBuilder sql = new StringBuilder("INSERT INTO nodes(fk, name, node_name, data, create_time, modify_time, session");
 		if (node.getMode() != null)
 			sql.append(",mode");
-		sql.append(" ) VALUES(?,?,?,?,?,?");
+		sql.append(" ) VALUES(?,?,?,?,?,?,?");
 		if (node.getMode() != null)
 			sql.append(",?");
 		sql.append(" )");
 
-		int parentKey = getNodeKey(node.getParentPath());
-
-		try (Connection c = getConnection()) {
-			try (PreparedStatement ps = prepareStatement(c, sql.toString())) {
-				long now = System.currentTimeMillis();
+		try (PreparedStatement ps = prepareStatement(c, sql.toString())) {
+			long now = System.currentTimeMillis();
 
-				ps.setInt(1, parentKey);
-				ps.setString(2, node.getPath());
-				ps.setBytes(3, node.getData());
-				ps.setLong(4, now);
-				ps.setLong(5, now);
-				ps.setLong(6, session);
+			ps.setInt(1, parentKey);
+			ps.setString(2, path);
+			ps.setString(3, getNodeName(path));
+			ps.setBytes(4, node.getData());
+			ps.setLong(5, now);
+			ps.setLong(6, now);
+			ps.setLong(7, session);
 
-				if (node.getMode() != null)
-					ps.setString(7, node.getMode().name());
+			if (node.getMode() != null)
+				ps.setString(8, node.getMode().name());
 
-				return executeUpdate(ps) > 0;
-			}
+			return executeUpdate(ps) > 0;
 		} catch (SQLException e) {
 			if (e.getErrorCode() == 19) {//constraint violation
 				return false;
 			}
-			throw new DataAccessException(e);
+			throw e;
 		}
 	}
 
 
+	// Node with children is not deleted, the children check uses the (fk, node_name) index
+	private static final String DELETE_SQL = "DELETE FROM nodes WHERE name=? AND NOT EXISTS (SELECT 1 FROM nodes c WHERE c.fk = nodes.pk)";
+
 	@Override
 	public boolean delete(Node node) {
-		String sql = "DELETE FROM nodes WHERE name=?";
+		String sql = DELETE_SQL;
 
 		boolean hasVersion = node.getStat().getVersion() >= 0;
 
 		if (hasVersion)
-			sql += "and version=?";
+			sql += " and version=?";
 
 		try (Connection c = getConnection()) {
 			try (PreparedStatement ps = prepareStatement(c,sql)) {
@@ -84,14 +148,19 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 		}
 	}
 
+	/**
+	 * Reads the node and the names of its children in one query.
+	 * Child names are aggregated from the (fk, node_name) index, node names never contain '/' so it is used as separator.
+	 */
 	@Override
 	public Node get(String path) throws RecordNotFoundException {
 
-		String getNodeData = "SELECT pk, data, version, cversion, mode, create_time, modify_time, session FROM nodes WHERE name = ? ";
-		String getNodeChildren = "SELECT name FROM nodes WHERE fk=?";
+		String getNode = "SELECT data, version, cversion, mode, create_time, modify_time, session, " +
+				"(SELECT group_concat(c.node_name, '/') FROM nodes c WHERE c.fk = n.pk) AS children " +
+				"FROM nodes n WHERE n.name = ? ";
 
-		try (Connection c = getConnection()) {
-			try (PreparedStatement ps = prepareStatement(c,getNodeData)) {
+		try (Connection c = getReadConnection()) {
+			try (PreparedStatement ps = prepareStatement(c, getNode)) {
 				ps.setString(1, path);
 				ResultSet rs = executeQuery(ps);
 
@@ -113,30 +182,15 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 						stat.setEphemeralOwner(rs.getLong("session"));
 					}
 
-					int pk = rs.getInt("pk");
-					rs.close();
-
-					try (PreparedStatement ps2 = prepareStatement(c,getNodeChildren)) {
-						ps2.setInt(1, pk);
-						rs = executeQuery(ps2);
-						List<String> children = new ArrayList<>();
-						while (rs.next()) {
-							String fullPath = rs.getString("name");
-
-							int startIndex;
-							if(path.equals("/")){
-								startIndex = 1;
-							}
-							else {
-								startIndex = node.getPath().length() + 1;
-							}
-
-							String nodeName = fullPath.substring(startIndex);
-							children.add(nodeName);
-						}
-						node.setChildren(children);
-						stat.setNumChildren(children.size());
+					String childNames = rs.getString("children");
+					List<String> children;
+					if (childNames == null || childNames.isEmpty()) {
+						children = new ArrayList<>();
+					} else {
+						children = new ArrayList<>(Arrays.asList(childNames.split("/")));
 					}
+					node.setChildren(children);
+					stat.setNumChildren(children.size());
 
 					return node;
 				}
@@ -166,12 +220,89 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 		}
 	}
 
+	/**
+	 * Updates the node and reads its stat in a single transaction, so the returned stat is the one written by this
+	 * update. The version is checked by the UPDATE itself, so no other write can come between the check and the update.
+	 */
 	@Override
-	public void updateCVersion(String path, int cversion) {
+	public Stat compareAndSet(String path, int expectedVersion, byte[] data, long modificationTime) throws RecordNotFoundException {
+		String sql = "UPDATE nodes SET data=?, version=version+1, modify_time=? WHERE name=?";
+
+		boolean hasVersion = expectedVersion >= 0;
+
+		if (hasVersion)
+			sql += " and version=?";
+
+		int updated;
+		Stat stat;
 		try (Connection c = getConnection()) {
-			try (PreparedStatement ps = prepareStatement(c,"UPDATE nodes SET cversion=? WHERE name=?")) {
-				ps.setInt(1, cversion);
-				ps.setString(2, path);
+			c.setAutoCommit(false);
+
+			try {
+				try (PreparedStatement ps = prepareStatement(c, sql)) {
+					ps.setBytes(1, data);
+					ps.setLong(2, modificationTime);
+					ps.setString(3, path);
+					if (hasVersion) {
+						ps.setInt(4, expectedVersion);
+					}
+					updated = executeUpdate(ps);
+				}
+
+				stat = getStat(c, path);
+
+				c.commit();
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
+			} finally {
+				c.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new DataAccessException(e);
+		}
+
+		if (stat == null) {
+			throw new RecordNotFoundException(path);
+		}
+		return updated > 0 ? stat : null;
+	}
+
+	/**
+	 * @return stat of the node, null if the node doesn't exist
+	 */
+	private Stat getStat(Connection c, String path) throws SQLException {
+		String sql = "SELECT version, cversion, mode, create_time, modify_time, session, length(data) AS data_length, " +
+				"(SELECT count(*) FROM nodes c WHERE c.fk = n.pk) AS children " +
+				"FROM nodes n WHERE n.name = ?";
+
+		try (PreparedStatement ps = prepareStatement(c, sql)) {
+			ps.setString(1, path);
+			ResultSet rs = executeQuery(ps);
+
+			if (!rs.next()) {
+				return null;
+			}
+
+			Stat stat = new Stat();
+			stat.setVersion(rs.getInt("version"));
+			stat.setCversion(rs.getInt("cversion"));
+			stat.setCtime(rs.getLong("create_time"));
+			stat.setMtime(rs.getLong("modify_time"));
+			stat.setDataLength(rs.getInt("data_length"));
+			if (CreateMode.valueOf(rs.getString("mode")).isEphemeral()) {
+				stat.setEphemeralOwner(rs.getLong("session"));
+			}
+			stat.setNumChildren(rs.getInt("children"));
+			return stat;
+		}
+	}
+
+	@Override
+	public void incrementCVersion(String path) {
+		try (Connection c = getConnection()) {
+			try (PreparedStatement ps = prepareStatement(c, "UPDATE nodes SET cversion = cversion + 1 WHERE name=?")) {
+				ps.setString(1, path);
 				executeUpdate(ps);
 			}
 		} catch (SQLException e) {
@@ -183,7 +314,7 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 	public List<String> getEphemeralPaths(long session) {
 		String sql = "SELECT name FROM nodes WHERE session=? AND mode='EPHEMERAL'";
 
-		try (Connection c = getConnection()) {
+		try (Connection c = getReadConnection()) {
 			try (PreparedStatement ps = prepareStatement(c,sql)) {
 				ps.setLong(1, session);
 				ResultSet rs = executeQuery(ps);
@@ -199,11 +330,139 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 		}
 	}
 
+	/**
+	 * Executes the operations in a single transaction, so the batch costs one commit.
+	 */
+	@Override
+	public int executeBatch(long session, List<NodeOperation> operations) {
+		try (Connection c = getConnection()) {
+			c.setAutoCommit(false);
+
+			try {
+				for (int i = 0; i < operations.size(); i++) {
+					if (!execute(c, session, operations.get(i))) {
+						c.rollback();
+						return i;
+					}
+				}
+
+				c.commit();
+				return -1;
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
+			} finally {
+				c.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new DataAccessException(e);
+		}
+	}
+
+	/**
+	 * @return false if the operation precondition failed
+	 */
+	private boolean execute(Connection c, long session, NodeOperation operation) throws SQLException {
+		boolean hasVersion = operation.getVersion() >= 0;
+
+		switch (operation.getType()) {
+			case CREATE: {
+				Node node = operation.getNode();
+
+				Integer parentKey = getNodeKey(c, node.getParentPath());
+				if (parentKey == null) {
+					return false;
+				}
+
+				String sql = "INSERT INTO nodes(fk, name, node_name, data, create_time, modify_time, session, mode) VALUES(?,?,?,?,?,?,?,?)";
+				try (PreparedStatement ps = prepareStatement(c, sql)) {
+					ps.setInt(1, parentKey);
+					ps.setString(2, node.getPath());
+					ps.setString(3, getNodeName(node.getPath()));
+					ps.setBytes(4, node.getData());
+					ps.setLong(5, node.getStat().getCtime());
+					ps.setLong(6, node.getStat().getMtime());
+					ps.setLong(7, session);
+					ps.setString(8, node.getMode().name());
+
+					return executeUpdate(ps) > 0;
+				} catch (SQLException e) {
+					if (e.getErrorCode() == 19) {//constraint violation
+						return false;
+					}
+					throw e;
+				}
+			}
+			case DELETE: {
+				String sql = DELETE_SQL;
+				if (hasVersion)
+					sql += " and version=?";
+
+				try (PreparedStatement ps = prepareStatement(c, sql)) {
+					ps.setString(1, operation.getPath());
+					if (hasVersion) {
+						ps.setInt(2, operation.getVersion());
+					}
+					return executeUpdate(ps) > 0;
+				}
+			}
+			case UPDATE: {
+				String sql = "UPDATE nodes SET data=?, version=version+1, modify_time=? WHERE name=?";
+				if (hasVersion)
+					sql += " and version=?";
+
+				try (PreparedStatement ps = prepareStatement(c, sql)) {
+					ps.setBytes(1, operation.getData());
+					ps.setLong(2, operation.getModificationTime());
+					ps.setString(3, operation.getPath());
+					if (hasVersion) {
+						ps.setInt(4, operation.getVersion());
+					}
+					return executeUpdate(ps) > 0;
+				}
+			}
+			case INCREMENT_CVERSION: {
+				boolean hasCversion = operation.getCversion() >= 0;
+				String sql = "UPDATE nodes SET cversion = cversion + 1 WHERE name=?";
+				if (hasCversion)
+					sql += " and cversion=?";
+
+				try (PreparedStatement ps = prepareStatement(c, sql)) {
+					ps.setString(1, operation.getPath());
+					if (hasCversion) {
+						ps.setInt(2, operation.getCversion());
+					}
+					return executeUpdate(ps) > 0;
+				}
+			}
+			case CHECK: {
+				try (PreparedStatement ps = prepareStatement(c, "SELECT version FROM nodes WHERE name=?")) {
+					ps.setString(1, operation.getPath());
+					ResultSet rs = executeQuery(ps);
+					return rs.next() && (!hasVersion || rs.getInt("version") == operation.getVersion());
+				}
+			}
+			default:
+				throw new IllegalArgumentException("Unknown operation " + operation);
+		}
+	}
+
+	private Integer getNodeKey(Connection c, String path) throws SQLException {
+		try (PreparedStatement ps = prepareStatement(c, "SELECT pk FROM nodes WHERE name = ? ")) {
+			ps.setString(1, path);
+			ResultSet rs = executeQuery(ps);
+			if (rs.next()) {
+				return rs.getInt("pk");
+			}
+			return null;
+		}
+	}
+
 	protected int getNodeKey(String path) throws RecordNotFoundException {
 
 		String sql = "SELECT pk FROM nodes WHERE name = ? ";
 
-		try (Connection c = getConnection()) {
+		try (Connection c = getReadConnection()) {
 			try (PreparedStatement ps = prepareStatement(c,sql)) {
 				ps.setString(1, path);
 				ResultSet rs = executeQuery(ps);
@@ -218,10 +477,18 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 		throw new RecordNotFoundException(path + " not found");
 	}
 
+	/**
+	 * Last element of the node path, it is stored to get the child names without parsing full child paths.
+	 */
+	private static String getNodeName(String path) {
+		return Node.nameOf(path);
+	}
+
 	@Override
 	protected void setup() {
 		String createTable = "CREATE TABLE IF NOT EXISTS `nodes` (  `pk` integer PRIMARY KEY, `fk` integer NULL,  \n" +
 				"`name` text NOT NULL, \n" +
+				"`node_name` text, \n" +
 				"`data` BLOB,\n" +
 				"`version` integer NOT NULL DEFAULT 0,\n" +
 				"`cversion` integer NOT NULL DEFAULT 0,\n" +
@@ -231,12 +498,34 @@ public class NodeDaoSqlite extends DatabaseConnection implements NodeDao {
 				"`session` integer,\n" +
 				"FOREIGN KEY (fk) REFERENCES nodes(pk), UNIQUE(name) )";
 
+		// Databases created before node_name column was introduced
+		String addNodeName = "ALTER TABLE nodes ADD COLUMN node_name text";
+		String fillNodeName = "UPDATE nodes SET node_name = substr(name, " +
+				"(SELECT CASE WHEN p.name = '/' THEN 2 ELSE length(p.name) + 2 END FROM nodes p WHERE p.pk = nodes.fk)) " +
+				"WHERE node_name IS NULL AND fk IS NOT NULL";
+
+		// Covers the children lookup, so child names are read from the index only
+		String createChildrenIndex = "CREATE INDEX IF NOT EXISTS nodes_fk_node_name ON nodes(fk, node_name)";
+
 		String insertRoot = "INSERT INTO nodes (name,create_time, modify_time) VALUES (\"/\",?,?);";
 
 		try (Connection c = getConnection()) {
 			try (PreparedStatement ps = prepareStatement(c,createTable)) {
 				executeUpdate(ps);
 			}
+
+			try (PreparedStatement ps = prepareStatement(c, addNodeName)) {
+				executeUpdate(ps);
+			} catch (SQLException e) {
+				// column already exists
+			}
+			try (PreparedStatement ps = prepareStatement(c, fillNodeName)) {
+				executeUpdate(ps);
+			}
+			try (PreparedStatement ps = prepareStatement(c, createChildrenIndex)) {
+				executeUpdate(ps);
+			}
+
 			try (PreparedStatement ps = prepareStatement(c,insertRoot)) {
 				long now = System.currentTimeMillis();
 				ps.setLong(1, now);
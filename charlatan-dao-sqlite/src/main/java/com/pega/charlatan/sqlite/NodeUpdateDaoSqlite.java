@@ -2,7 +2,7 @@ package com.pega.charlatan.sqlite;
 
 import com.pega.charlatan.node.bean.NodeUpdate;
 import com.pega.charlatan.node.dao.DataAccessException;
-import com.pega.charlatan.watches.dao.NodeUpdateDao;
+import com.pega.charlatan.watches.dao.PushNodeUpdateDao;
 import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,54 +16,141 @@ import java.util.List;
 
 /**
  * Created by natalia on 7/17/17.
+ * <p>
+ * Waiters of {@link #awaitNodeUpdates} are woken up immediately by updates stored by this process.
+ * Updates stored by other processes sharing the database are noticed within {@link #CHECK_INTERVAL_MS}.
  */
-public class NodeUpdateDaoSqlite extends DatabaseConnection implements NodeUpdateDao {
+public class NodeUpdateDaoSqlite extends DatabaseConnection implements PushNodeUpdateDao {
 
 	private final static Logger logger = LoggerFactory.getLogger(NodeUpdateDaoSqlite.class.getName());
 
+	// Interval of checking for updates stored by other processes
+	private static final long CHECK_INTERVAL_MS = 50;
+
+	// Notified on every update stored by this process
+	private static final Object updatesMonitor = new Object();
+	// Number of updates stored by this process, guarded by updatesMonitor
+	private static long storedUpdates;
+
+	private static final String INSERT_UPDATE_SQL = "INSERT INTO node_updates(type,path,broker,timestamp) VALUES (?,?,?,?)";
+
 	@Override
 	public void insertUpdate(NodeUpdate update) {
-		String sql = "INSERT INTO node_updates(type,path,broker,timestamp) VALUES (?,?,?,?)";
 		try (Connection c = getConnection()) {
-			try (PreparedStatement ps = prepareStatement(c, sql)) {
-
-				ps.setString(1, update.getEventType().name());
-				ps.setString(2, update.getPath());
-				ps.setInt(3, update.getEmitterId());
-				ps.setLong(4, System.currentTimeMillis());
+			try (PreparedStatement ps = prepareStatement(c, INSERT_UPDATE_SQL)) {
+				setUpdate(ps, update);
 
 				executeUpdate(ps);
 			}
 		} catch (SQLException e) {
 			throw new DataAccessException(e);
 		}
+
+		notifyStoredUpdates();
+	}
+
+	/**
+	 * Inserts the updates in a single transaction, so the whole batch costs one commit.
+	 */
+	@Override
+	public void insertUpdates(List<NodeUpdate> updates) {
+		if (updates.isEmpty()) {
+			return;
+		}
+
+		try (Connection c = getConnection()) {
+			c.setAutoCommit(false);
+
+			try (PreparedStatement ps = prepareStatement(c, INSERT_UPDATE_SQL)) {
+				for (NodeUpdate update : updates) {
+					setUpdate(ps, update);
+					executeUpdate(ps);
+				}
+
+				c.commit();
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
+			} finally {
+				c.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new DataAccessException(e);
+		}
+
+		notifyStoredUpdates();
+	}
+
+	private void setUpdate(PreparedStatement ps, NodeUpdate update) throws SQLException {
+		ps.setString(1, update.getEventType().name());
+		ps.setString(2, update.getPath());
+		ps.setInt(3, update.getEmitterId());
+		ps.setLong(4, System.currentTimeMillis());
+	}
+
+	private void notifyStoredUpdates() {
+		synchronized (updatesMonitor) {
+			storedUpdates++;
+			updatesMonitor.notifyAll();
+		}
+	}
+
+	@Override
+	public long getLastUpdateId() {
+		try (Connection c = getReadConnection()) {
+			try (PreparedStatement ps = prepareStatement(c, "SELECT IFNULL(MAX(id), 0) AS last_id FROM node_updates")) {
+				ResultSet rs = executeQuery(ps);
+				return rs.next() ? rs.getLong("last_id") : 0;
+			}
+		} catch (SQLException e) {
+			throw new DataAccessException(e);
+		}
 	}
 
+	@Override
+	public List<NodeUpdate> awaitNodeUpdates(int thisBroker, long afterId, int limit, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+
+		while (true) {
+			long seenUpdates;
+			synchronized (updatesMonitor) {
+				seenUpdates = storedUpdates;
+			}
+
+			List<NodeUpdate> updates = getNodeUpdates(thisBroker, afterId, limit);
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (!updates.isEmpty() || remaining <= 0) {
+				return updates;
+			}
+
+			synchronized (updatesMonitor) {
+				if (storedUpdates == seenUpdates) {
+					updatesMonitor.wait(Math.min(remaining, CHECK_INTERVAL_MS));
+				}
+			}
+		}
+	}
 
 	@Override
-	public List<NodeUpdate> getNodeUpdates(int thisBroker, long fromTimestamp) {
+	public List<NodeUpdate> getNodeUpdates(int thisBroker, long afterId, int limit) {
 		List<NodeUpdate> updates = new ArrayList<>();
 
-		String sql = "SELECT type, path, timestamp, broker FROM node_updates " +
-				"WHERE " +
-				"timestamp >= ?  " +
-				"AND broker != ?";
+		String sql = "SELECT id, type, path, timestamp, broker FROM node_updates " +
+				"WHERE id > ? AND broker != ? ORDER BY id LIMIT ?";
 
-		try (Connection c = getConnection()) {
+		try (Connection c = getReadConnection()) {
 			try (PreparedStatement ps = prepareStatement(c, sql)) {
-
-				int i = 1;
-				ps.setLong(i++, fromTimestamp);
-				ps.setInt(i++, thisBroker);
+				ps.setLong(1, afterId);
+				ps.setInt(2, thisBroker);
+				ps.setInt(3, limit);
 
 				ResultSet rs = executeQuery(ps);
 				while (rs.next()) {
-					Watcher.Event.EventType type = Watcher.Event.EventType.valueOf(rs.getString("type"));
-					String path = rs.getString("path");
-					long timestamp = rs.getLong("timestamp");
-					int broker = rs.getInt("broker");
-
-					updates.add(new NodeUpdate(type, path, timestamp, broker));
+					NodeUpdate update = new NodeUpdate(Watcher.Event.EventType.valueOf(rs.getString("type")),
+							rs.getString("path"), rs.getLong("timestamp"), rs.getInt("broker"));
+					update.setId(rs.getLong("id"));
+					updates.add(update);
 				}
 			}
 		} catch (SQLException e) {
@@ -73,7 +160,6 @@ public class NodeUpdateDaoSqlite extends DatabaseConnection implements NodeUpdat
 		return updates;
 	}
 
-
 //	@Override
 //	public void clearProcessedUpdates(int ownerBroker, int toId) {
 //		String sql = "DELETE FROM node_updates WHERE  broker=? and id<=?";
@@ -91,15 +177,43 @@ public class NodeUpdateDaoSqlite extends DatabaseConnection implements NodeUpdat
 //		}
 //	}
 
+	/**
+	 * Deletes a range of ids: ids increase with the update timestamps, so all the updates older than toMs have
+	 * lower ids than the newest update older than toMs.
+	 */
 	@Override
-	public void clearOldUpdates(long toMs) {
-		String sql = "DELETE FROM node_updates WHERE timestamp<?";
+	public int clearOldUpdates(long toMs, long keepUpdates, long lastReadId, int limit) {
+		String lastIdSql = "SELECT IFNULL(MAX(id), 0) AS last_id FROM node_updates";
+		String oldIdSql = "SELECT id FROM node_updates WHERE timestamp < ? ORDER BY timestamp DESC, id DESC LIMIT 1";
+		String deleteSql = "DELETE FROM node_updates WHERE id IN (SELECT id FROM node_updates WHERE id <= ? ORDER BY id LIMIT ?)";
 
 		try (Connection c = getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement(sql)) {
+			long lastId;
+			try (PreparedStatement ps = prepareStatement(c, lastIdSql)) {
+				ResultSet rs = executeQuery(ps);
+				lastId = rs.next() ? rs.getLong("last_id") : 0;
+			}
+
+			long oldId = 0;
+			try (PreparedStatement ps = prepareStatement(c, oldIdSql)) {
 				ps.setLong(1, toMs);
+				ResultSet rs = executeQuery(ps);
+				if (rs.next()) {
+					oldId = rs.getLong("id");
+				}
+			}
+
+			// The latest update is kept, so ids of new updates keep increasing even if all the older updates are cleared
+			long toId = Math.min(Math.min(Math.max(oldId, lastId - keepUpdates), lastId - 1), lastReadId);
+			if (toId <= 0) {
+				return 0;
+			}
+
+			try (PreparedStatement ps = prepareStatement(c, deleteSql)) {
+				ps.setLong(1, toId);
+				ps.setInt(2, limit);
 
-				ps.executeUpdate();
+				return executeUpdate(ps);
 			}
 		} catch (SQLException e) {
 			throw new DataAccessException(e);
@@ -114,10 +228,16 @@ public class NodeUpdateDaoSqlite extends DatabaseConnection implements NodeUpdat
 				"`broker` integer,\n" +
 				"`timestamp`  long NOT NULL)";
 
+		// Updates are read by id ranges using the primary key, the timestamp index finds the updates to clear
+		String createTimestampIndex = "CREATE INDEX IF NOT EXISTS node_updates_timestamp ON node_updates(timestamp)";
+
 		try (Connection c = getConnection()) {
 			try (PreparedStatement ps = prepareStatement(c, createTable)) {
 				executeUpdate(ps);
 			}
+			try (PreparedStatement ps = prepareStatement(c, createTimestampIndex)) {
+				executeUpdate(ps);
+			}
 		} catch (Exception e) {
 			//
 		}
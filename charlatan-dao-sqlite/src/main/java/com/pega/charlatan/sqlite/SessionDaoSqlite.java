@@ -10,6 +10,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -33,24 +34,57 @@ public class SessionDaoSqlite extends DatabaseConnection implements SessionDao {
 		}
 	}
 
+	private static final String UPDATE_SESSION_SQL = "UPDATE sessions SET id=?,last_seen=?,timeout=? WHERE uuid=?";
+
 	@Override
 	public void updateSession(Session session) {
-		String sql = "UPDATE sessions SET id=?,last_seen=?,timeout=? WHERE uuid=?";
+		try (Connection c = getConnection()) {
+			try (PreparedStatement ps = prepareStatement(c, UPDATE_SESSION_SQL)) {
+				setSession(ps, session);
+				executeUpdate(ps);
+			}
+		} catch (SQLException e) {
+			throw new DataAccessException(e);
+		}
+	}
+
+	/**
+	 * Updates the sessions in a single transaction, so the whole batch costs one commit.
+	 */
+	@Override
+	public void updateSessions(Collection<Session> sessions) {
+		if (sessions.isEmpty()) {
+			return;
+		}
 
 		try (Connection c = getConnection()) {
-			try (PreparedStatement ps = prepareStatement(c, sql)) {
-				ps.setLong(1, session.getSessionId());
-				ps.setLong(2, session.getLastTimeSeen());
-				ps.setInt(3, session.getTimeout());
-				ps.setString(4, session.getUuid().toString());
+			c.setAutoCommit(false);
 
-				executeUpdate(ps);
+			try (PreparedStatement ps = prepareStatement(c, UPDATE_SESSION_SQL)) {
+				for (Session session : sessions) {
+					setSession(ps, session);
+					executeUpdate(ps);
+				}
+
+				c.commit();
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
+			} finally {
+				c.setAutoCommit(true);
 			}
 		} catch (SQLException e) {
 			throw new DataAccessException(e);
 		}
 	}
 
+	private void setSession(PreparedStatement ps, Session session) throws SQLException {
+		ps.setLong(1, session.getSessionId());
+		ps.setLong(2, session.getLastTimeSeen());
+		ps.setInt(3, session.getTimeout());
+		ps.setString(4, session.getUuid().toString());
+	}
+
 	@Override
 	public void deleteSession(UUID uuid) {
 		String sql = "DELETE FROM sessions WHERE uuid=?";
@@ -70,7 +104,7 @@ public class SessionDaoSqlite extends DatabaseConnection implements SessionDao {
 	public List<Session> getStaleSessions(long maxLastSeenTime) {
 		String sql = "SELECT uuid, id, timeout, last_seen, start_time FROM sessions WHERE last_seen < ?";
 
-		try (Connection c = getConnection()) {
+		try (Connection c = getReadConnection()) {
 			try (PreparedStatement ps = prepareStatement(c, sql)) {
 				ps.setLong(1, maxLastSeenTime);
 
@@ -18,12 +18,11 @@
 
 package com.pega.charlatan.server;
 
-import com.pega.charlatan.io.Serializable;
 import com.pega.charlatan.io.ZookeeperReader;
-import com.pega.charlatan.io.ZookeeperWriter;
 import com.pega.charlatan.node.service.NodeService;
 import com.pega.charlatan.server.io.*;
 import com.pega.charlatan.server.session.bean.Session;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
@@ -36,27 +35,31 @@ import org.jboss.netty.channel.ChannelFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.util.List;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Channel wrapper that keeps session specific information like: sessionId, session read timeout.
  * CharlatanNettyConnection handles read timeout that is set during the connect handshake.
+ * <p>
+ * Frames are read on the netty I/O thread, requests are executed by the connection request queue.
+ * Responses of the requests executed in one go are written to the channel together, watch events are gathered
+ * into bursts by the {@link ResponseEncoder}.
  */
 public class CharlatanNettyConnection implements Watcher {
 
 	public static final int DEFAULT_MAX_SESSION_TIMEOUT = 30000;
 
-	private static final Timer TIMER = new Timer();
 	private static final Logger logger = LoggerFactory.getLogger(CharlatanNettyConnection.class);
 	volatile boolean closingChannel;
 	private Channel channel;
+	// Executes connection requests one by one outside of the I/O thread
+	private final Executor requestQueue;
+	private final ResponseEncoder responseEncoder;
+	private final AtomicBoolean sessionClosed;
 
 	// Session information
 	private Session session;
@@ -64,14 +67,24 @@ public class CharlatanNettyConnection implements Watcher {
 	// True if connect request was processed
 	private boolean initialized;
 	// It is used to monitor read timeout
-	private TimerTask timerTask;
+	private final ExpiryQueue<CharlatanNettyConnection> sessionExpiryQueue;
 	private NodeService nodeService;
 
-	CharlatanNettyConnection(Channel channel, NodeService nodeService, Session session) {
+	CharlatanNettyConnection(Channel channel, NodeService nodeService, Session session, RequestProcessor requestProcessor,
+							 final ResponseEncoder responseEncoder, ExpiryQueue<CharlatanNettyConnection> sessionExpiryQueue) {
 		this.channel = channel;
 		this.closingChannel = false;
 		this.nodeService = nodeService;
 		this.session = session;
+		this.responseEncoder = responseEncoder;
+		this.requestQueue = requestProcessor.newRequestQueue(channel, new Runnable() {
+			@Override
+			public void run() {
+				responseEncoder.flush();
+			}
+		});
+		this.sessionClosed = new AtomicBoolean(false);
+		this.sessionExpiryQueue = sessionExpiryQueue;
 	}
 
 	public Session getSession() {
@@ -80,23 +93,23 @@ public class CharlatanNettyConnection implements Watcher {
 
 	public void receiveMessage(ChannelBuffer message) {
 		try {
-			while (message.readable()) {
-
-				session.setLastTimeSeen(System.currentTimeMillis());
+			session.setLastTimeSeen(System.currentTimeMillis());
+			touchSession();
 
+			while (message.readable()) {
 				// read message length
 				int length = message.readInt();
 
-				ByteBuffer bb = ByteBuffer.allocate(length);
-				message.readBytes(bb);
-				bb.flip();
+				// The frame is owned by this connection (frame decoder doesn't reuse it), so the slice stays valid
+				// until the request thread decodes it.
+				final ChannelBuffer frame = message.readSlice(length);
 
-				if (initialized) {
-					processPacket(bb);
-				} else {
-					processConnectRequest(bb);
-					initialized = true;
-				}
+				submit(new Runnable() {
+					@Override
+					public void run() {
+						processRequest(frame);
+					}
+				});
 			}
 		} catch (Exception e) {
 			logger.warn("Closing connection to " + channel.getRemoteAddress(), e);
@@ -104,11 +117,33 @@ public class CharlatanNettyConnection implements Watcher {
 		}
 	}
 
-	private void processConnectRequest(ByteBuffer bb) {
+	/**
+	 * Executes the task after all the requests received before it.
+	 *
+	 * @param task
+	 */
+	void submit(Runnable task) {
+		requestQueue.execute(task);
+	}
+
+	private void processRequest(ChannelBuffer frame) {
+		if (closingChannel) {
+			return;
+		}
+
+		if (initialized) {
+			processPacket(frame);
+		} else {
+			processConnectRequest(frame);
+			initialized = true;
+		}
+	}
+
+	private void processConnectRequest(ChannelBuffer frame) {
 
 		try {
 			ConnectRequest connectRequest = new ConnectRequest();
-			connectRequest.deserialize(new ZookeeperReader(new DataInputStream(new ByteArrayInputStream(bb.array()))));
+			connectRequest.deserialize(new ChannelBufferReader(frame));
 
 			long sessionId = connectRequest.getSessionId();
 
@@ -132,13 +167,13 @@ public class CharlatanNettyConnection implements Watcher {
 						password,
 						connectRequest.isReadOnly());
 
-				send(connectResponse);
+				responseEncoder.encode(connectResponse, connectResponse.estimateSize());
 				// notify client that the session isn't valid
 			} else {
 				ConnectResponse connectResponse = new ConnectResponse(0, 0, 0, // send 0 if session is no
 						new byte[16], false);
 
-				send(connectResponse);
+				responseEncoder.encode(connectResponse, connectResponse.estimateSize());
 				close();
 			}
 		} catch (Exception e) {
@@ -147,14 +182,14 @@ public class CharlatanNettyConnection implements Watcher {
 		}
 	}
 
-	private void processPacket(ByteBuffer bb) {
+	private void processPacket(ChannelBuffer frame) {
 		KeeperException.Code errCode = KeeperException.Code.OK;
 		Response response = null;
 		int transactionId = -1;
 		RequestType requestType = null;
 
 		try {
-			ZookeeperReader reader = new ZookeeperReader(new DataInputStream(new ByteArrayInputStream(bb.array())));
+			ZookeeperReader reader = new ChannelBufferReader(frame);
 
 			transactionId = reader.readInt();
 			int operationId = reader.readInt();
@@ -171,6 +206,9 @@ public class CharlatanNettyConnection implements Watcher {
 				case SetWatches:
 					response = processSetWatches(reader);
 					break;
+				case AddWatch:
+					response = processAddWatchRequest(reader);
+					break;
 				case Ping:
 					response = processPingRequest();
 					break;
@@ -192,6 +230,9 @@ public class CharlatanNettyConnection implements Watcher {
 				case Delete:
 					response = processDeleteRequest(reader);
 					break;
+				case Multi:
+					response = processMultiRequest(reader);
+					break;
 				case CloseSession:
 					response = processCloseSession();
 					break;
@@ -214,7 +255,7 @@ public class CharlatanNettyConnection implements Watcher {
 		response.setErrorCode(errCode.intValue());
 
 		try {
-			send(response);
+			responseEncoder.encode(response);
 		} catch (IOException e) {
 			logger.error("Unable to send the response", e);
 		}
@@ -229,17 +270,12 @@ public class CharlatanNettyConnection implements Watcher {
 
 		closingChannel = true;
 
-		try {
-			if (timerTask != null) {
-				timerTask.cancel();
-			}
-		}
-		catch( Exception e ){
-			logger.warn(e.getMessage());
-		}
+		sessionExpiryQueue.remove(this);
 
 		try {
 			if (channel.isOpen()) {
+				// Responses that are already encoded go out before the channel is closed
+				responseEncoder.flush();
 				channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
 			}
 		}
@@ -247,7 +283,15 @@ public class CharlatanNettyConnection implements Watcher {
 			logger.warn(e.getMessage());
 		}
 
-		nodeService.close(session.getSessionId());
+		if (sessionClosed.compareAndSet(false, true)) {
+			// Removing session nodes is executed by the request queue, after requests that are already received
+			submit(new Runnable() {
+				@Override
+				public void run() {
+					nodeService.close(session.getSessionId(), CharlatanNettyConnection.this);
+				}
+			});
+		}
 	}
 
 	private Response processPingRequest() {
@@ -264,6 +308,15 @@ public class CharlatanNettyConnection implements Watcher {
 		return new Response();
 	}
 
+	private Response processAddWatchRequest(ZookeeperReader reader) throws IOException, KeeperException {
+		AddWatchRequest addWatchRequest = new AddWatchRequest();
+		addWatchRequest.deserialize(reader);
+
+		logger.debug(addWatchRequest.toString());
+		nodeService.addWatch(addWatchRequest.getPath(), this, AddWatchMode.fromMode(addWatchRequest.getMode()));
+		return new Response();
+	}
+
 	private Response processExistsRequest(ZookeeperReader reader) throws IOException, KeeperException.NoNodeException {
 		ExistRequest existRequest = new ExistRequest();
 		existRequest.deserialize(reader);
@@ -329,9 +382,19 @@ public class CharlatanNettyConnection implements Watcher {
 		return new Response();
 	}
 
+	private Response processMultiRequest(ZookeeperReader reader) throws IOException {
+		MultiRequest multiRequest = new MultiRequest();
+		multiRequest.deserialize(reader);
+		logger.debug(multiRequest.toString());
+		// Failed ops are reported in the results, the reply itself has no error
+		return new MultiResponse(nodeService.multi(session.getSessionId(), multiRequest.getOps()));
+	}
 
 	private Response processCloseSession() {
-		nodeService.close(session.getSessionId());
+		// Session nodes are removed before the reply, so the client never sees its own ephemerals after closing
+		if (sessionClosed.compareAndSet(false, true)) {
+			nodeService.close(session.getSessionId(), this);
+		}
 		return new Response();
 	}
 
@@ -347,49 +410,33 @@ public class CharlatanNettyConnection implements Watcher {
 			if (closingChannel || !channel.isOpen()) {
 				return;
 			}
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			e.serialize(new ZookeeperWriter(new DataOutputStream(baos)));
-
-			ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
-			buffer.putInt(buffer.remaining() - 4).rewind();
-
-			channel.write(wrappedBuffer(buffer));
+			responseEncoder.encodeEvent(e);
 		} catch (IOException e1) {
 			close();
 		}
 	}
 
-	private void send(Serializable response) throws IOException {
-
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		response.serialize(new ZookeeperWriter(new DataOutputStream(baos)));
-
-		ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
-		buffer.putInt(buffer.remaining() - 4).rewind();
-
-		channel.write(wrappedBuffer(buffer));
-	}
-
 	private void setTimeout(int timeout) {
 		session.setTimeout(Math.min(timeout, DEFAULT_MAX_SESSION_TIMEOUT));
 
 		//start checking the timeout
-		if (timerTask == null && session.getTimeout() > 0 && !closingChannel) {
-			timerTask = new TimerTask() {
-				@Override
-				public void run() {
-					try {
-						if ((session.getLastTimeSeen() + session.getTimeout()) < System.currentTimeMillis()) {
-							logger.info("Read timeout on " + channel.getRemoteAddress());
-							close();
-						}
-					} catch (Exception e) {
-						logger.error("Unable to check session timeout", e);
-					}
-				}
-			};
-			TIMER.schedule(timerTask, timeout, 1000);
+		touchSession();
+	}
+
+	/**
+	 * Postpones the session expiration, the connection is closed by the server if it isn't touched within the timeout.
+	 */
+	private void touchSession() {
+		if (session.getTimeout() > 0 && !closingChannel) {
+			sessionExpiryQueue.update(this, session.getTimeout());
 		}
 	}
-}
 
+	/**
+	 * Called by the server when the session has not been touched within its timeout.
+	 */
+	void expire() {
+		logger.info("Read timeout on " + channel.getRemoteAddress());
+		close();
+	}
+}
@@ -1,10 +1,11 @@
 package com.pega.charlatan.server;
 
+import com.pega.charlatan.node.dao.CachingNodeDao;
 import com.pega.charlatan.node.dao.NodeDao;
 import com.pega.charlatan.node.service.NodeService;
 import com.pega.charlatan.node.service.NodeServiceImpl;
 import com.pega.charlatan.server.session.bean.Session;
-import com.pega.charlatan.server.session.service.SessionService;
+import com.pega.charlatan.server.session.service.WriteBehindSessionService;
 import com.pega.charlatan.watches.service.WatchService;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -18,10 +19,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
@@ -30,6 +32,12 @@ import java.util.concurrent.TimeUnit;
 public class CharlatanNettyServer {
 
 	public static final int DEFAULT_MAX_SESSION_TIMEOUT = 60000;
+	public static final int DEFAULT_MAX_PENDING_REQUESTS = 1000;
+	public static final int DEFAULT_WATCH_BATCH_SIZE = 64;
+	public static final long DEFAULT_WATCH_BATCH_DELAY = 5;
+	public static final long DEFAULT_NODE_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+	// Granularity of the session expiration
+	public static final int SESSION_EXPIRY_INTERVAL = 1000;
 	private static final Logger logger = LoggerFactory.getLogger(CharlatanNettyServer.class);
 	private final String host;
 	private final int port;
@@ -48,14 +56,26 @@ public class CharlatanNettyServer {
 	private NodeDao nodeDao;
 	private WatchService watchService;
 
-	private SessionService sessionService;
+	// Session heartbeats are written in batches, several times within the session timeout
+	private WriteBehindSessionService sessionService;
 	private ScheduledExecutorService sessionMonitorService;
+	private final long sessionFlushInterval;
 
 	private ThreadFactory threadFactory;
 	private int workerCount;
+	private RequestProcessor requestProcessor;
+
+	// Flushes watch events gathered by the connections
+	private ScheduledExecutorService watchFlushService;
+	private final int watchBatchSize;
+	private final long watchBatchDelay;
 
 	private Map<UUID, CharlatanNettyConnection> sessions;
 
+	// Connections by the expiration time of their sessions
+	private final ExpiryQueue<CharlatanNettyConnection> sessionExpiryQueue;
+	private ExecutorService sessionExpiryService;
+
 	CharlatanNettyServer(CharlatanServerBuilder builder) {
 		this.host = builder.getHost();
 		this.port = builder.getPort();
@@ -64,6 +84,14 @@ public class CharlatanNettyServer {
 		this.watchService = builder.getNodeUpdateDao();
 		this.id = builder.getId();
 
+		if (builder.getNodeCacheSize() > 0) {
+			long maxBytes = builder.getNodeCacheMaxBytes() > 0 ? builder.getNodeCacheMaxBytes() : DEFAULT_NODE_CACHE_MAX_BYTES;
+			CachingNodeDao cachingNodeDao = new CachingNodeDao(nodeDao, builder.getNodeCacheSize(), maxBytes);
+			// Nodes changed by other servers are invalidated when their updates are received
+			watchService.addNodeUpdateListener(cachingNodeDao);
+			this.nodeDao = cachingNodeDao;
+		}
+
 		if (builder.getMaxSessionTimeout() > 0) {
 			this.maxSessionTimeout = builder.getMaxSessionTimeout();
 		} else {
@@ -73,9 +101,20 @@ public class CharlatanNettyServer {
 		this.threadFactory = builder.getThreadFactory();
 		this.workerCount = builder.getWorkerCount();
 
-		this.sessions = new HashMap<>();
-		this.sessionService = builder.getSessionService();
+		int requestThreadCount = builder.getRequestThreadCount() > 0 ? builder.getRequestThreadCount() : Runtime.getRuntime().availableProcessors() * 2;
+		int maxPendingRequests = builder.getMaxPendingRequests() > 0 ? builder.getMaxPendingRequests() : DEFAULT_MAX_PENDING_REQUESTS;
+		this.requestProcessor = new RequestProcessor(requestThreadCount, maxPendingRequests, threadFactory);
+
+		this.watchBatchSize = builder.getWatchBatchSize() > 0 ? builder.getWatchBatchSize() : DEFAULT_WATCH_BATCH_SIZE;
+		this.watchBatchDelay = builder.getWatchBatchDelay() > 0 ? builder.getWatchBatchDelay() : DEFAULT_WATCH_BATCH_DELAY;
+		this.watchFlushService = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+		this.sessions = new ConcurrentHashMap<>();
+		this.sessionService = new WriteBehindSessionService(builder.getSessionService());
+		this.sessionFlushInterval = Math.max(maxSessionTimeout / 4, 1);
 		this.sessionMonitorService = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		this.sessionExpiryQueue = new ExpiryQueue<>(SESSION_EXPIRY_INTERVAL);
+		this.sessionExpiryService = Executors.newSingleThreadExecutor(threadFactory);
 
 		bootstrap = new ServerBootstrap(
 				new NioServerSocketChannelFactory(
@@ -105,6 +144,14 @@ public class CharlatanNettyServer {
 
 			invalidateStaleSessions();
 
+			sessionExpiryService.submit(new Runnable() {
+				@Override
+				public void run() {
+					expireSessions();
+				}
+			});
+
+			// Sessions of the servers that stopped without closing them
 			sessionMonitorService.scheduleAtFixedRate(new Runnable() {
 				@Override
 				public void run() {
@@ -112,6 +159,13 @@ public class CharlatanNettyServer {
 				}
 			}, maxSessionTimeout / 2, maxSessionTimeout / 2, TimeUnit.MILLISECONDS);
 
+			sessionMonitorService.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushSessions();
+				}
+			}, sessionFlushInterval, sessionFlushInterval, TimeUnit.MILLISECONDS);
+
 			InetSocketAddress address = new InetSocketAddress(host, port);
 			channel = bootstrap.bind(address);
 
@@ -133,6 +187,10 @@ public class CharlatanNettyServer {
 			}
 
 			sessionMonitorService.shutdown();
+			sessionExpiryService.shutdownNow();
+			requestProcessor.shutdown();
+			watchFlushService.shutdown();
+			flushSessions();
 		} finally {
 			channel = null;
 			if (closeFuture != null) {
@@ -146,6 +204,39 @@ public class CharlatanNettyServer {
 		return channel != null && channel.isOpen() && channel.isBound();
 	}
 
+	/**
+	 * Closes connections of the expired sessions, until the thread is interrupted.
+	 */
+	private void expireSessions() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long waitTime = sessionExpiryQueue.getWaitTime();
+				if (waitTime > 0) {
+					Thread.sleep(waitTime);
+					continue;
+				}
+
+				for (CharlatanNettyConnection connection : sessionExpiryQueue.poll()) {
+					try {
+						connection.expire();
+					} catch (Throwable e) {
+						logger.warn("Failed to expire session " + connection.getSession(), e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// server is stopped
+		}
+	}
+
+	private void flushSessions() {
+		try {
+			sessionService.flush();
+		} catch (Throwable e) {
+			logger.warn("Failed to update sessions", e);
+		}
+	}
+
 	private void invalidateStaleSessions() {
 		try {
 			List<Session> staleSessions = sessionService.getStaleSessions(System.currentTimeMillis() - maxSessionTimeout );
@@ -198,11 +289,18 @@ public class CharlatanNettyServer {
 									 ChannelStateEvent e) throws Exception {
 
 			Session session = new Session(UUID.randomUUID(), System.currentTimeMillis());
-			CharlatanNettyConnection cnxn = new CharlatanNettyConnection(ctx.getChannel(), nodeService, session);
+			ResponseEncoder responseEncoder = new ResponseEncoder(ctx.getChannel(), watchFlushService, watchBatchSize, watchBatchDelay);
+			final CharlatanNettyConnection cnxn = new CharlatanNettyConnection(ctx.getChannel(), nodeService, session,
+					requestProcessor, responseEncoder, sessionExpiryQueue);
 			ctx.setAttachment(cnxn);
 
 			sessions.put(session.getUuid(), cnxn);
-			sessionService.registerSession(id, session);
+			cnxn.submit(new Runnable() {
+				@Override
+				public void run() {
+					sessionService.registerSession(id, cnxn.getSession());
+				}
+			});
 
 			logger.debug("Connected " + ctx.getChannel().getRemoteAddress());
 		}
@@ -212,13 +310,18 @@ public class CharlatanNettyServer {
 										ChannelStateEvent e) throws Exception {
 			CharlatanNettyConnection cnxn = (CharlatanNettyConnection) ctx.getAttachment();
 			if (cnxn != null) {
-				Session session = cnxn.getSession();
+				final Session session = cnxn.getSession();
 
 				logger.debug("Cleaning session connection " + session);
 				cnxn.close();
 
-				logger.debug("Deleting session info " + session);
-				sessionService.deleteSession(session.getUuid());
+				cnxn.submit(new Runnable() {
+					@Override
+					public void run() {
+						logger.debug("Deleting session info " + session);
+						sessionService.deleteSession(session.getUuid());
+					}
+				});
 
 				sessions.remove(session.getUuid());
 			}
@@ -249,19 +352,17 @@ public class CharlatanNettyServer {
 		@Override
 		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
 				throws Exception {
-			try {
-				CharlatanNettyConnection connection = (CharlatanNettyConnection) ctx.getAttachment();
-				synchronized (connection) {
-					processMessage(e, connection);
-				}
-			} catch (Exception ex) {
-				throw ex;
-			}
+			CharlatanNettyConnection connection = (CharlatanNettyConnection) ctx.getAttachment();
+			processMessage(e, connection);
 		}
 
+		/**
+		 * Runs on the I/O thread: frames are handed to the connection request queue, DAO work is done by request threads.
+		 */
 		private void processMessage(MessageEvent e, CharlatanNettyConnection cnxn) {
 			ChannelBuffer buf = (ChannelBuffer) e.getMessage();
 			cnxn.receiveMessage(buf);
+			// Only marks the session, the heartbeat is written by the next flush
 			sessionService.updateSession(cnxn.getSession());
 		}
 	}
@@ -14,6 +14,12 @@ public class CharlatanServerBuilder {
 	private boolean secure;
 	private ThreadFactory threadFactory;
 	private int workerCount;
+	private int requestThreadCount;
+	private int maxPendingRequests;
+	private int watchBatchSize;
+	private long watchBatchDelay;
+	private int nodeCacheSize;
+	private long nodeCacheMaxBytes;
 	private NodeDao nodeDao;
 	private WatchService watchService;
 	private SessionService sessionService;
@@ -111,6 +117,82 @@ public class CharlatanServerBuilder {
 		return this;
 	}
 
+	public int getRequestThreadCount() {
+		return requestThreadCount;
+	}
+
+	/**
+	 * Number of threads that execute client requests. Netty workers only read and write the channels.
+	 * If not set, twice the number of available processors is used.
+	 */
+	public CharlatanServerBuilder setRequestThreadCount(int requestThreadCount) {
+		this.requestThreadCount = requestThreadCount;
+		return this;
+	}
+
+	public int getMaxPendingRequests() {
+		return maxPendingRequests;
+	}
+
+	/**
+	 * Number of received requests of a single connection waiting for execution after which the server
+	 * stops reading from that connection until the backlog is processed.
+	 */
+	public CharlatanServerBuilder setMaxPendingRequests(int maxPendingRequests) {
+		this.maxPendingRequests = maxPendingRequests;
+		return this;
+	}
+
+	public int getWatchBatchSize() {
+		return watchBatchSize;
+	}
+
+	/**
+	 * Number of watch events of a single connection after which they are written to the channel without waiting
+	 * for the batch delay.
+	 */
+	public CharlatanServerBuilder setWatchBatchSize(int watchBatchSize) {
+		this.watchBatchSize = watchBatchSize;
+		return this;
+	}
+
+	public long getWatchBatchDelay() {
+		return watchBatchDelay;
+	}
+
+	/**
+	 * Maximum time in milliseconds a watch event waits for other events of the same connection before being
+	 * written to the channel.
+	 */
+	public CharlatanServerBuilder setWatchBatchDelay(long watchBatchDelay) {
+		this.watchBatchDelay = watchBatchDelay;
+		return this;
+	}
+
+	public int getNodeCacheSize() {
+		return nodeCacheSize;
+	}
+
+	/**
+	 * Maximum number of nodes kept in memory in front of the node dao. Node cache is disabled if not set.
+	 */
+	public CharlatanServerBuilder setNodeCacheSize(int nodeCacheSize) {
+		this.nodeCacheSize = nodeCacheSize;
+		return this;
+	}
+
+	public long getNodeCacheMaxBytes() {
+		return nodeCacheMaxBytes;
+	}
+
+	/**
+	 * Maximum approximate memory used by the node cache in bytes.
+	 */
+	public CharlatanServerBuilder setNodeCacheMaxBytes(long nodeCacheMaxBytes) {
+		this.nodeCacheMaxBytes = nodeCacheMaxBytes;
+		return this;
+	}
+
 	public CharlatanNettyServer build() {
 		if (host == null) {
 			throw new IllegalStateException("Charlatan host is not set");
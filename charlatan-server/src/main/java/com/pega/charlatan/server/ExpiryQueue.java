@@ -0,0 +1,130 @@
+package com.pega.charlatan.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks elements that expire after a timeout, like ZooKeeper ExpiryQueue.
+ * <p>
+ * Expiration times are rounded up to the expiration interval, so the elements that expire within the same interval
+ * share a bucket. Updating an element moves it between buckets, expiring takes a whole bucket, so the cost of an
+ * interval doesn't depend on the number of tracked elements.
+ *
+ * @param <E> expiring element
+ */
+class ExpiryQueue<E> {
+
+	private final ConcurrentMap<E, Long> elemMap = new ConcurrentHashMap<>();
+	// Elements by their expiration time, the time is always a multiple of the expiration interval
+	private final ConcurrentMap<Long, Set<E>> expiryMap = new ConcurrentHashMap<>();
+	private final AtomicLong nextExpirationTime = new AtomicLong();
+	private final int expirationInterval;
+
+	/**
+	 * @param expirationInterval bucket size in milliseconds
+	 */
+	ExpiryQueue(int expirationInterval) {
+		this.expirationInterval = expirationInterval;
+		nextExpirationTime.set(roundToNextInterval(now()));
+	}
+
+	/**
+	 * Stops tracking the element.
+	 *
+	 * @return expiration time of the element, null if the element was not tracked
+	 */
+	Long remove(E elem) {
+		Long expiryTime = elemMap.remove(elem);
+		if (expiryTime != null) {
+			Set<E> set = expiryMap.get(expiryTime);
+			if (set != null) {
+				set.remove(elem);
+			}
+		}
+		return expiryTime;
+	}
+
+	/**
+	 * Adds or moves the element, so it expires after the timeout.
+	 *
+	 * @param elem    element
+	 * @param timeout timeout in milliseconds
+	 * @return new expiration time, null if the element stays in the same bucket
+	 */
+	Long update(E elem, int timeout) {
+		Long prevExpiryTime = elemMap.get(elem);
+		Long newExpiryTime = roundToNextInterval(now() + timeout);
+
+		if (newExpiryTime.equals(prevExpiryTime)) {
+			return null;
+		}
+
+		Set<E> set = expiryMap.get(newExpiryTime);
+		if (set == null) {
+			Set<E> newSet = Collections.newSetFromMap(new ConcurrentHashMap<E, Boolean>());
+			set = expiryMap.putIfAbsent(newExpiryTime, newSet);
+			if (set == null) {
+				set = newSet;
+			}
+		}
+		set.add(elem);
+
+		prevExpiryTime = elemMap.put(elem, newExpiryTime);
+		if (prevExpiryTime != null && !newExpiryTime.equals(prevExpiryTime)) {
+			Set<E> prevSet = expiryMap.get(prevExpiryTime);
+			if (prevSet != null) {
+				prevSet.remove(elem);
+			}
+		}
+		return newExpiryTime;
+	}
+
+	/**
+	 * @return milliseconds until the next bucket expires
+	 */
+	long getWaitTime() {
+		long now = now();
+		long expirationTime = nextExpirationTime.get();
+		return now < expirationTime ? (expirationTime - now) : 0L;
+	}
+
+	/**
+	 * Removes the next bucket if it has expired.
+	 *
+	 * @return expired elements, empty set if the next bucket has not expired yet
+	 */
+	Set<E> poll() {
+		long now = now();
+		long expirationTime = nextExpirationTime.get();
+		if (now < expirationTime) {
+			return Collections.emptySet();
+		}
+
+		Set<E> set = null;
+		if (nextExpirationTime.compareAndSet(expirationTime, expirationTime + expirationInterval)) {
+			set = expiryMap.remove(expirationTime);
+		}
+		if (set == null) {
+			return Collections.emptySet();
+		}
+
+		for (E elem : set) {
+			elemMap.remove(elem, expirationTime);
+		}
+		return set;
+	}
+
+	private long roundToNextInterval(long time) {
+		return (time / expirationInterval + 1) * expirationInterval;
+	}
+
+	/**
+	 * Monotonic time in milliseconds, not affected by the wall clock changes.
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
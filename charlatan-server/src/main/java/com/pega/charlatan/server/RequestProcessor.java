@@ -0,0 +1,184 @@
+package com.pega.charlatan.server;
+
+import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes connection requests on a bounded pool of request threads, so slow NodeService/DAO calls never block
+ * the netty I/O workers.
+ * <p>
+ * Requests of the same connection are executed one by one in the order they were received, so responses are sent
+ * in xid order as the Zookeeper protocol requires. Requests of different connections are executed in parallel.
+ */
+public class RequestProcessor {
+
+	private static final Logger logger = LoggerFactory.getLogger(RequestProcessor.class);
+
+	// Number of requests a connection may execute before giving the request thread to other connections
+	private static final int MAX_REQUESTS_PER_RUN = 32;
+
+	private final ThreadPoolExecutor executor;
+	private final int maxPendingRequests;
+
+	/**
+	 * @param threadCount        number of request threads
+	 * @param maxPendingRequests number of received but not yet executed requests of a single connection after which
+	 *                           reading from the connection channel is suspended
+	 * @param threadFactory      request threads factory
+	 */
+	public RequestProcessor(int threadCount, int maxPendingRequests, ThreadFactory threadFactory) {
+		this.maxPendingRequests = maxPendingRequests;
+		// The pool queue never holds more than one task per connection, the connection queues are bounded by maxPendingRequests
+		this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), threadFactory);
+	}
+
+	/**
+	 * Creates the request queue of a new connection.
+	 *
+	 * @param channel         connection channel, its reading is suspended while the queue is full
+	 * @param drainedCallback executed by the request thread every time it stops executing the connection requests,
+	 *                        used to flush the responses written by the executed requests in one go
+	 * @return
+	 */
+	public RequestQueue newRequestQueue(Channel channel, Runnable drainedCallback) {
+		return new RequestQueue(channel, drainedCallback);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Serial executor of the connection requests.
+	 */
+	public class RequestQueue implements Executor, Runnable {
+
+		private final Channel channel;
+		private final Runnable drainedCallback;
+		private final Queue<Runnable> requests;
+
+		// True if queue is submitted to the request threads
+		private boolean scheduled;
+		// True if reading from the channel was suspended because the queue is full
+		private boolean suspended;
+
+		RequestQueue(Channel channel, Runnable drainedCallback) {
+			this.channel = channel;
+			this.drainedCallback = drainedCallback;
+			this.requests = new ArrayDeque<>();
+		}
+
+		@Override
+		public void execute(Runnable request) {
+			boolean schedule;
+
+			synchronized (this) {
+				requests.add(request);
+
+				schedule = !scheduled;
+				scheduled = true;
+
+				if (!suspended && requests.size() >= maxPendingRequests) {
+					suspended = true;
+					channel.setReadable(false);
+				}
+			}
+
+			if (schedule) {
+				schedule();
+			}
+		}
+
+		@Override
+		public void run() {
+			boolean drained = false;
+
+			try {
+				for (int i = 0; i < MAX_REQUESTS_PER_RUN; i++) {
+					Runnable request = poll();
+					if (request == null) {
+						drained = true;
+						break;
+					}
+
+					try {
+						request.run();
+					} catch (Throwable e) {
+						logger.error("Unable to process request", e);
+					}
+				}
+			} finally {
+				drained();
+			}
+
+			if (drained) {
+				return;
+			}
+
+			// Connection still has requests, let other connections run before continuing
+			synchronized (this) {
+				if (requests.isEmpty()) {
+					scheduled = false;
+					return;
+				}
+			}
+			schedule();
+		}
+
+		/**
+		 * Submits the queue to the request threads. Once the processor is shut down, the pending requests are
+		 * dropped and the connection is closed instead.
+		 */
+		private void schedule() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				logger.debug("Request processor is shut down, closing connection to " + channel.getRemoteAddress());
+
+				synchronized (this) {
+					requests.clear();
+					scheduled = false;
+				}
+				channel.close();
+			}
+		}
+
+		private void drained() {
+			if (drainedCallback == null) {
+				return;
+			}
+
+			try {
+				drainedCallback.run();
+			} catch (Throwable e) {
+				logger.error("Unable to complete request batch", e);
+			}
+		}
+
+		private synchronized Runnable poll() {
+			Runnable request = requests.poll();
+
+			if (request == null) {
+				scheduled = false;
+			}
+
+			if (suspended && requests.size() <= maxPendingRequests / 2) {
+				suspended = false;
+				channel.setReadable(true);
+			}
+
+			return request;
+		}
+	}
+}
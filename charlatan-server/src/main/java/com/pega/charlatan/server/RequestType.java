@@ -15,8 +15,11 @@ public enum RequestType {
 	GetChildren(8),
 	Ping(11),
 	GetChildren2(12),
+	Check(13),
+	Multi(14),
 	Create2(15),
 	SetWatches(101),
+	AddWatch(106),
 	CloseSession(-11);
 
 	private static Map<Integer, RequestType> requestMap = new HashMap<>();
@@ -0,0 +1,151 @@
+package com.pega.charlatan.server;
+
+import com.pega.charlatan.io.Serializable;
+import com.pega.charlatan.server.io.ChannelBufferWriter;
+import com.pega.charlatan.server.io.Response;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serializes the connection responses straight into a channel buffer, without intermediate byte arrays.
+ * <p>
+ * Responses are accumulated until {@link #flush()} is called, so all the responses of a request batch go out in
+ * a single channel write. Once the write completes the buffer is reused for the next batch.
+ * <p>
+ * Watch events are not bound to a request batch: a burst of events is flushed either when maxEventBatchSize events
+ * are pending or maxEventDelay milliseconds after the first pending event, whichever comes first.
+ * <p>
+ * Request threads, the flush service and a full event batch can flush concurrently. The buffer is passed to the
+ * channel under the encoder lock, so the buffers are written in the order their responses were encoded.
+ */
+class ResponseEncoder {
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	// Buffers grown above this size are released after the write instead of being kept by an idle connection
+	private static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
+
+	private final Channel channel;
+	private final ScheduledExecutorService flushService;
+	private final int maxEventBatchSize;
+	private final long maxEventDelay;
+	private final Runnable delayedFlush;
+
+	// Number of events encoded since the last flush
+	private int pendingEvents;
+	// True if delayed flush is scheduled
+	private boolean flushScheduled;
+
+	// Buffer the responses are encoded into, null if nothing is encoded since the last flush
+	private ChannelBuffer buffer;
+	// Buffer of the completed write that can be reused. Not guarded by the encoder lock: the write listener may run on
+	// the I/O thread while another thread holds the lock and waits for the channel
+	private final AtomicReference<ChannelBuffer> spare = new AtomicReference<>();
+
+	/**
+	 * @param channel           connection channel
+	 * @param flushService      executes delayed flushes of watch events
+	 * @param maxEventBatchSize number of pending watch events that are flushed without waiting
+	 * @param maxEventDelay     maximum time in milliseconds a watch event waits for the flush
+	 */
+	ResponseEncoder(Channel channel, ScheduledExecutorService flushService, int maxEventBatchSize, long maxEventDelay) {
+		this.channel = channel;
+		this.flushService = flushService;
+		this.maxEventBatchSize = maxEventBatchSize;
+		this.maxEventDelay = maxEventDelay;
+		this.delayedFlush = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ResponseEncoder.this) {
+					flushScheduled = false;
+					flush();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Appends the response to the pending buffer and fills in its length prefix.
+	 *
+	 * @param response    response with a 4 bytes length place holder at the beginning
+	 * @param sizeHint    expected serialized size of the response
+	 * @throws IOException
+	 */
+	synchronized void encode(Serializable response, int sizeHint) throws IOException {
+		if (buffer == null) {
+			ChannelBuffer reused = spare.getAndSet(null);
+			buffer = reused != null ? reused : ChannelBuffers.dynamicBuffer(Math.max(INITIAL_BUFFER_SIZE, sizeHint));
+		}
+
+		int start = buffer.writerIndex();
+		buffer.ensureWritableBytes(sizeHint);
+
+		try {
+			response.serialize(new ChannelBufferWriter(buffer));
+		} catch (IOException | RuntimeException e) {
+			// Drop the partially written response
+			buffer.writerIndex(start);
+			throw e;
+		}
+
+		buffer.setInt(start, buffer.writerIndex() - start - 4);
+	}
+
+	void encode(Response response) throws IOException {
+		encode(response, response.estimateSize());
+	}
+
+	/**
+	 * Encodes the watch event, flushing it together with the other events of the same burst.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	synchronized void encodeEvent(Response event) throws IOException {
+		encode(event, event.estimateSize());
+		pendingEvents++;
+
+		// Flushed under the same lock as the event was encoded, so no response encoded later can be written first
+		if (pendingEvents >= maxEventBatchSize) {
+			flush();
+		} else if (!flushScheduled) {
+			try {
+				flushService.schedule(delayedFlush, maxEventDelay, TimeUnit.MILLISECONDS);
+				flushScheduled = true;
+			} catch (RuntimeException e) {
+				// Flush service is stopped, don't hold the event back
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Writes all the encoded responses and events to the channel.
+	 */
+	synchronized void flush() {
+		pendingEvents = 0;
+		if (buffer == null || !buffer.readable()) {
+			return;
+		}
+		final ChannelBuffer out = buffer;
+		buffer = null;
+
+		// Written under the lock, a concurrent flush can't pass a later buffer to the channel first
+		channel.write(out).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (out.capacity() <= MAX_REUSED_BUFFER_SIZE) {
+					out.clear();
+					spare.set(out);
+				}
+			}
+		});
+	}
+}
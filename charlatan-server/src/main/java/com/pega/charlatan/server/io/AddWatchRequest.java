@@ -0,0 +1,41 @@
+package com.pega.charlatan.server.io;
+
+import com.pega.charlatan.io.Deserializable;
+import com.pega.charlatan.io.ZookeeperReader;
+
+import java.io.IOException;
+
+public class AddWatchRequest implements Deserializable {
+	private String path;
+	private int mode;
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * Watch mode, see {@link org.apache.zookeeper.AddWatchMode#getMode()}
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	public void setMode(int mode) {
+		this.mode = mode;
+	}
+
+	@Override
+	public void deserialize(ZookeeperReader reader) throws IOException {
+		path = reader.readString();
+		mode = reader.readInt();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("AddWatch: %s, mode: %d", path, mode);
+	}
+}
@@ -0,0 +1,74 @@
+package com.pega.charlatan.server.io;
+
+import com.pega.charlatan.io.ZookeeperReader;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ZookeeperReader that decodes the request in place from the netty buffer,
+ * without copying the frame into an array or wrapping it into streams.
+ */
+public class ChannelBufferReader extends ZookeeperReader {
+
+	private final ChannelBuffer buffer;
+
+	public ChannelBufferReader(ChannelBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public String readString() throws IOException {
+		int length = readInt();
+
+		if (length > -1) {
+			ensureReadable(length);
+
+			String s;
+			int index = buffer.readerIndex();
+			if (buffer.hasArray()) {
+				s = new String(buffer.array(), buffer.arrayOffset() + index, length, StandardCharsets.UTF_8);
+			} else {
+				s = buffer.toString(index, length, StandardCharsets.UTF_8);
+			}
+			buffer.skipBytes(length);
+			return s;
+		}
+
+		return null;
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		ensureReadable(8);
+		return buffer.readLong();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		ensureReadable(4);
+		return buffer.readInt();
+	}
+
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		ensureReadable(b.length);
+		buffer.readBytes(b);
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		ensureReadable(1);
+		return buffer.readByte() != 0;
+	}
+
+	@Override
+	protected void ensureReadable(long length) throws IOException {
+		super.ensureReadable(length);
+		if (buffer.readableBytes() < length) {
+			throw new EOFException(String.format("Expected %d bytes but only %d are available", length, buffer.readableBytes()));
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.pega.charlatan.server.io;
+
+import com.pega.charlatan.io.ZookeeperWriter;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+
+/**
+ * ZookeeperWriter that encodes the response straight into the netty buffer.
+ */
+public class ChannelBufferWriter extends ZookeeperWriter {
+
+	private final ChannelBuffer buffer;
+
+	public ChannelBufferWriter(ChannelBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void writeInt(int i) throws IOException {
+		buffer.writeInt(i);
+	}
+
+	@Override
+	public void writeLong(long l) throws IOException {
+		buffer.writeLong(l);
+	}
+
+	@Override
+	public void write(byte[] bytes) throws IOException {
+		buffer.writeBytes(bytes);
+	}
+
+	@Override
+	public void write(byte[] bytes, int off, int length) throws IOException {
+		buffer.writeBytes(bytes, off, length);
+	}
+
+	@Override
+	public void writeBoolean(boolean b) throws IOException {
+		buffer.writeByte(b ? 1 : 0);
+	}
+}
@@ -60,6 +60,13 @@ public class ConnectResponse implements Serializable {
 		this.readOnly = readOnly;
 	}
 
+	/**
+	 * Expected size of the serialized response, used to size the output buffer up front.
+	 */
+	public int estimateSize() {
+		return 29 + (password != null ? password.length : 0);
+	}
+
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		writer.writeInt(0); //place holder for size
 		writer.writeInt(protocolVersion); //4 bytes
@@ -16,6 +16,11 @@ public class CreateResponse extends Response {
 	}
 
 
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + 4 + (path != null ? path.length() : 0);
+	}
+
 	@Override
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		super.serialize(writer);
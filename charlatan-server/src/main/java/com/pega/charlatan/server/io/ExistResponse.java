@@ -12,6 +12,11 @@ public class ExistResponse extends Response{
 		this.stat = stat;
 	}
 
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + STAT_SIZE;
+	}
+
 	@Override
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		super.serialize(writer);
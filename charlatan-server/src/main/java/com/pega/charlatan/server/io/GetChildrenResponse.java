@@ -13,6 +13,17 @@ public class GetChildrenResponse extends Response {
 		this.children = children;
 	}
 
+	@Override
+	public int estimateSize() {
+		int size = super.estimateSize() + 4;
+		if (children != null) {
+			for (String child : children) {
+				size += 4 + child.length();
+			}
+		}
+		return size;
+	}
+
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		super.serialize(writer);
 		writer.writeVector(children);
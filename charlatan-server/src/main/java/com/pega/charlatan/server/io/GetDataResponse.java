@@ -25,6 +25,11 @@ public class GetDataResponse extends Response {
 		this.stat = stat;
 	}
 
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + 4 + (data != null ? data.length : 0) + STAT_SIZE;
+	}
+
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		super.serialize(writer);
 		writer.writeBuffer(data);
@@ -0,0 +1,69 @@
+package com.pega.charlatan.server.io;
+
+import com.pega.charlatan.io.Deserializable;
+import com.pega.charlatan.io.ZookeeperReader;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multi request is a sequence of (header, operation request) pairs terminated by a header with done flag set.
+ */
+public class MultiRequest implements Deserializable {
+
+	private List<Op> ops = new ArrayList<>();
+
+	public List<Op> getOps() {
+		return ops;
+	}
+
+	public void setOps(List<Op> ops) {
+		this.ops = ops;
+	}
+
+	@Override
+	public void deserialize(ZookeeperReader reader) throws IOException {
+		while (true) {
+			int type = reader.readInt();
+			boolean done = reader.readBoolean();
+			reader.readInt(); // error code, always -1 in requests
+
+			if (done) {
+				break;
+			}
+
+			switch (type) {
+				case ZooDefs.OpCode.create:
+					CreateRequest create = new CreateRequest();
+					create.deserialize(reader);
+					ops.add(Op.create(create.getPath(), create.getData(), create.getAcl(), create.getFlags()));
+					break;
+				case ZooDefs.OpCode.delete:
+					DeleteRequest delete = new DeleteRequest();
+					delete.deserialize(reader);
+					ops.add(Op.delete(delete.getPath(), delete.getVersion()));
+					break;
+				case ZooDefs.OpCode.setData:
+					SetDataRequest setData = new SetDataRequest();
+					setData.deserialize(reader);
+					ops.add(Op.setData(setData.getPath(), setData.getData(), setData.getVersion()));
+					break;
+				case ZooDefs.OpCode.check:
+					CheckVersionRequest check = new CheckVersionRequest();
+					check.deserialize(reader);
+					ops.add(Op.check(check.getPath(), check.getVersion()));
+					break;
+				default:
+					throw new IOException("Invalid type of op " + type);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Multi: %d ops", ops.size());
+	}
+}
@@ -0,0 +1,79 @@
+package com.pega.charlatan.server.io;
+
+import com.pega.charlatan.io.ZookeeperWriter;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Multi response is a sequence of (header, operation result) pairs terminated by a header with done flag set.
+ */
+public class MultiResponse extends Response {
+
+	// type + done + error code
+	private static final int OP_HEADER_SIZE = 9;
+
+	private List<OpResult> results;
+
+	public MultiResponse(List<OpResult> results) {
+		this.results = results;
+	}
+
+	public List<OpResult> getResults() {
+		return results;
+	}
+
+	@Override
+	public int estimateSize() {
+		int size = super.estimateSize() + OP_HEADER_SIZE;
+		for (OpResult result : results) {
+			size += OP_HEADER_SIZE;
+			switch (result.getType()) {
+				case ZooDefs.OpCode.create:
+					size += 4 + ((OpResult.CreateResult) result).getPath().length();
+					break;
+				case ZooDefs.OpCode.setData:
+					size += STAT_SIZE;
+					break;
+				case ZooDefs.OpCode.error:
+					size += 4;
+					break;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void serialize(ZookeeperWriter writer) throws IOException {
+		super.serialize(writer);
+
+		for (OpResult result : results) {
+			int err = result.getType() == ZooDefs.OpCode.error ? ((OpResult.ErrorResult) result).getErr() : 0;
+
+			writer.writeInt(result.getType());
+			writer.writeBoolean(false);
+			writer.writeInt(err);
+
+			switch (result.getType()) {
+				case ZooDefs.OpCode.create:
+					writer.writeString(((OpResult.CreateResult) result).getPath());
+					break;
+				case ZooDefs.OpCode.setData:
+					((OpResult.SetDataResult) result).getStat().serialize(writer);
+					break;
+				case ZooDefs.OpCode.error:
+					writer.writeInt(err);
+					break;
+				default:
+					// delete and check results have no body
+					break;
+			}
+		}
+
+		writer.writeInt(-1);
+		writer.writeBoolean(true);
+		writer.writeInt(-1);
+	}
+}
@@ -6,6 +6,11 @@ import com.pega.charlatan.io.ZookeeperWriter;
 import java.io.IOException;
 
 public class Response implements Serializable {
+
+	// length + xid + zxid + error code
+	protected static final int HEADER_SIZE = 20;
+	protected static final int STAT_SIZE = 68;
+
 	private int transactionId;
 	private long zid;
 	private int errorCode;
@@ -34,6 +39,13 @@ public class Response implements Serializable {
 		this.errorCode = errorCode;
 	}
 
+	/**
+	 * Expected size of the serialized response, used to size the output buffer up front.
+	 */
+	public int estimateSize() {
+		return HEADER_SIZE;
+	}
+
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		writer.writeInt(0); //size place holder
 		writer.writeInt(transactionId); //4 bytes
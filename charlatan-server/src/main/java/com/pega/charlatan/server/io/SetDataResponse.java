@@ -20,6 +20,11 @@ public class SetDataResponse extends Response {
 		this.stat = stat;
 	}
 
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + STAT_SIZE;
+	}
+
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		super.serialize(writer);
 		stat.serialize(writer);
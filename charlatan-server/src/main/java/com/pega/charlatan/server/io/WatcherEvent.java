@@ -39,6 +39,11 @@ public class WatcherEvent extends Response {
 		this.path = path;
 	}
 
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + 12 + (path != null ? path.length() : 0);
+	}
+
 	@Override
 	public void serialize(ZookeeperWriter writer) throws IOException {
 		super.serialize(writer);
@@ -0,0 +1,146 @@
+package com.pega.charlatan.server;
+
+import com.pega.charlatan.io.ZookeeperWriter;
+import com.pega.charlatan.server.io.Response;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResponseEncoderTest {
+
+	private static final int THREADS = 4;
+	private static final int RESPONSES = 20000;
+
+	@Test
+	public void concurrentFlushesKeepOrderTest() throws Exception {
+		checkOrder(null, false);
+	}
+
+	@Test
+	public void eventFlushesKeepOrderTest() throws Exception {
+		ScheduledExecutorService flushService = Executors.newSingleThreadScheduledExecutor();
+		try {
+			checkOrder(flushService, true);
+		} finally {
+			flushService.shutdown();
+		}
+	}
+
+	/**
+	 * Encodes responses with increasing numbers from several threads, every thread flushes after its response.
+	 *
+	 * @param events true to encode every other response as a watch event flushed in batches of 3 or after 1ms
+	 */
+	private void checkOrder(ScheduledExecutorService flushService, final boolean events) throws Exception {
+		final List<ChannelBuffer> written = new ArrayList<>();
+		final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("write")) {
+					ChannelBuffer buffer = (ChannelBuffer) args[0];
+					synchronized (written) {
+						// Copied, the encoder reuses the buffer once the write completes
+						written.add(buffer.copy());
+					}
+					return Channels.succeededFuture((Channel) proxy);
+				}
+				if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+
+		final ResponseEncoder encoder = new ResponseEncoder(channel, flushService, 3, 1);
+		final Object sequenceLock = new Object();
+		final int[] sequence = new int[1];
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < RESPONSES / THREADS; i++) {
+							boolean event;
+							synchronized (sequenceLock) {
+								event = events && sequence[0] % 2 == 0;
+								if (event) {
+									encoder.encodeEvent(new IntResponse(sequence[0]++));
+								} else {
+									encoder.encode(new IntResponse(sequence[0]++), 8);
+								}
+							}
+							if (!event) {
+								encoder.flush();
+							}
+						}
+					} catch (InterruptedException | IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		if (flushService != null) {
+			// Last delayed flush
+			flushService.schedule(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, 10, TimeUnit.MILLISECONDS).get();
+		}
+
+		int expected = 0;
+		for (ChannelBuffer buffer : written) {
+			while (buffer.readable()) {
+				assertEquals(4, buffer.readInt());
+				assertEquals(expected++, buffer.readInt());
+			}
+		}
+		assertEquals(RESPONSES, expected);
+	}
+
+	private static class IntResponse extends Response {
+		private final int value;
+
+		IntResponse(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public int estimateSize() {
+			return 8;
+		}
+
+		@Override
+		public void serialize(ZookeeperWriter writer) throws IOException {
+			// Length place holder
+			writer.writeInt(0);
+			writer.writeInt(value);
+		}
+	}
+}
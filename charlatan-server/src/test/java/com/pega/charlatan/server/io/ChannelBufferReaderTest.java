@@ -0,0 +1,53 @@
+package com.pega.charlatan.server.io;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChannelBufferReaderTest {
+
+	@Test
+	public void readVectorTest() throws IOException {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		buffer.writeInt(2);
+		writeString(buffer, "/a");
+		writeString(buffer, "/b");
+		buffer.writeInt(2);
+		buffer.writeBytes(new byte[]{1, 2});
+
+		ChannelBufferReader reader = new ChannelBufferReader(buffer);
+		assertEquals(Arrays.asList("/a", "/b"), reader.readVector());
+		assertArrayEquals(new byte[]{1, 2}, reader.readBuffer());
+	}
+
+	@Test(expected = EOFException.class)
+	public void hostileVectorLengthIsRejectedTest() throws IOException {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		buffer.writeInt(Integer.MAX_VALUE);
+		writeString(buffer, "/a");
+
+		new ChannelBufferReader(buffer).readVector();
+	}
+
+	@Test(expected = EOFException.class)
+	public void hostileBufferLengthIsRejectedTest() throws IOException {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		buffer.writeInt(Integer.MAX_VALUE);
+
+		new ChannelBufferReader(buffer).readBuffer();
+	}
+
+	private static void writeString(ChannelBuffer buffer, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.writeInt(bytes.length);
+		buffer.writeBytes(bytes);
+	}
+}
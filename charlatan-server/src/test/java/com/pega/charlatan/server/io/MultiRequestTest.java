@@ -0,0 +1,83 @@
+package com.pega.charlatan.server.io;
+
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MultiRequestTest {
+
+	@Test
+	public void deserializeTest() throws IOException {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		writeHeader(buffer, ZooDefs.OpCode.create, false);
+		writeString(buffer, "/a");
+		buffer.writeInt(1);
+		buffer.writeByte(7);
+		buffer.writeInt(0); // no acls
+		buffer.writeInt(2); // ephemeral
+		writeHeader(buffer, ZooDefs.OpCode.setData, false);
+		writeString(buffer, "/b");
+		buffer.writeInt(-1);
+		buffer.writeInt(3);
+		writeHeader(buffer, ZooDefs.OpCode.check, false);
+		writeString(buffer, "/c");
+		buffer.writeInt(4);
+		writeHeader(buffer, ZooDefs.OpCode.delete, false);
+		writeString(buffer, "/d");
+		buffer.writeInt(5);
+		writeHeader(buffer, -1, true);
+
+		MultiRequest request = new MultiRequest();
+		request.deserialize(new ChannelBufferReader(buffer));
+		List<Op> ops = request.getOps();
+
+		assertEquals(4, ops.size());
+		Op.Create create = (Op.Create) ops.get(0);
+		assertEquals("/a", create.getPath());
+		assertArrayEquals(new byte[]{7}, create.getData());
+		assertEquals(2, create.getFlags());
+		Op.SetData setData = (Op.SetData) ops.get(1);
+		assertEquals("/b", setData.getPath());
+		assertEquals(null, setData.getData());
+		assertEquals(3, setData.getVersion());
+		Op.Check check = (Op.Check) ops.get(2);
+		assertEquals("/c", check.getPath());
+		assertEquals(4, check.getVersion());
+		Op.Delete delete = (Op.Delete) ops.get(3);
+		assertEquals("/d", delete.getPath());
+		assertEquals(5, delete.getVersion());
+		assertEquals(0, buffer.readableBytes());
+	}
+
+	@Test(expected = IOException.class)
+	public void unsupportedOpIsRejectedTest() throws IOException {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		writeHeader(buffer, ZooDefs.OpCode.getData, false);
+		writeString(buffer, "/a");
+		buffer.writeByte(0); // watch
+		writeHeader(buffer, -1, true);
+
+		new MultiRequest().deserialize(new ChannelBufferReader(buffer));
+	}
+
+	private static void writeHeader(ChannelBuffer buffer, int type, boolean done) {
+		buffer.writeInt(type);
+		buffer.writeByte(done ? 1 : 0);
+		buffer.writeInt(-1);
+	}
+
+	private static void writeString(ChannelBuffer buffer, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.writeInt(bytes.length);
+		buffer.writeBytes(bytes);
+	}
+}
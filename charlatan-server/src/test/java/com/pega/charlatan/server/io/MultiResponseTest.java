@@ -0,0 +1,59 @@
+package com.pega.charlatan.server.io;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MultiResponseTest {
+
+	@Test
+	public void serializeTest() throws IOException {
+		Stat stat = new Stat();
+		stat.setVersion(3);
+		MultiResponse response = new MultiResponse(Arrays.asList(
+				new OpResult.CreateResult("/a"),
+				new OpResult.SetDataResult(stat),
+				new OpResult.DeleteResult(),
+				new OpResult.ErrorResult(KeeperException.Code.BADVERSION.intValue())));
+
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		response.serialize(new ChannelBufferWriter(buffer));
+		assertTrue(buffer.readableBytes() <= response.estimateSize());
+
+		ChannelBufferReader reader = new ChannelBufferReader(buffer);
+		buffer.skipBytes(Response.HEADER_SIZE);
+
+		assertHeader(reader, ZooDefs.OpCode.create, false, 0);
+		assertEquals("/a", reader.readString());
+
+		assertHeader(reader, ZooDefs.OpCode.setData, false, 0);
+		buffer.skipBytes(32); // zxids and times
+		assertEquals(3, reader.readInt());
+		buffer.skipBytes(Response.STAT_SIZE - 36);
+
+		assertHeader(reader, ZooDefs.OpCode.delete, false, 0);
+
+		int badVersion = KeeperException.Code.BADVERSION.intValue();
+		assertHeader(reader, ZooDefs.OpCode.error, false, badVersion);
+		assertEquals(badVersion, reader.readInt());
+
+		assertHeader(reader, -1, true, -1);
+		assertEquals(0, buffer.readableBytes());
+	}
+
+	private static void assertHeader(ChannelBufferReader reader, int type, boolean done, int err) throws IOException {
+		assertEquals(type, reader.readInt());
+		assertEquals(done, reader.readBoolean());
+		assertEquals(err, reader.readInt());
+	}
+}